@@ -1,8 +1,14 @@
 package com.maputo.maputo;
 
+import com.maputo.maputo.utility.BoundedPasswordEncoder;
+import com.maputo.maputo.utility.BoundedUserCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.core.userdetails.cache.NullUserCache;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 
 import java.io.File;
@@ -16,9 +22,22 @@ public class MaputoApplication {
 		SpringApplication.run(MaputoApplication.class, args);
 		new File(USER_FOLDER).mkdirs();
 	}
+	@Bean(destroyMethod = "shutdown")
+	public BoundedPasswordEncoder passwordEncoder(MeterRegistry meterRegistry,
+												  @Value("${password-encoder.strength:10}") int strength,
+												  @Value("${password-encoder.threads:0}") int threads,
+												  @Value("${password-encoder.queue-capacity:100}") int queueCapacity,
+												  @Value("${password-encoder.rehash-on-login:false}") boolean rehashOnLogin){
+		//0 threads means one per CPU, BCrypt is pure CPU work
+		int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		return new BoundedPasswordEncoder(new BCryptPasswordEncoder(strength), poolSize, queueCapacity, rehashOnLogin, meterRegistry);
+	}
+
 	@Bean
-	public BCryptPasswordEncoder passwordEncoder(){
-		return new BCryptPasswordEncoder();
+	public UserCache userCache(@Value("${user-cache.enabled:false}") boolean enabled,
+							   @Value("${user-cache.maximum-size:10000}") long maximumSize,
+							   @Value("${user-cache.ttl-seconds:300}") long ttlSeconds){
+		return enabled ? new BoundedUserCache(maximumSize, ttlSeconds) : new NullUserCache();
 	}
 
 }
@@ -0,0 +1,55 @@
+package com.maputo.maputo.configuration;
+
+import com.maputo.maputo.utility.ReplicaRoutingDataSource;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+//With replica-datasource.enabled the application gets two pools: spring.datasource is the primary,
+//replica-datasource a read replica that @Transactional(readOnly = true) methods read from.
+//Everything else, including JdbcTemplate work outside a transaction, stays on the primary.
+@Configuration
+@ConditionalOnProperty(name = "replica-datasource.enabled", havingValue = "true")
+public class ReplicaDataSourceConfiguration {
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("primary");
+        return dataSource;
+    }
+
+    @Bean
+    @ConfigurationProperties("replica-datasource.hikari")
+    public HikariDataSource replicaDataSource(@Value("${replica-datasource.url}") String url,
+                                              @Value("${replica-datasource.username:}") String username,
+                                              @Value("${replica-datasource.password:}") String password) {
+        HikariDataSource dataSource = DataSourceBuilder.create().type(HikariDataSource.class)
+                .url(url).username(username).password(password).build();
+        dataSource.setPoolName("replica");
+        //a write that ends up here by mistake should fail, not go missing on the next resync
+        dataSource.setReadOnly(true);
+        return dataSource;
+    }
+
+    //JPA, JdbcTemplate and everything else that wants a DataSource get this one
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("primaryDataSource") DataSource primaryDataSource,
+                                 @Qualifier("replicaDataSource") DataSource replicaDataSource) {
+        ReplicaRoutingDataSource routingDataSource = new ReplicaRoutingDataSource(primaryDataSource, replicaDataSource);
+        routingDataSource.afterPropertiesSet();
+        return new LazyConnectionDataSourceProxy(routingDataSource);
+    }
+}
@@ -0,0 +1,62 @@
+package com.maputo.maputo.configuration;
+
+import org.ehcache.config.CacheConfiguration;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.ConfigurationBuilder;
+import org.ehcache.config.builders.ExpiryPolicyBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.jsr107.EhcacheCachingProvider;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.hibernate.cache.spi.RegionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import java.net.URI;
+import java.time.Duration;
+import java.util.UUID;
+
+import static com.maputo.maputo.constant.UserImplConstant.USER_CACHE_REGION;
+import static com.maputo.maputo.constant.UserImplConstant.USER_NATURAL_ID_CACHE_REGION;
+
+//Hibernate's second-level cache for User, kept on the heap of this node by Ehcache.
+//Regions are built here instead of an ehcache.xml so size and TTL come from application.yml like everything else.
+//Every node has its own copy: writes made through another node are seen here once the TTL runs out.
+@Configuration
+public class SecondLevelCacheConfiguration {
+
+    @Bean(destroyMethod = "close")
+    public CacheManager secondLevelCacheManager(@Value("${second-level-cache.maximum-size:10000}") long maximumSize,
+                                                @Value("${second-level-cache.ttl-seconds:60}") long ttlSeconds) {
+        CacheConfiguration<Object, Object> bounded = CacheConfigurationBuilder
+                .newCacheConfigurationBuilder(Object.class, Object.class, ResourcePoolsBuilder.heap(maximumSize))
+                .withExpiry(ExpiryPolicyBuilder.timeToLiveExpiration(Duration.ofSeconds(ttlSeconds)))
+                .build();
+        //update timestamps decide whether a cached query is still valid, dropping them early would serve stale results
+        CacheConfiguration<Object, Object> timestamps = CacheConfigurationBuilder
+                .newCacheConfigurationBuilder(Object.class, Object.class, ResourcePoolsBuilder.heap(maximumSize))
+                .withExpiry(ExpiryPolicyBuilder.noExpiration())
+                .build();
+        org.ehcache.config.Configuration configuration = ConfigurationBuilder.newConfigurationBuilder()
+                .withCache(USER_CACHE_REGION, bounded)
+                .withCache(USER_NATURAL_ID_CACHE_REGION, bounded)
+                .withCache(RegionFactory.DEFAULT_QUERY_RESULTS_REGION_UNQUALIFIED_NAME, bounded)
+                .withCache(RegionFactory.DEFAULT_UPDATE_TIMESTAMPS_REGION_UNQUALIFIED_NAME, timestamps)
+                .build();
+        EhcacheCachingProvider provider = (EhcacheCachingProvider) Caching.getCachingProvider(EhcacheCachingProvider.class.getName());
+        //own URI per application context, the provider would otherwise hand the same manager to every context in a JVM
+        return provider.getCacheManager(URI.create("maputo:" + UUID.randomUUID()), configuration);
+    }
+
+    @Bean
+    public HibernatePropertiesCustomizer secondLevelCacheCustomizer(CacheManager secondLevelCacheManager) {
+        return properties -> {
+            properties.put(ConfigSettings.CACHE_MANAGER, secondLevelCacheManager);
+            //a region missing above is a mistake, not something to create with defaults
+            properties.put(ConfigSettings.MISSING_CACHE_STRATEGY, "fail");
+        };
+    }
+}
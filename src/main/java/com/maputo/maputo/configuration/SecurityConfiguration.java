@@ -4,8 +4,11 @@ import com.maputo.maputo.constant.SecurityConstant;
 import com.maputo.maputo.filter.JWTAuthorizationFilter;
 import com.maputo.maputo.filter.JwtAccessDeniedHandler;
 import com.maputo.maputo.filter.JwtAuthenticationEntryPoint;
+import com.maputo.maputo.filter.RateLimitFilter;
+import com.maputo.maputo.filter.ReadYourWritesFilter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.authentication.AuthenticationManager;
@@ -15,8 +18,11 @@ import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 
 @Configuration
@@ -24,29 +30,45 @@ import org.springframework.security.web.authentication.UsernamePasswordAuthentic
 @EnableGlobalMethodSecurity(prePostEnabled = true)//security at method level
 public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
     private JWTAuthorizationFilter authorizationFilter;
+    private RateLimitFilter rateLimitFilter;
+    private ReadYourWritesFilter readYourWritesFilter;
     private JwtAccessDeniedHandler accessDeniedHandler;
     private JwtAuthenticationEntryPoint authenticationEntryPoint;
     private UserDetailsService userDetailsService;
-    private BCryptPasswordEncoder encoder;
+    private UserDetailsPasswordService userDetailsPasswordService;
+    private PasswordEncoder encoder;
+    private UserCache userCache;
 
     @Autowired
     public SecurityConfiguration(JwtAuthenticationEntryPoint jwtAuthenticationEntryPoint,
                                  JwtAccessDeniedHandler accessDeniedHandler,
                                  JWTAuthorizationFilter authorizationFilter,
+                                 RateLimitFilter rateLimitFilter,
+                                 ReadYourWritesFilter readYourWritesFilter,
                                  @Qualifier("userDetailsService") UserDetailsService userDetailsService,
-                                 BCryptPasswordEncoder encoder
+                                 UserDetailsPasswordService userDetailsPasswordService,
+                                 PasswordEncoder encoder,
+                                 UserCache userCache
                                  ){
         this.userDetailsService=userDetailsService;
+        this.userDetailsPasswordService=userDetailsPasswordService;
         this.accessDeniedHandler=accessDeniedHandler;
         this.authenticationEntryPoint=jwtAuthenticationEntryPoint;
         this.authorizationFilter=authorizationFilter;
+        this.rateLimitFilter=rateLimitFilter;
+        this.readYourWritesFilter=readYourWritesFilter;
         this.encoder=encoder;
+        this.userCache=userCache;
     }
 
     @Override
     protected void configure(AuthenticationManagerBuilder auth) throws Exception {
-        auth.userDetailsService(userDetailsService)//telling spring security to use our userdetailsservice
-                .passwordEncoder(encoder);
+        DaoAuthenticationProvider provider = new DaoAuthenticationProvider();
+        provider.setUserDetailsService(userDetailsService);//telling spring security to use our userdetailsservice
+        provider.setPasswordEncoder(encoder);
+        provider.setUserDetailsPasswordService(userDetailsPasswordService);//stores upgraded hashes after login
+        provider.setUserCache(userCache);//NullUserCache unless user-cache.enabled
+        auth.authenticationProvider(provider);
     }
 
     @Override
@@ -59,8 +81,25 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
                 .anyRequest().authenticated()
                 .and().exceptionHandling().accessDeniedHandler(accessDeniedHandler)//telling to use our accessDeniedHandler
                 .authenticationEntryPoint(authenticationEntryPoint)//telling to use our authentciationEntryPoint
-                .and().addFilterBefore(authorizationFilter, UsernamePasswordAuthenticationFilter.class);
+                .and().addFilterBefore(authorizationFilter, UsernamePasswordAuthenticationFilter.class)
+                .addFilterBefore(rateLimitFilter, JWTAuthorizationFilter.class)//throttle before any token or password work
+                .addFilterAfter(readYourWritesFilter, JWTAuthorizationFilter.class);//needs to know who is calling
     }
+    //only runs inside the security chain, not a second time as a plain servlet filter
+    @Bean
+    public FilterRegistrationBean<RateLimitFilter> rateLimitFilterRegistration(RateLimitFilter rateLimitFilter) {
+        FilterRegistrationBean<RateLimitFilter> registration = new FilterRegistrationBean<>(rateLimitFilter);
+        registration.setEnabled(false);
+        return registration;
+    }
+
+    @Bean
+    public FilterRegistrationBean<ReadYourWritesFilter> readYourWritesFilterRegistration(ReadYourWritesFilter readYourWritesFilter) {
+        FilterRegistrationBean<ReadYourWritesFilter> registration = new FilterRegistrationBean<>(readYourWritesFilter);
+        registration.setEnabled(false);
+        return registration;
+    }
+
     @Bean
     @Override
     public AuthenticationManager authenticationManagerBean() throws Exception{
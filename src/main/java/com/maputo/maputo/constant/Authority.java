@@ -7,4 +7,6 @@ public class Authority {
     public static final String[] MANAGER_AUTHORITIES={"user:read", "user:update"};
     public static final String[] ADMIN_AUTHORITIES={"user:read","user:update", "user:create"};
     public static final String[] SUPER_ADMIN_AUTHORITIES ={"user:read","user:update","user:create","user:delete"};
+    //bit position of every authority in the token mask is its index here, only ever append to this array
+    public static final String[] AUTHORITY_BITS={"user:read","user:update","user:create","user:delete"};
 }
@@ -7,11 +7,16 @@ public class EmailConstant {
     public static final String FROM_EMAIL = "support@maputo.com";
     public static final String CC_EMAIL = "";
     public static final String EMAIL_SUBJECT = "Maputo, LLC - New Password";
+    public static final String NEW_PASSWORD_TEXT = "Hello %s, \n \n Your new account password is: %s\n \n The support team";
     public static final String GMAIL_SMTP_SERVER = "smtp.gmail.com";
-    public static final String SMTP_HOST = "mail.smtp.host";
-    public static final String SMTP_AUTH = "mail.smtp.auth";
-    public static final String SMTP_PORT = "mail.smtp.port";
+    //session properties are read under the name of the protocol, %s is smtp or smtps
+    public static final String SMTP_HOST = "mail.%s.host";
+    public static final String SMTP_AUTH = "mail.%s.auth";
+    public static final String SMTP_PORT = "mail.%s.port";
     public static final int DEFAULT_PORT = 465;
-    public static final String SMTP_STARTTLS_ENABLE = "mail.smtp.starttls.enable";
-    public static final String SMTP_STARTTLS_REQUIRED = "mail.smtp.starttls.required";
+    public static final String SMTP_STARTTLS_ENABLE = "mail.%s.starttls.enable";
+    public static final String SMTP_STARTTLS_REQUIRED = "mail.%s.starttls.required";
+    public static final String SMTP_CONNECTION_TIMEOUT = "mail.%s.connectiontimeout";
+    public static final String SMTP_TIMEOUT = "mail.%s.timeout";
+    public static final String MAIL_FROM = "mail.from";
 }
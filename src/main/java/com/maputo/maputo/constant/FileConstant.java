@@ -9,5 +9,10 @@ public class FileConstant {
     public static final String FILE_SAVED_IN_FILE_SYSTEM="Saved file in file system by name: ";
     public static final String DOT=".";
     public static final String FORWARD_SLASH = "/";
-    public static final String TEMP_PROFILE_IMAGE_BASE_URL="https://robohash.org/";
+    public static final String NO_IMAGE_FOUND="No image found: ";
+    public static final String UNSUPPORTED_IMAGE="Only JPEG, PNG or WebP images can be uploaded";
+    public static final String IMAGE_TOO_LARGE="Images can not be larger than %d bytes";
+    public static final String IMAGE_VERSION_PARAM="v";
+    public static final String IMAGE_SIZE_PARAM="size";
+    public static final String THUMBNAIL_SUFFIX="px";
 }
@@ -6,4 +6,8 @@ public class UserImplConstant {
     public static final String NO_USER_FOUND_BY_USERNAME = "No user found by username: ";
     public static final String FOUND_USER_BY_USERNAME = "Returning found user by username: ";
     public static final String NO_USER_FOUND_BY_EMAIL = "No user found for email: ";
+    public static final String USERNAME_UNIQUE_CONSTRAINT = "uk_user_username";
+    public static final String EMAIL_UNIQUE_CONSTRAINT = "uk_user_email";
+    public static final String USER_CACHE_REGION = "user";
+    public static final String USER_NATURAL_ID_CACHE_REGION = "user-natural-id";
 }
@@ -0,0 +1,20 @@
+package com.maputo.maputo.domain;
+
+//A generated default profile picture, PNG bytes and the ETag they are served with
+public final class Avatar {
+    private final byte[] content;
+    private final String eTag;
+
+    public Avatar(byte[] content, String eTag) {
+        this.content = content;
+        this.eTag = eTag;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+}
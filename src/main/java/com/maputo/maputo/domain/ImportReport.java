@@ -0,0 +1,69 @@
+package com.maputo.maputo.domain;
+
+import java.util.List;
+
+//Outcome of a bulk import: counts, and the rows that failed in the order they were sent. Only the first
+//user-import.maximum-reported-failures are listed, so the report stays small however large the upload was
+public class ImportReport {
+    private final long created;
+    private final long failed;
+    private final long elapsedMillis;
+    private final List<RowResult> failures;
+
+    public ImportReport(long created, long failed, long elapsedMillis, List<RowResult> failures) {
+        this.created = created;
+        this.failed = failed;
+        this.elapsedMillis = elapsedMillis;
+        this.failures = failures;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getRowsPerSecond() {
+        long rows = created + failed;
+        return elapsedMillis == 0 ? rows * 1000.0 : rows * 1000.0 / elapsedMillis;
+    }
+
+    public List<RowResult> getFailures() {
+        return failures;
+    }
+
+    //true when more rows failed than are listed
+    public boolean isFailuresTruncated() {
+        return failures.size() < failed;
+    }
+
+    public static class RowResult {
+        private final long row;
+        private final String username;
+        private final String message;
+
+        public RowResult(long row, String username, String message) {
+            this.row = row;
+            this.username = username;
+            this.message = message;
+        }
+
+        public long getRow() {
+            return row;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
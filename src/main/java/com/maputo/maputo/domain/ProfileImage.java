@@ -0,0 +1,53 @@
+package com.maputo.maputo.domain;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+//A profile image file with what the validators need, and its bytes when they are held by the hot-image cache
+public final class ProfileImage {
+    private final Path path;
+    private final long length;
+    private final long lastModified;
+    private final ByteBuffer content;
+
+    public ProfileImage(Path path, long length, long lastModified, ByteBuffer content) {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.content = content;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    //the ?v= of the image URL
+    public String getVersion() {
+        return Long.toHexString(lastModified);
+    }
+
+    public String getETag() {
+        return "\"" + getVersion() + "-" + Long.toHexString(length) + "\"";
+    }
+
+    public boolean isInMemory() {
+        return content != null;
+    }
+
+    //every caller gets its own position on the shared bytes
+    public ByteBuffer getContent() {
+        return content.duplicate();
+    }
+
+    public boolean isSameFileAs(ProfileImage other) {
+        return length == other.length && lastModified == other.lastModified;
+    }
+}
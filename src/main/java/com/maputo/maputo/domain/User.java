@@ -1,20 +1,62 @@
 package com.maputo.maputo.domain;
 
+import com.maputo.maputo.enumeration.Role;
+import com.maputo.maputo.utility.AuthorityMask;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.DynamicUpdate;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
+
 import javax.persistence.*;
 import java.io.Serializable;
 import java.util.Date;
 
+import static com.maputo.maputo.constant.UserImplConstant.*;
+
 //We need serializable to be implemented in order to transform it from java class to a certain stream that can be saved in db.
 //It makes this transition easier from moving representation of data to another.
 @Entity
+//second-level cache, read-write so a cached row is locked while a transaction changes it.
+//Writes that bypass Hibernate (LoginTimestampRecorder, AuthorityMigration) evict the rows they touch.
+//The cache is per node, so login and every write path read the row from the database instead (see UserRepository),
+//and a stale copy that still gets written fails on the version instead of putting old columns back
+@Cacheable
+@DynamicUpdate
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = USER_CACHE_REGION)
+@NaturalIdCache(region = USER_NATURAL_ID_CACHE_REGION)
+//unique keys double as the lookup indexes for login and reset password, and settle concurrent registrations
+@Table(uniqueConstraints = {
+        @UniqueConstraint(name = USERNAME_UNIQUE_CONSTRAINT, columnNames = "username"),
+        @UniqueConstraint(name = EMAIL_UNIQUE_CONSTRAINT, columnNames = "email")
+}, indexes = {
+        //One per equality filter of the list, ending in id: "= ? and id > ? order by id limit n" reads the page in index
+        //order and stops. With both status filters one index is used and the other is checked on the rows it reads
+        @Index(name = "idx_user_role", columnList = "role, id"),
+        @Index(name = "idx_user_active", columnList = "isActive, id"),
+        @Index(name = "idx_user_not_blocked", columnList = "isNotBlocked, id"),
+        //A join date range, or "who has user:delete" as an IN list over the masks with that bit, comes out of these
+        //ordered by date or mask, not id. MySQL then sorts every match before the limit, which is only cheap for a narrow
+        //filter; for a wide one it walks the primary key in id order instead and checks the filter on each row
+        @Index(name = "idx_user_join_date", columnList = "joinDate, id"),
+        @Index(name = "idx_user_authority_mask", columnList = "authority_mask, id")
+})
 public class User implements Serializable {
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    //same hibernate_sequence as before, but 50 ids per round trip so batched inserts don't wait on the sequence.
+    //hibernate.id.optimizer.pooled.preferred=pooled-lo makes the stored value the next free id, like it was with AUTO
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_sequence")
+    @SequenceGenerator(name = "user_sequence", sequenceName = "hibernate_sequence", allocationSize = 50)
     @Column(nullable = false, updatable = false)
     private Long id;
+    //bumped by every update through Hibernate, bulk updates use "update versioned"
+    @Version
+    private long version;
     private String userId;
     private String firstName;
     private String lastName;
+    //findUserByNaturalId resolves username -> id from the natural id cache and the row from the entity cache, updateUser may rename
+    @NaturalId(mutable = true)
     private String username;
     private String password;
     private String email;
@@ -23,7 +65,9 @@ public class User implements Serializable {
     private Date lastLoginDateDisplay;//actual login date
     private Date joinDate;
     private String role; //ROLE_USER, ROLE_ADMIN
-    private String[] authorities;//{read,write, delete etc.}
+    //bitmask over Authority.AUTHORITY_BITS instead of the old serialized String[] column, see AuthorityMigration
+    @Column(name = "authority_mask", nullable = false)
+    private int authorityMask;
     private boolean isActive;
     private boolean isNotBlocked;
 
@@ -40,7 +84,7 @@ public class User implements Serializable {
         this.lastLoginDateDisplay = lastLoginDateDisplay;
         this.joinDate = joinDate;
         this.role = role;
-        this.authorities = authorities;
+        setAuthorities(authorities);
         this.isActive = isActive;
         this.isNotBlocked = isNotBlocked;
     }
@@ -96,7 +140,12 @@ public class User implements Serializable {
     }
 
     public String[] getAuthorities() {
-        return authorities;
+        return AuthorityMask.toArray(getAuthorityMask());
+    }
+
+    //rows the migration hasn't reached yet still have 0, their authorities are the ones of their role
+    public int getAuthorityMask() {
+        return authorityMask != 0 || role == null ? authorityMask : Role.valueOf(role).getAuthorityMask();
     }
 
     public boolean isActive() {
@@ -156,7 +205,11 @@ public class User implements Serializable {
     }
 
     public void setAuthorities(String[] authorities) {
-        this.authorities = authorities;
+        int mask = AuthorityMask.toMask(authorities);
+        if (mask == AuthorityMask.UNMAPPED) {
+            throw new IllegalArgumentException("Every authority needs a bit in Authority.AUTHORITY_BITS");
+        }
+        this.authorityMask = mask;
     }
 
     public void setActive(boolean active) {
@@ -0,0 +1,53 @@
+package com.maputo.maputo.domain;
+
+import java.util.Date;
+
+//Optional filters for the user list, null means "don't filter on this"
+public final class UserFilter {
+    private final String role;
+    private final String authority;
+    private final Boolean active;
+    private final Boolean notBlocked;
+    private final Date joinedFrom;
+    private final Date joinedTo;
+
+    public UserFilter(String role, String authority, Boolean active, Boolean notBlocked, Date joinedFrom, Date joinedTo) {
+        this.role = role;
+        this.authority = authority;
+        this.active = active;
+        this.notBlocked = notBlocked;
+        this.joinedFrom = joinedFrom;
+        this.joinedTo = joinedTo;
+    }
+
+    public static UserFilter none() {
+        return new UserFilter(null, null, null, null, null, null);
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    //e.g. "user:delete"
+    public String getAuthority() {
+        return authority;
+    }
+
+    public Boolean getActive() {
+        return active;
+    }
+
+    public Boolean getNotBlocked() {
+        return notBlocked;
+    }
+
+    //inclusive
+    public Date getJoinedFrom() {
+        return joinedFrom;
+    }
+
+    //exclusive
+    public Date getJoinedTo() {
+        return joinedTo;
+    }
+}
@@ -0,0 +1,71 @@
+package com.maputo.maputo.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+//One user of a bulk import, the same fields as /user/add. Unknown fields are ignored so an export can be imported back.
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class UserImportRow {
+    private String firstName;
+    private String lastName;
+    private String username;
+    private String email;
+    private String role;
+    private Boolean active;
+    private Boolean notBlocked;
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public void setFirstName(String firstName) {
+        this.firstName = firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public void setLastName(String lastName) {
+        this.lastName = lastName;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public void setRole(String role) {
+        this.role = role;
+    }
+
+    public Boolean getActive() {
+        return active;
+    }
+
+    public void setActive(Boolean active) {
+        this.active = active;
+    }
+
+    public Boolean getNotBlocked() {
+        return notBlocked;
+    }
+
+    public void setNotBlocked(Boolean notBlocked) {
+        this.notBlocked = notBlocked;
+    }
+}
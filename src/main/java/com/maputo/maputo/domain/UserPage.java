@@ -0,0 +1,22 @@
+package com.maputo.maputo.domain;
+
+import java.util.List;
+
+//One page of the user list, nextCursor is the id to pass as "after" for the next page or null on the last page
+public final class UserPage {
+    private final List<UserView> users;
+    private final Long nextCursor;
+
+    public UserPage(List<UserView> users, Long nextCursor) {
+        this.users = users;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<UserView> getUsers() {
+        return users;
+    }
+
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+}
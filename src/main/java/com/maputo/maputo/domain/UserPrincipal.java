@@ -1,13 +1,10 @@
 package com.maputo.maputo.domain;
 
+import com.maputo.maputo.utility.AuthorityMask;
 import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
 
 import java.util.Collection;
-import java.util.stream.Collectors;
-
-import static java.util.Arrays.stream;
 
 public class UserPrincipal implements UserDetails {
     private User user;
@@ -16,10 +13,14 @@ public class UserPrincipal implements UserDetails {
         this.user = user;
     }
 
+    public User getUser() {
+        return this.user;
+    }
+
     @Override
     public Collection<? extends GrantedAuthority> getAuthorities() {
-        //Takes an array of authorities then creates a new object of the SimpleGrantedAuthority class and collects them into a list of string
-        return stream(this.user.getAuthorities()).map(SimpleGrantedAuthority::new).collect(Collectors.toList());
+        //shared immutable list per distinct set of authorities, nothing is allocated per call
+        return AuthorityMask.toAuthorities(this.user.getAuthorityMask());
     }
 
     @Override
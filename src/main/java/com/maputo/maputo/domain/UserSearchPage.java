@@ -0,0 +1,22 @@
+package com.maputo.maputo.domain;
+
+import java.util.List;
+
+//One page of ranked search results, more is true when the next page has results too
+public final class UserSearchPage {
+    private final List<UserSearchResult> users;
+    private final boolean more;
+
+    public UserSearchPage(List<UserSearchResult> users, boolean more) {
+        this.users = users;
+        this.more = more;
+    }
+
+    public List<UserSearchResult> getUsers() {
+        return users;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+}
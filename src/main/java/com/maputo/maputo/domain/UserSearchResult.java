@@ -0,0 +1,38 @@
+package com.maputo.maputo.domain;
+
+//One /user/search hit, only the fields the index holds so results never touch the database
+public final class UserSearchResult {
+    private final long id;
+    private final String username;
+    private final String firstName;
+    private final String lastName;
+    private final String email;
+
+    public UserSearchResult(long id, String username, String firstName, String lastName, String email) {
+        this.id = id;
+        this.username = username;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.email = email;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+}
@@ -0,0 +1,113 @@
+package com.maputo.maputo.domain;
+
+import com.maputo.maputo.enumeration.Role;
+import com.maputo.maputo.utility.AuthorityMask;
+
+import java.util.Date;
+
+//What the API returns for a user. Read paths select straight into it with a JPQL constructor expression,
+//so the password hash is never loaded and nothing ends up in the persistence context.
+//JSON field names are the same as for User.
+public final class UserView {
+    private final Long id;
+    private final String userId;
+    private final String firstName;
+    private final String lastName;
+    private final String username;
+    private final String email;
+    private final String profileImageUrl;
+    private final Date lastLoginDate;
+    private final Date lastLoginDateDisplay;
+    private final Date joinDate;
+    private final String role;
+    private final int authorityMask;
+    private final boolean isActive;
+    private final boolean isNotBlocked;
+
+    public UserView(Long id, String userId, String firstName, String lastName, String username, String email, String profileImageUrl,
+                    Date lastLoginDate, Date lastLoginDateDisplay, Date joinDate, String role, int authorityMask, boolean isActive, boolean isNotBlocked) {
+        this.id = id;
+        this.userId = userId;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.username = username;
+        this.email = email;
+        this.profileImageUrl = profileImageUrl;
+        this.lastLoginDate = lastLoginDate;
+        this.lastLoginDateDisplay = lastLoginDateDisplay;
+        this.joinDate = joinDate;
+        this.role = role;
+        this.authorityMask = authorityMask;
+        this.isActive = isActive;
+        this.isNotBlocked = isNotBlocked;
+    }
+
+    //for the write endpoints, which already have the entity
+    public static UserView from(User user) {
+        return new UserView(user.getId(), user.getUserId(), user.getFirstName(), user.getLastName(), user.getUsername(), user.getEmail(),
+                user.getProfileImageUrl(), user.getLastLoginDate(), user.getLastLoginDateDisplay(), user.getJoinDate(), user.getRole(),
+                user.getAuthorityMask(), user.isActive(), user.isNotBlocked());
+    }
+
+    public UserView withLoginDates(Date lastLoginDate, Date lastLoginDateDisplay) {
+        return new UserView(id, userId, firstName, lastName, username, email, profileImageUrl, lastLoginDate, lastLoginDateDisplay,
+                joinDate, role, authorityMask, isActive, isNotBlocked);
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getProfileImageUrl() {
+        return profileImageUrl;
+    }
+
+    public Date getLastLoginDate() {
+        return lastLoginDate;
+    }
+
+    public Date getLastLoginDateDisplay() {
+        return lastLoginDateDisplay;
+    }
+
+    public Date getJoinDate() {
+        return joinDate;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    //0 means the row hasn't been migrated yet, same fallback to the role as in User
+    public String[] getAuthorities() {
+        return AuthorityMask.toArray(authorityMask != 0 || role == null ? authorityMask : Role.valueOf(role).getAuthorityMask());
+    }
+
+    public boolean isActive() {
+        return isActive;
+    }
+
+    public boolean isNotBlocked() {
+        return isNotBlocked;
+    }
+}
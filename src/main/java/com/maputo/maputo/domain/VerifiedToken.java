@@ -0,0 +1,36 @@
+package com.maputo.maputo.domain;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Date;
+import java.util.List;
+
+//Result of verifying and decoding a JWT once, so the filter doesn't have to verify the same token again and again
+public final class VerifiedToken {
+    private final String subject;
+    private final long expiresAt;
+    private final List<GrantedAuthority> authorities;
+
+    public VerifiedToken(String subject, Date expiresAt, List<GrantedAuthority> authorities) {
+        this.subject = subject;
+        this.expiresAt = expiresAt == null ? Long.MAX_VALUE : expiresAt.getTime();
+        this.authorities = authorities;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public Date getExpiresAt() {
+        return new Date(expiresAt);
+    }
+
+    //already immutable, safe to hand out to every request
+    public List<GrantedAuthority> getAuthorities() {
+        return authorities;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt < now;
+    }
+}
@@ -0,0 +1,6 @@
+package com.maputo.maputo.enumeration;
+
+public enum DataSourceRole {
+    PRIMARY,
+    REPLICA
+}
@@ -0,0 +1,51 @@
+package com.maputo.maputo.enumeration;
+
+//The image formats accepted for upload, told apart by their first bytes and not by what the client says they are.
+//-1 in a signature matches any byte (the length field of a RIFF header).
+public enum ImageFormat {
+    JPEG("image/jpeg", "jpg", new int[]{0xFF, 0xD8, 0xFF}),
+    PNG("image/png", "png", new int[]{0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A}),
+    WEBP("image/webp", "webp", new int[]{'R', 'I', 'F', 'F', -1, -1, -1, -1, 'W', 'E', 'B', 'P'});
+
+    //enough of the start of a file to tell every format apart
+    public static final int HEADER_LENGTH = 12;
+    private String contentType;
+    private String extension;
+    private int[] signature;
+
+    ImageFormat(String contentType, String extension, int[] signature) {
+        this.contentType = contentType;
+        this.extension = extension;
+        this.signature = signature;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    //the format the first length bytes of header start with, null for anything else
+    public static ImageFormat of(byte[] header, int length) {
+        for (ImageFormat format : values()) {
+            if (format.matches(header, length)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(byte[] header, int length) {
+        if (length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (signature[i] != -1 && (header[i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,5 +1,10 @@
 package com.maputo.maputo.enumeration;
 
+import com.maputo.maputo.utility.AuthorityMask;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import static com.maputo.maputo.constant.Authority.*;
 
 public enum Role {
@@ -10,12 +15,33 @@ public enum Role {
     ROLE_SUPER_ADMIN(SUPER_ADMIN_AUTHORITIES);
 
     private String[] authorities;
+    private int authorityMask;
 
     Role(String... authorities){
         this.authorities=authorities;
+        this.authorityMask=AuthorityMask.toMask(authorities);
     }
 
     public String[] getAuthorities(){
         return authorities;
     }
+
+    public int getAuthorityMask(){
+        return authorityMask;
+    }
+
+    //names of the roles that grant the authority, empty when it has no bit
+    public static List<String> namesWith(String authority){
+        int bit = AuthorityMask.toMask(new String[]{authority});
+        List<String> names = new ArrayList<>();
+        if (bit == AuthorityMask.UNMAPPED) {
+            return names;
+        }
+        for (Role role : values()) {
+            if ((role.authorityMask & bit) != 0) {
+                names.add(role.name());
+            }
+        }
+        return names;
+    }
 }
@@ -6,9 +6,11 @@ import org.slf4j.ILoggerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.web.servlet.error.ErrorController;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.DisabledException;
@@ -17,6 +19,7 @@ import org.springframework.web.HttpRequestMethodNotSupportedException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.servlet.NoHandlerFoundException;
 
 import javax.persistence.NoResultException;
@@ -25,6 +28,7 @@ import java.util.Objects;
 
 import static org.springframework.http.HttpStatus.*;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static com.maputo.maputo.constant.UserImplConstant.*;
 
 @RestControllerAdvice//controller to handle exceptions
 public class ExceptionHandling implements ErrorController {
@@ -37,6 +41,9 @@ public class ExceptionHandling implements ErrorController {
     public static final String ERROR_PROCESSING_FILE="Error occurred while processing file";
     public static final String NOT_ENOUGH_PERMISSION="You do not have enough permission";
     public static final String ERROR_PATH="/error";
+    public static final String DATA_CONFLICT="This record conflicts with existing data";
+    public static final String FILE_TOO_LARGE="The uploaded file is too large";
+    public static final String CHANGED_CONCURRENTLY="This record was changed in the meantime. Please reload and try again";
 
     @ExceptionHandler(DisabledException.class)
     public ResponseEntity<HttpResponse> accountDisabledException() {
@@ -88,6 +95,31 @@ public class ExceptionHandling implements ErrorController {
 //        return createHttpResponse(BAD_REQUEST, "There is no mapping for this URL");
 //    }
 
+    //a concurrent insert got past the validation and hit a unique key, the constraint name tells us which one
+    @ExceptionHandler(DataIntegrityViolationException.class)
+    public ResponseEntity<HttpResponse> dataIntegrityViolationException(DataIntegrityViolationException exception) {
+        String cause = String.valueOf(exception.getMostSpecificCause().getMessage()).toLowerCase();
+        if(cause.contains(USERNAME_UNIQUE_CONSTRAINT)){
+            return createHttpResponse(BAD_REQUEST, USERNAME_ALREADY_EXISTS);
+        }
+        if(cause.contains(EMAIL_UNIQUE_CONSTRAINT)){
+            return createHttpResponse(BAD_REQUEST, EMAIL_ALREADY_EXISTS);
+        }
+        logger.error(exception.getMessage());
+        return createHttpResponse(CONFLICT, DATA_CONFLICT);
+    }
+
+    //the version on the row moved on since it was read, writing it anyway would undo the other change
+    @ExceptionHandler(ObjectOptimisticLockingFailureException.class)
+    public ResponseEntity<HttpResponse> optimisticLockingFailureException(ObjectOptimisticLockingFailureException exception) {
+        return createHttpResponse(CONFLICT, CHANGED_CONCURRENTLY);
+    }
+
+    @ExceptionHandler(PasswordEncoderBusyException.class)
+    public ResponseEntity<HttpResponse> passwordEncoderBusyException(PasswordEncoderBusyException exception) {
+        return createHttpResponse(SERVICE_UNAVAILABLE, exception.getMessage());
+    }
+
     @ExceptionHandler(HttpRequestMethodNotSupportedException.class)
     public ResponseEntity<HttpResponse> methodNotSupportedException(HttpRequestMethodNotSupportedException exception) {
         HttpMethod supportedMethod = Objects.requireNonNull(exception.getSupportedHttpMethods()).iterator().next();
@@ -108,6 +140,27 @@ public class ExceptionHandling implements ErrorController {
         return createHttpResponse(NOT_FOUND, exception.getMessage());
     }
 
+    @ExceptionHandler(ImageNotFoundException.class)
+    public ResponseEntity<HttpResponse> imageNotFoundException(ImageNotFoundException exception) {
+        return createHttpResponse(NOT_FOUND, exception.getMessage());
+    }
+
+    @ExceptionHandler(InvalidImageException.class)
+    public ResponseEntity<HttpResponse> invalidImageException(InvalidImageException exception) {
+        return createHttpResponse(UNSUPPORTED_MEDIA_TYPE, exception.getMessage());
+    }
+
+    @ExceptionHandler(ImageTooLargeException.class)
+    public ResponseEntity<HttpResponse> imageTooLargeException(ImageTooLargeException exception) {
+        return createHttpResponse(PAYLOAD_TOO_LARGE, exception.getMessage());
+    }
+
+    //spring.servlet.multipart.max-file-size, the multipart parser stopped reading at the limit
+    @ExceptionHandler(MaxUploadSizeExceededException.class)
+    public ResponseEntity<HttpResponse> maxUploadSizeExceededException() {
+        return createHttpResponse(PAYLOAD_TOO_LARGE, FILE_TOO_LARGE);
+    }
+
     @ExceptionHandler(IOException.class)
     public ResponseEntity<HttpResponse> iOException(IOException exception) {
         logger.error(exception.getMessage());
@@ -0,0 +1,7 @@
+package com.maputo.maputo.exception.domain;
+
+public class ImageNotFoundException extends Exception{
+    public ImageNotFoundException(String message) {
+        super(message);
+    }
+}
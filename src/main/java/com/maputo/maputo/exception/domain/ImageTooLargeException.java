@@ -0,0 +1,7 @@
+package com.maputo.maputo.exception.domain;
+
+public class ImageTooLargeException extends InvalidImageException{
+    public ImageTooLargeException(String message) {
+        super(message);
+    }
+}
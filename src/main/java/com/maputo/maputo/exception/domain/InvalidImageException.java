@@ -0,0 +1,8 @@
+package com.maputo.maputo.exception.domain;
+
+//not one of the ImageFormats, whatever the client called it
+public class InvalidImageException extends Exception{
+    public InvalidImageException(String message) {
+        super(message);
+    }
+}
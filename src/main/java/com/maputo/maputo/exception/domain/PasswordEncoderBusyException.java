@@ -0,0 +1,8 @@
+package com.maputo.maputo.exception.domain;
+
+//Unchecked because it is thrown from PasswordEncoder, which can't declare checked exceptions
+public class PasswordEncoderBusyException extends RuntimeException{
+    public PasswordEncoderBusyException() {
+        super("Server is busy, please try again in a moment");
+    }
+}
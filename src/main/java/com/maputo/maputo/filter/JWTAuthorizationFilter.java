@@ -1,11 +1,11 @@
 package com.maputo.maputo.filter;
 
 import com.maputo.maputo.constant.SecurityConstant;
+import com.maputo.maputo.domain.VerifiedToken;
 import com.maputo.maputo.utility.JWTTokenProvider;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
@@ -15,7 +15,6 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.List;
 
 import static com.maputo.maputo.constant.SecurityConstant.OPTIONS_HTTP_METHOD;
 import static com.maputo.maputo.constant.SecurityConstant.TOKEN_PREFIX;
@@ -47,11 +46,11 @@ public class JWTAuthorizationFilter extends OncePerRequestFilter {
             }
             //getting actual token without the prefix
             String token = authorizationHeader.substring(TOKEN_PREFIX.length());
-            String username = jwtTokenProvider.getSubject(token);
+            //verifying the token once, subject and authorities come from the same verified result
+            VerifiedToken verifiedToken = jwtTokenProvider.verify(token);
             //checking token if its valid and checking if user is already authenticated
-            if(jwtTokenProvider.isTokenValid(username,token) && SecurityContextHolder.getContext().getAuthentication() == null){
-                List<GrantedAuthority> authorities = jwtTokenProvider.getAuthorities(token);
-                Authentication authentication = jwtTokenProvider.getAuthentication(username, authorities, request);
+            if(jwtTokenProvider.isTokenValid(verifiedToken) && SecurityContextHolder.getContext().getAuthentication() == null){
+                Authentication authentication = jwtTokenProvider.getAuthentication(verifiedToken.getSubject(), verifiedToken.getAuthorities(), request);
                 SecurityContextHolder.getContext().setAuthentication(authentication);
             } else{
                 SecurityContextHolder.clearContext();
@@ -0,0 +1,188 @@
+package com.maputo.maputo.filter;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maputo.maputo.utility.TokenBucket;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.springframework.http.HttpHeaders.RETRY_AFTER;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+//Throttles the expensive public endpoints (BCrypt, database, SMTP) per client IP before anything else runs.
+//Rejected calls get a pre-built 429 and never touch the security context.
+//Idle buckets are dropped by a timer, never on a request. While the map is full, clients without a bucket of their own
+//share one per route group, so filling it with made up addresses slows down new clients instead of switching the limit off.
+//Behind a load balancer the client is the last X-Forwarded-For address that isn't one of rate-limit.trusted-proxies.
+@Component
+public class RateLimitFilter extends OncePerRequestFilter {
+    private static final String USER_PREFIX = "/user";
+    private static final String LOGIN = "/login";
+    private static final String REGISTER = "/register";
+    private static final String RESET_PASSWORD = "/resetpassword/";
+    private static final String X_FORWARDED_FOR = "X-Forwarded-For";
+    private static final byte[] TOO_MANY_REQUESTS_BODY = ("{\"httpStatusCode\":429,\"httpStatus\":\"TOO_MANY_REQUESTS\","
+            + "\"reason\":\"TOO MANY REQUESTS\",\"message\":\"Too many requests, please try again later\"}").getBytes(StandardCharsets.UTF_8);
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Limit> limits;
+    private final Map<String, TokenBucket> overflowBuckets = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private final int maximumBuckets;
+    private final Set<String> trustedProxies;
+    private final long sweepIntervalSeconds;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("rate-limit-sweeper").setDaemon(true).build());
+    private final Counter rejected;
+    private final Counter overflowed;
+
+    @Autowired
+    public RateLimitFilter(MeterRegistry meterRegistry,
+                           @Value("${rate-limit.enabled:true}") boolean enabled,
+                           @Value("${rate-limit.maximum-buckets:100000}") int maximumBuckets,
+                           @Value("${rate-limit.sweep-interval-seconds:10}") long sweepIntervalSeconds,
+                           @Value("${rate-limit.trusted-proxies:}") Set<String> trustedProxies,
+                           @Value("${rate-limit.login.burst:10}") int loginBurst,
+                           @Value("${rate-limit.login.per-minute:30}") int loginPerMinute,
+                           @Value("${rate-limit.register.burst:3}") int registerBurst,
+                           @Value("${rate-limit.register.per-minute:5}") int registerPerMinute,
+                           @Value("${rate-limit.reset-password.burst:3}") int resetPasswordBurst,
+                           @Value("${rate-limit.reset-password.per-minute:5}") int resetPasswordPerMinute) {
+        this.enabled = enabled;
+        this.maximumBuckets = maximumBuckets;
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+        this.trustedProxies = trustedProxies;
+        this.limits = Map.of(LOGIN, new Limit(loginBurst, loginPerMinute),
+                REGISTER, new Limit(registerBurst, registerPerMinute),
+                RESET_PASSWORD, new Limit(resetPasswordBurst, resetPasswordPerMinute));
+        this.rejected = Counter.builder("rate.limit.rejected").register(meterRegistry);
+        this.overflowed = Counter.builder("rate.limit.overflowed").description("Requests limited by a shared bucket because the map was full")
+                .register(meterRegistry);
+        Gauge.builder("rate.limit.buckets", buckets, Map::size).register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        sweeper.scheduleWithFixedDelay(this::evictIdleBuckets, sweepIntervalSeconds, sweepIntervalSeconds, SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled || routeGroup(request) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        String routeGroup = routeGroup(request);
+        long now = System.nanoTime();
+        TokenBucket bucket = bucketFor(clientAddress(request) + routeGroup, routeGroup, now);
+        long wait = bucket.tryAcquire(now);
+        if (wait > 0) {
+            rejected.increment();
+            response.setStatus(TOO_MANY_REQUESTS.value());
+            response.setHeader(RETRY_AFTER, String.valueOf(Math.max(1, NANOSECONDS.toSeconds(wait))));
+            response.setContentType(APPLICATION_JSON_VALUE);
+            response.setContentLength(TOO_MANY_REQUESTS_BODY.length);
+            response.getOutputStream().write(TOO_MANY_REQUESTS_BODY);
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    private TokenBucket bucketFor(String key, String routeGroup, long now) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        Limit limit = limits.get(routeGroup);
+        //size() may be a little behind concurrent inserts, the map can go over by about the number of request threads
+        if (buckets.size() >= maximumBuckets) {
+            overflowed.increment();
+            return overflowBuckets.computeIfAbsent(routeGroup, k -> new TokenBucket(limit.burst, limit.nanosPerToken, now));
+        }
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(limit.burst, limit.nanosPerToken, now));
+    }
+
+    //a bucket that has refilled completely holds no state worth keeping
+    void evictIdleBuckets() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket.isIdle(now));
+    }
+
+    //X-Forwarded-For is only believed from a trusted proxy, read from the right: each proxy appends the address it got
+    //the request from, so the first one that isn't a trusted proxy is the client. Anything left of it is the client's to make up.
+    private String clientAddress(HttpServletRequest request) {
+        String address = request.getRemoteAddr();
+        if (!trustedProxies.contains(address)) {
+            return address;
+        }
+        String forwardedFor = request.getHeader(X_FORWARDED_FOR);
+        if (forwardedFor == null) {
+            return address;
+        }
+        String[] hops = forwardedFor.split(",");
+        for (int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+            if (!hop.isEmpty()) {
+                address = hop;
+                if (!trustedProxies.contains(hop)) {
+                    break;
+                }
+            }
+        }
+        return address;
+    }
+
+    //the controller is mapped under both "/user" and "/"
+    private static String routeGroup(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (path.startsWith(USER_PREFIX)) {
+            path = path.substring(USER_PREFIX.length());
+        }
+        if (path.equals(LOGIN)) {
+            return LOGIN;
+        }
+        if (path.equals(REGISTER)) {
+            return REGISTER;
+        }
+        if (path.regionMatches(true, 0, RESET_PASSWORD, 0, RESET_PASSWORD.length())) {
+            return RESET_PASSWORD;
+        }
+        return null;
+    }
+
+    private static final class Limit {
+        private final int burst;
+        private final long nanosPerToken;
+
+        private Limit(int burst, int perMinute) {
+            this.burst = burst;
+            this.nanosPerToken = SECONDS.toNanos(60) / perMinute;
+        }
+    }
+}
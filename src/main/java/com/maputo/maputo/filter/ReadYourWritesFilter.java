@@ -0,0 +1,66 @@
+package com.maputo.maputo.filter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.maputo.maputo.utility.ReadYourWrites;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+//Sends the requests of whoever just wrote to the primary for a few seconds, so they don't read a replica
+//that hasn't caught up with their own change yet. Logged in users are tracked by username, anyone else by IP,
+//which covers register and then login from the same client.
+//Only this node knows about the write, a request that lands on another node can still read stale data.
+@Component
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+    private static final String USER_KEY = "user:";
+    private static final String ADDRESS_KEY = "ip:";
+    private final boolean enabled;
+    private final Cache<String, Boolean> recentWriters;
+
+    @Autowired
+    public ReadYourWritesFilter(MeterRegistry meterRegistry,
+                                @Value("${replica-datasource.enabled:false}") boolean enabled,
+                                @Value("${replica-datasource.read-your-writes-seconds:5}") long readYourWritesSeconds,
+                                @Value("${replica-datasource.maximum-pinned:100000}") long maximumPinned) {
+        this.enabled = enabled;
+        this.recentWriters = CacheBuilder.newBuilder().maximumSize(maximumPinned)
+                .expireAfterWrite(readYourWritesSeconds, SECONDS).build();
+        Gauge.builder("read.your.writes.pinned", recentWriters, Cache::size)
+                .description("Users and addresses currently reading from the primary").register(meterRegistry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        String address = ADDRESS_KEY + request.getRemoteAddr();
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String user = authentication != null && authentication.isAuthenticated() ? USER_KEY + authentication.getName() : null;
+        ReadYourWrites.begin(recentWriters.getIfPresent(address) != null || (user != null && recentWriters.getIfPresent(user) != null));
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (ReadYourWrites.hasWritten()) {
+                recentWriters.put(user != null ? user : address, Boolean.TRUE);
+            }
+            ReadYourWrites.end();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.maputo.maputo.listener;
 
 import com.maputo.maputo.service.LoginAttemptService;
+import com.maputo.maputo.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.event.EventListener;
 import org.springframework.security.authentication.event.AuthenticationFailureBadCredentialsEvent;
@@ -11,10 +12,12 @@ import java.util.concurrent.ExecutionException;
 @Component
 public class AuthenticationFailureListener {
     private LoginAttemptService attemptService;
+    private UserService userService;
 
     @Autowired
-    public AuthenticationFailureListener(LoginAttemptService attemptService) {
+    public AuthenticationFailureListener(LoginAttemptService attemptService, UserService userService) {
         this.attemptService = attemptService;
+        this.userService = userService;
     }
 
     @EventListener
@@ -22,7 +25,10 @@ public class AuthenticationFailureListener {
         Object principal = event.getAuthentication().getPrincipal();
         if(principal instanceof String){
             String username = (String) event.getAuthentication().getPrincipal();
-            attemptService.addUserToLoginAttemptCache(username);
+            //blocked right away instead of by the next login, validateLoginAttempt still catches attempts counted elsewhere
+            if (attemptService.addAttemptAndCheckLimitReached(username)) {
+                userService.blockUser(username);
+            }
         }
     }
 }
@@ -1,6 +1,5 @@
 package com.maputo.maputo.listener;
 
-import com.maputo.maputo.domain.User;
 import com.maputo.maputo.domain.UserPrincipal;
 import com.maputo.maputo.service.LoginAttemptService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -2,8 +2,44 @@ package com.maputo.maputo.repository;
 
 import com.maputo.maputo.domain.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 
-public interface UserRepository extends JpaRepository<User, Long> {
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.List;
+
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+
+public interface UserRepository extends JpaRepository<User, Long>, UserRepositoryCustom {
+    //not cached, login checks the password and block state of the row as it is now, whichever node changed it
     User findUserByUsername(String username);
+    //the query cache keeps email -> id, the row itself comes from the entity cache
+    @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
     User findUserByEmail(String email);
+
+    //for resetPassword, the copy in the second-level cache may be up to ttl-seconds behind another node
+    @Query("select u from User u where u.email = :email")
+    User findUncachedUserByEmail(@Param("email") String email);
+
+    //taken usernames and emails of an import chunk, one query per chunk instead of two per row
+    @Query("select u.username, u.email from User u where u.username in :usernames or u.email in :emails")
+    List<Object[]> findUsernamesAndEmails(@Param("usernames") Collection<String> usernames, @Param("emails") Collection<String> emails);
+
+    //every row that validateNewUsernameAndEmail cares about in one round trip, null parameters match nothing.
+    //Not cached, updateUser and updateProfileImage write the current user they return
+    @Query("select u from User u where u.username = :currentUsername or u.username = :newUsername or u.email = :newEmail")
+    List<User> findConflictingUsers(@Param("currentUsername") String currentUsername, @Param("newUsername") String newUsername,
+                                    @Param("newEmail") String newEmail);
+
+    //a bulk update, Hibernate drops the cached users and queries along with it
+    @Modifying
+    @Query("update versioned User u set u.password = :password where u.username = :username")
+    int updatePassword(@Param("username") String username, @Param("password") String password);
+
+    @Modifying
+    @Query("update versioned User u set u.isNotBlocked = false where u.username = :username and u.isNotBlocked = true")
+    int block(@Param("username") String username);
 }
@@ -0,0 +1,16 @@
+package com.maputo.maputo.repository;
+
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserFilter;
+import com.maputo.maputo.domain.UserView;
+
+import java.util.List;
+
+//Queries that are built at runtime, implemented in UserRepositoryImpl
+public interface UserRepositoryCustom {
+    //users with id > afterId (all when null) matching the filter, ordered by id
+    List<UserView> findPage(Long afterId, int limit, UserFilter filter);
+
+    //by the username natural id, answered from the second-level cache when both the id and the row are cached
+    User findUserByNaturalId(String username);
+}
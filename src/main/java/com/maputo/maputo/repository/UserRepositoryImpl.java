@@ -0,0 +1,71 @@
+package com.maputo.maputo.repository;
+
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserFilter;
+import com.maputo.maputo.domain.UserView;
+import com.maputo.maputo.enumeration.Role;
+import com.maputo.maputo.utility.AuthorityMask;
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import java.util.ArrayList;
+import java.util.List;
+
+//Keyset pagination: "where id > :after order by id limit n" reads n rows from the index wherever the page is,
+//unlike offset paging which has to walk past every earlier row
+public class UserRepositoryImpl implements UserRepositoryCustom {
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<UserView> findPage(Long afterId, int limit, UserFilter filter) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<UserView> query = cb.createQuery(UserView.class);
+        Root<User> user = query.from(User.class);
+        List<Predicate> predicates = new ArrayList<>();
+        if (afterId != null) {
+            predicates.add(cb.greaterThan(user.get("id"), afterId));
+        }
+        if (filter.getRole() != null) {
+            predicates.add(cb.equal(user.get("role"), filter.getRole()));
+        }
+        if (filter.getAuthority() != null) {
+            //an IN list of the masks with that bit is an index range scan, a bitwise AND would scan every row.
+            //Rows AuthorityMigration hasn't reached still have 0 and the authorities of their role, like User.getAuthorityMask()
+            List<Integer> masks = AuthorityMask.masksWith(filter.getAuthority());
+            predicates.add(masks.isEmpty() ? cb.disjunction() : cb.or(user.get("authorityMask").in(masks),
+                    cb.and(cb.equal(user.get("authorityMask"), 0), user.get("role").in(Role.namesWith(filter.getAuthority())))));
+        }
+        if (filter.getActive() != null) {
+            predicates.add(cb.equal(user.get("isActive"), filter.getActive()));
+        }
+        if (filter.getNotBlocked() != null) {
+            predicates.add(cb.equal(user.get("isNotBlocked"), filter.getNotBlocked()));
+        }
+        if (filter.getJoinedFrom() != null) {
+            predicates.add(cb.greaterThanOrEqualTo(user.get("joinDate"), filter.getJoinedFrom()));
+        }
+        if (filter.getJoinedTo() != null) {
+            predicates.add(cb.lessThan(user.get("joinDate"), filter.getJoinedTo()));
+        }
+        //in the order of the UserView constructor
+        query.select(cb.construct(UserView.class, user.get("id"), user.get("userId"), user.get("firstName"), user.get("lastName"),
+                        user.get("username"), user.get("email"), user.get("profileImageUrl"), user.get("lastLoginDate"),
+                        user.get("lastLoginDateDisplay"), user.get("joinDate"), user.get("role"), user.get("authorityMask"), user.get("isActive"), user.get("isNotBlocked")))
+                .where(predicates.toArray(new Predicate[0])).orderBy(cb.asc(user.get("id")));
+        return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+
+    //the Session has to be the transaction's, unwrapping the shared EntityManager outside of one gives a closed Session
+    @Override
+    @Transactional(readOnly = true)
+    public User findUserByNaturalId(String username) {
+        return entityManager.unwrap(Session.class).bySimpleNaturalId(User.class).load(username);
+    }
+}
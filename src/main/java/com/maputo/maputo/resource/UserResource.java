@@ -1,35 +1,70 @@
 package com.maputo.maputo.resource;
 
+import com.maputo.maputo.domain.Avatar;
 import com.maputo.maputo.domain.HttpResponse;
+import com.maputo.maputo.domain.ProfileImage;
+import com.maputo.maputo.domain.ImportReport;
 import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserFilter;
+import com.maputo.maputo.domain.UserPage;
 import com.maputo.maputo.domain.UserPrincipal;
+import com.maputo.maputo.domain.UserSearchPage;
+import com.maputo.maputo.domain.UserSearchResult;
+import com.maputo.maputo.domain.UserView;
+import com.maputo.maputo.enumeration.ExportFormat;
 import com.maputo.maputo.exception.domain.*;
+import com.maputo.maputo.service.AvatarService;
+import com.maputo.maputo.service.ImageStore;
+import com.maputo.maputo.service.LoginTimestampRecorder;
+import com.maputo.maputo.service.ProfileImageService;
+import com.maputo.maputo.service.ThumbnailService;
+import com.maputo.maputo.service.UserExportService;
+import com.maputo.maputo.service.UserImportService;
+import com.maputo.maputo.service.UserSearchService;
 import com.maputo.maputo.service.UserService;
+import com.maputo.maputo.utility.ByteBufferResource;
 import com.maputo.maputo.utility.JWTTokenProvider;
+import org.apache.catalina.Globals;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.WebAsyncTask;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import javax.mail.MessagingException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.maputo.maputo.constant.FileConstant.*;
 import static com.maputo.maputo.constant.SecurityConstant.JWT_TOKEN_HEADER;
+import static com.maputo.maputo.constant.SecurityConstant.NEXT_CURSOR_HEADER;
+import static com.maputo.maputo.constant.SecurityConstant.NEXT_PAGE_HEADER;
+import static org.springframework.format.annotation.DateTimeFormat.ISO.DATE;
 import static org.springframework.http.HttpStatus.*;
-import static org.springframework.http.MediaType.IMAGE_JPEG_VALUE;
+import static org.springframework.http.MediaType.IMAGE_PNG_VALUE;
 
 @RestController
 @RequestMapping(path = {"/user","/"})
@@ -39,49 +74,81 @@ public class UserResource extends ExceptionHandling {
     private UserService userService;
     private AuthenticationManager authenticationManager;
     private JWTTokenProvider tokenProvider;
+    private UserExportService userExportService;
+    private UserImportService userImportService;
+    private UserSearchService userSearchService;
+    private ProfileImageService profileImageService;
+    private ThumbnailService thumbnailService;
+    private AvatarService avatarService;
+    private ImageStore imageStore;
+    private LoginTimestampRecorder loginTimestampRecorder;
+    private long versionedImageMaxAgeDays;
+    private long sendfileMinimumBytes;
+    private long maximumUploadBytes;
+    private long exportTimeoutMillis;
 
     @Autowired
-    public UserResource(UserService userService, AuthenticationManager authenticationManager, JWTTokenProvider tokenProvider) {
+    public UserResource(UserService userService, AuthenticationManager authenticationManager, JWTTokenProvider tokenProvider, UserExportService userExportService,
+                        UserImportService userImportService, UserSearchService userSearchService, ProfileImageService profileImageService,
+                        ThumbnailService thumbnailService, AvatarService avatarService, ImageStore imageStore,
+                        LoginTimestampRecorder loginTimestampRecorder,
+                        @Value("${profile-image.versioned-max-age-days:365}") long versionedImageMaxAgeDays,
+                        @Value("${profile-image.sendfile-minimum-bytes:49152}") long sendfileMinimumBytes,
+                        @Value("${profile-image.upload.maximum-bytes:5242880}") long maximumUploadBytes,
+                        @Value("${user-export.timeout-minutes:60}") long exportTimeoutMinutes) {
         this.userService = userService;
         this.authenticationManager = authenticationManager;
         this.tokenProvider = tokenProvider;
+        this.userExportService = userExportService;
+        this.userImportService = userImportService;
+        this.userSearchService = userSearchService;
+        this.profileImageService = profileImageService;
+        this.thumbnailService = thumbnailService;
+        this.avatarService = avatarService;
+        this.imageStore = imageStore;
+        this.loginTimestampRecorder = loginTimestampRecorder;
+        this.versionedImageMaxAgeDays = versionedImageMaxAgeDays;
+        this.sendfileMinimumBytes = sendfileMinimumBytes;
+        this.maximumUploadBytes = maximumUploadBytes;
+        this.exportTimeoutMillis = TimeUnit.MINUTES.toMillis(exportTimeoutMinutes);
     }
 
     @PostMapping("/register")
-    public ResponseEntity<User> register(@RequestBody User user) throws UserNotFoundException, EmailExistException, UsernameExistException, MessagingException {
+    public ResponseEntity<UserView> register(@RequestBody User user) throws UserNotFoundException, EmailExistException, UsernameExistException, MessagingException {
         User newUser = userService.register(user.getFirstName(), user.getLastName(), user.getUsername(), user.getEmail());
-        return new ResponseEntity<>(newUser, OK);
+        return new ResponseEntity<>(UserView.from(newUser), OK);
 
     }
     @PostMapping("/login")
-    public ResponseEntity<User> login(@RequestBody User user){
+    public ResponseEntity<UserView> login(@RequestBody User user){
         //If authentication will not proceed I throw an exception
-        authenticate(user.getUsername(), user.getPassword());
-        //If everything is ok I get that user by username
-        User loginUser = userService.findUserByUsername(user.getUsername());
-        //Then pass userPrincipal
-        UserPrincipal userPrincipal = new UserPrincipal(loginUser);
+        Authentication authentication = authenticate(user.getUsername(), user.getPassword());
+        //If everything is ok I reuse the principal authentication already loaded instead of querying the user again
+        UserPrincipal userPrincipal = (UserPrincipal) authentication.getPrincipal();
+        User loginUser = userPrincipal.getUser();
         //And pass the jwtHeader
         HttpHeaders jwtHeader=getJwtHeader(userPrincipal);
-        return new ResponseEntity<>(loginUser, jwtHeader, OK);
+        //recorded here rather than in loadUserByUsername so logins served from the user cache count too. The principal's
+        //user may be the one shared by the user cache, this login's dates only go into the view
+        return new ResponseEntity<>(loginTimestampRecorder.recordLogin(UserView.from(loginUser)), jwtHeader, OK);
 
     }
 
     @PostMapping("/add")
-    public ResponseEntity<User> addNewUser(@RequestParam("firstName") String firstName,
+    public ResponseEntity<UserView> addNewUser(@RequestParam("firstName") String firstName,
                                            @RequestParam("lastName") String lastName,
                                            @RequestParam("username") String username,
                                            @RequestParam("email") String email,
                                            @RequestParam("role") String role,
                                            @RequestParam("isActive") String isActive, //"true"
                                            @RequestParam("isNonLocked") String isNonLocked, //"true"
-                                           @RequestParam(value = "profileImg", required = false) MultipartFile profileImg) throws UserNotFoundException, EmailExistException, IOException, UsernameExistException {
+                                           @RequestParam(value = "profileImg", required = false) MultipartFile profileImg) throws UserNotFoundException, EmailExistException, IOException, UsernameExistException, InvalidImageException {
     User user = userService.addNewUser(firstName,lastName,username,email,role,Boolean.parseBoolean(isNonLocked),Boolean.parseBoolean(isActive),profileImg);
-    return new ResponseEntity<>(user, OK);
+    return new ResponseEntity<>(UserView.from(user), OK);
     }
 
     @PostMapping("/update")
-    public ResponseEntity<User> updateUser(@RequestParam("currentUsername") String currentUsername,
+    public ResponseEntity<UserView> updateUser(@RequestParam("currentUsername") String currentUsername,
                                            @RequestParam("firstName") String firstName,
                                            @RequestParam("lastName") String lastName,
                                            @RequestParam("username") String username,
@@ -89,50 +156,168 @@ public class UserResource extends ExceptionHandling {
                                            @RequestParam("role") String role,
                                            @RequestParam("isActive") String isActive, //"true"
                                            @RequestParam("isNonLocked") String isNonLocked, //"true"
-                                           @RequestParam(value = "profileImg", required = false) MultipartFile profileImg) throws UserNotFoundException, EmailExistException, IOException, UsernameExistException {
+                                           @RequestParam(value = "profileImg", required = false) MultipartFile profileImg) throws UserNotFoundException, EmailExistException, IOException, UsernameExistException, InvalidImageException {
         User user = userService.updateUser(currentUsername,firstName,lastName,username,email,role,Boolean.parseBoolean(isNonLocked),Boolean.parseBoolean(isActive),profileImg);
-        return new ResponseEntity<>(user, OK);
+        return new ResponseEntity<>(UserView.from(user), OK);
     }
     @PostMapping("/updateProfileImage")
-    public ResponseEntity<User> updateProfileImage(@RequestParam("username") String username,@RequestParam(value = "profileImg") MultipartFile profileImg) throws UserNotFoundException, EmailExistException, IOException, UsernameExistException {
+    public ResponseEntity<UserView> updateProfileImage(@RequestParam("username") String username,@RequestParam(value = "profileImg") MultipartFile profileImg) throws UserNotFoundException, EmailExistException, IOException, UsernameExistException, InvalidImageException {
         User user = userService.updateProfileImage(username, profileImg);
-        return new ResponseEntity<>(user, OK);
-    }
-
-    @GetMapping(path="/image/{username}/{filename}",produces = IMAGE_JPEG_VALUE)
-    public byte[] getProfileImage(@PathVariable("username") String username,@PathVariable("filename") String filename) throws IOException {
-        //go to the specific folder read its bytes and return it to the browser
-        return Files.readAllBytes(Paths.get(USER_FOLDER + username + FORWARD_SLASH + filename));
-        //"user.home" + "supportportal/user/rick/rick.jpg"
-    }
-
-    @GetMapping(path="/image/profile/{username}",produces = IMAGE_JPEG_VALUE)
-    public byte[] getProfileTempImage(@PathVariable("username") String username) throws IOException {
-        URL url = new URL(TEMP_PROFILE_IMAGE_BASE_URL + username);
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();//capture stream in bytes
-        try (InputStream inputStream = url.openStream()) {
-            //from the opened url stream
-            int bytesRead;
-            //read that many bytes at a time
-            byte[] chunk = new byte[1024];
-            while ((bytesRead = inputStream.read(chunk)) > 0) {
-                //give me that many time bytes until we are done
-                byteArrayOutputStream.write(chunk, 0, bytesRead);
-            }
-            return byteArrayOutputStream.toByteArray();
+        return new ResponseEntity<>(UserView.from(user), OK);
+    }
+
+    //The image as the whole request body, streamed into the store as it arrives instead of parsed into a multipart file first.
+    //A Content-Length over the limit is refused before anything is read, without one the store stops reading at the limit.
+    //Read before the user's transaction begins, a slow client must not hold a pooled connection for the whole upload.
+    //The reference taken by the store is dropped again when the user can't be updated.
+    @PutMapping(path = "/updateProfileImage", consumes = "image/*")
+    public ResponseEntity<UserView> putProfileImage(@RequestParam("username") String username, HttpServletRequest request) throws UserNotFoundException, EmailExistException, IOException, UsernameExistException, InvalidImageException {
+        if (request.getContentLengthLong() > maximumUploadBytes) {
+            throw new ImageTooLargeException(String.format(IMAGE_TOO_LARGE, maximumUploadBytes));
+        }
+        String image = imageStore.add(request.getInputStream());
+        User user;
+        try {
+            user = userService.updateStoredProfileImage(username, image);
+        } catch (UserNotFoundException | EmailExistException | UsernameExistException | RuntimeException e) {
+            imageStore.release(image);
+            throw e;
+        }
+        return new ResponseEntity<>(UserView.from(user), OK);
+    }
+
+    //The profileImageUrl of an upload names the image by its content, so whatever is served under it can be cached for good.
+    //?size= picks the smallest thumbnail at least that wide, the original stands in until it has been made.
+    @GetMapping(path="/image/{filename}")
+    public ResponseEntity<Resource> getStoredImage(@PathVariable("filename") String filename,
+                                                   @RequestParam(value = IMAGE_SIZE_PARAM, required = false) Integer size,
+                                                   ServletWebRequest webRequest) throws IOException, ImageNotFoundException {
+        Path path = imageStore.locate(filename);
+        if (path == null) {
+            throw new ImageNotFoundException(NO_IMAGE_FOUND + filename);
+        }
+        return sendImage(profileImageService.findProfileImage(path), true, size, webRequest);
+    }
+
+    //Images uploaded before the image store, until ProfileImageMigration has moved them. Their URL carries ?v=,
+    //which changed with every upload, only a ?v= of the file that is there now is cached for good. An old or made up
+    //one gets the current file revalidated, else it would stay cached under that URL after the next upload.
+    @GetMapping(path="/image/{username}/{filename}")
+    public ResponseEntity<Resource> getProfileImage(@PathVariable("username") String username, @PathVariable("filename") String filename,
+                                                    @RequestParam(value = IMAGE_VERSION_PARAM, required = false) String version,
+                                                    @RequestParam(value = IMAGE_SIZE_PARAM, required = false) Integer size,
+                                                    ServletWebRequest webRequest) throws IOException, ImageNotFoundException {
+        ProfileImage image = profileImageService.findProfileImage(username, filename, version);
+        return sendImage(image, image.getVersion().equals(version), size, webRequest);
+    }
+
+    //Hot images come from memory, the others are streamed from the file: full responses of larger images go out through
+    //the connector's sendfile, the rest as a Resource, which is also how Spring answers Range requests.
+    private ResponseEntity<Resource> sendImage(ProfileImage image, boolean immutable, Integer size, ServletWebRequest webRequest) throws IOException {
+        boolean standIn = false;
+        if (size != null) {
+            ProfileImage thumbnail = thumbnailService.findThumbnail(image, size);
+            standIn = thumbnail == null;
+            image = standIn ? image : thumbnail;
+        }
+        //immutable keeps browsers from revalidating even on reload,
+        //but the original standing in for a thumbnail must not stay cached under the thumbnail's URL
+        String cacheControl = !immutable || standIn ? CacheControl.noCache().cachePublic().getHeaderValue()
+                : CacheControl.maxAge(versionedImageMaxAgeDays, TimeUnit.DAYS).cachePublic().getHeaderValue() + ", immutable";
+        webRequest.getResponse().setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        //adds ETag and Last-Modified, and answers 304 when the browser's copy is still current
+        if (webRequest.checkNotModified(image.getETag(), image.getLastModified())) {
+            return null;
+        }
+        String filename = image.getPath().getFileName().toString();
+        MediaType mediaType = MediaTypeFactory.getMediaType(filename).orElse(MediaType.IMAGE_JPEG);
+        if (image.isInMemory()) {
+            return ResponseEntity.ok().contentType(mediaType).body(new ByteBufferResource(image.getContent(), filename));
+        }
+        HttpServletRequest request = webRequest.getRequest();
+        long length = image.getLength();
+        if (length >= sendfileMinimumBytes && HttpMethod.GET.matches(request.getMethod()) && request.getHeader(HttpHeaders.RANGE) == null
+                && Boolean.TRUE.equals(request.getAttribute(Globals.SENDFILE_SUPPORTED_ATTR))) {
+            //Tomcat writes the file straight from the page cache to the socket once the headers are out
+            request.setAttribute(Globals.SENDFILE_FILENAME_ATTR, image.getPath().toString());
+            request.setAttribute(Globals.SENDFILE_FILE_START_ATTR, 0L);
+            request.setAttribute(Globals.SENDFILE_FILE_END_ATTR, length);
+            return ResponseEntity.ok().contentType(mediaType).contentLength(length).header(HttpHeaders.ACCEPT_RANGES, "bytes").build();
         }
+        return ResponseEntity.ok().contentType(mediaType).body(new FileSystemResource(image.getPath()));
+    }
+
+    @GetMapping(path="/image/profile/{username}",produces = IMAGE_PNG_VALUE)
+    public ResponseEntity<byte[]> getProfileTempImage(@PathVariable("username") String username, ServletWebRequest webRequest) throws IOException {
+        //drawn from the username, the same name always gets the same picture so it can be cached for good
+        Avatar avatar = avatarService.getAvatar(username);
+        webRequest.getResponse().setHeader(HttpHeaders.CACHE_CONTROL,
+                CacheControl.maxAge(versionedImageMaxAgeDays, TimeUnit.DAYS).cachePublic().getHeaderValue() + ", immutable");
+        if (webRequest.checkNotModified(avatar.getETag())) {
+            return null;
+        }
+        return ResponseEntity.ok().contentType(MediaType.IMAGE_PNG).body(avatar.getContent());
     }
 
     @GetMapping("/find/{username}")
-    public ResponseEntity<User> getUser(@PathVariable("username") String username){
-        User user=userService.findUserByUsername(username);
+    public ResponseEntity<UserView> getUser(@PathVariable("username") String username){
+        UserView user=userService.findUserByUsername(username);
         return new ResponseEntity<>(user,OK);
     }
 
     @GetMapping("/list")
-    public ResponseEntity<List<User>> getUsers(){
-        List<User> users=userService.getUsers();
-        return new ResponseEntity<>(users, OK);
+    public ResponseEntity<List<UserView>> getUsers(@RequestParam(value = "after", required = false) Long after,
+                                               @RequestParam(value = "size", required = false) Integer size,
+                                               @RequestParam(value = "role", required = false) String role,
+                                               @RequestParam(value = "authority", required = false) String authority,
+                                               @RequestParam(value = "active", required = false) Boolean active,
+                                               @RequestParam(value = "notBlocked", required = false) Boolean notBlocked,
+                                               @RequestParam(value = "joinedFrom", required = false) @DateTimeFormat(iso = DATE) Date joinedFrom,
+                                               @RequestParam(value = "joinedTo", required = false) @DateTimeFormat(iso = DATE) Date joinedTo){
+        //body stays a plain list, the cursor for the next page goes in a header
+        UserPage page=userService.getUsers(after, size, new UserFilter(role == null ? null : role.toUpperCase(), authority, active, notBlocked, joinedFrom, joinedTo));
+        HttpHeaders headers = new HttpHeaders();
+        if(page.getNextCursor() != null){
+            headers.add(NEXT_CURSOR_HEADER, page.getNextCursor().toString());
+        }
+        return new ResponseEntity<>(page.getUsers(), headers, OK);
+    }
+
+    //type-ahead over username, first name, last name and email, answered from memory
+    @GetMapping("/search")
+    public ResponseEntity<List<UserSearchResult>> searchUsers(@RequestParam("q") String query,
+                                                              @RequestParam(value = "page", required = false) Integer page,
+                                                              @RequestParam(value = "size", required = false) Integer size){
+        UserSearchPage result=userSearchService.search(query, page, size);
+        HttpHeaders headers = new HttpHeaders();
+        if(result.hasMore()){
+            headers.add(NEXT_PAGE_HEADER, String.valueOf((page == null ? 0 : page) + 1));
+        }
+        return new ResponseEntity<>(result.getUsers(), headers, OK);
+    }
+
+    //whole directory as ndjson or csv, written row by row while the database is read. The task carries the export's own
+    //timeout, every other async request keeps spring.mvc.async.request-timeout
+    @GetMapping("/export")
+    @PreAuthorize("hasAnyAuthority('user:create')")
+    public WebAsyncTask<Void> exportUsers(@RequestParam(value = "format", defaultValue = "ndjson") String format, HttpServletResponse response){
+        ExportFormat exportFormat = ExportFormat.valueOf(format.toUpperCase());
+        response.setContentType(exportFormat.getContentType());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"users." + exportFormat.getExtension() + "\"");
+        return new WebAsyncTask<>(exportTimeoutMillis, () -> {
+            userExportService.export(exportFormat, response.getOutputStream());
+            return null;
+        });
+    }
+
+    //bulk version of /add, the body is read as a stream in the same formats /export writes
+    @PostMapping("/import")
+    @PreAuthorize("hasAnyAuthority('user:create')")
+    public ResponseEntity<ImportReport> importUsers(@RequestParam(value = "format", defaultValue = "ndjson") String format,
+                                                    InputStream body) throws IOException {
+        ExportFormat importFormat = ExportFormat.valueOf(format.toUpperCase());
+        String profileImageBaseUrl = ServletUriComponentsBuilder.fromCurrentContextPath().path(DEFAULT_USER_IMAGE_PATH).toUriString();
+        return new ResponseEntity<>(userImportService.importUsers(importFormat, body, profileImageBaseUrl), OK);
     }
 
     @PostMapping("/resetPassword/{email}")
@@ -159,7 +344,7 @@ public class UserResource extends ExceptionHandling {
         return headers;
     }
 
-    private void authenticate(String username, String password) {
-        authenticationManager.authenticate(new UsernamePasswordAuthenticationToken(username,password));
+    private Authentication authenticate(String username, String password) {
+        return authenticationManager.authenticate(new UsernamePasswordAuthenticationToken(username,password));
     }
 }
@@ -0,0 +1,130 @@
+package com.maputo.maputo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.enumeration.Role;
+import com.maputo.maputo.utility.AuthorityMask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManagerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//Copies the old serialized String[] "authorities" column into authority_mask while the application is already serving.
+//Until a row is migrated its mask is 0 and User falls back to the authorities of its role, which is what every code path
+//stored anyway. Migrated rows get authorities = NULL, so the job can stop and resume at any time and on any node.
+//Once it logs that it is done the old column can be dropped. Migrated users are evicted from the second-level cache,
+//a cached copy would still have mask 0.
+@Component
+public class AuthorityMigration {
+    private static final String SELECT_PENDING = "SELECT id, role, authorities FROM user WHERE authority_mask = 0 AND authorities IS NOT NULL AND id > ? ORDER BY id LIMIT ?";
+    //authority_mask = 0 again so a mask written by the application in the meantime wins
+    private static final String UPDATE_MASK = "UPDATE user SET authority_mask = ?, authorities = NULL WHERE id = ? AND authority_mask = 0";
+    //the blob only ever held a String[], nothing else may be deserialized from it
+    private static final ObjectInputFilter STRING_ARRAY_ONLY = ObjectInputFilter.Config.createFilter("java.lang.String;!*");
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final JdbcTemplate jdbcTemplate;
+    private final EntityManagerFactory entityManagerFactory;
+    private final boolean enabled;
+    private final int batchSize;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("authority-migration").setDaemon(true).build());
+
+    @Autowired
+    public AuthorityMigration(JdbcTemplate jdbcTemplate, EntityManagerFactory entityManagerFactory,
+                              @Value("${authority-migration.enabled:true}") boolean enabled,
+                              @Value("${authority-migration.batch-size:500}") int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.entityManagerFactory = entityManagerFactory;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (enabled) {
+            executor.execute(() -> {
+                try {
+                    migrate();
+                } catch (RuntimeException e) {
+                    logger.error("Authority migration stopped, it continues on the next start: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    //returns the number of rows migrated
+    public long migrate() {
+        long migrated = 0;
+        long lastId = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Object[]> updates = new ArrayList<>(batchSize);
+            List<Long> ids = new ArrayList<>(batchSize);
+            try {
+                jdbcTemplate.query(SELECT_PENDING, resultSet -> {
+                    long id = resultSet.getLong(1);
+                    ids.add(id);
+                    updates.add(new Object[]{toMask(id, resultSet.getString(2), resultSet.getBytes(3)), id});
+                }, lastId, batchSize);
+            } catch (BadSqlGrammarException e) {
+                //no authorities column: a new database, or the column has been dropped already
+                return migrated;
+            }
+            if (ids.isEmpty()) {
+                break;
+            }
+            jdbcTemplate.batchUpdate(UPDATE_MASK, updates);
+            ids.forEach(id -> entityManagerFactory.getCache().evict(User.class, id));
+            migrated += ids.size();
+            lastId = ids.get(ids.size() - 1);
+        }
+        if (migrated > 0) {
+            logger.info("Migrated authorities of {} users, the authorities column is no longer used", migrated);
+        }
+        return migrated;
+    }
+
+    private int toMask(long id, String role, byte[] serialized) {
+        int mask = AuthorityMask.toMask(deserialize(serialized));
+        if (mask != AuthorityMask.UNMAPPED && mask != 0) {
+            return mask;
+        }
+        //unreadable, empty or unknown authorities: the role is the best we have
+        logger.warn("User " + id + " has no usable authorities, using the authorities of " + role);
+        try {
+            return role == null ? 0 : Role.valueOf(role).getAuthorityMask();
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    private String[] deserialize(byte[] serialized) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            in.setObjectInputFilter(STRING_ARRAY_ONLY);
+            Object value = in.readObject();
+            return value instanceof String[] ? (String[]) value : null;
+        } catch (IOException | ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
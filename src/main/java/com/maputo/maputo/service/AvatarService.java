@@ -0,0 +1,63 @@
+package com.maputo.maputo.service;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.maputo.maputo.domain.Avatar;
+import com.maputo.maputo.utility.IdenticonRenderer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+//Default profile pictures for /user/image/profile/{username}, drawn locally instead of fetched from robohash.
+//Only the most used ones are kept, in memory. Nothing goes to disk: the route is public and takes any name,
+//and drawing one again costs less than the file read would.
+//The cache loads each username once, requests that arrive while it is being drawn wait for that drawing.
+@Service
+public class AvatarService {
+    //part of the ETags, raise it when the drawing changes so nothing old is served
+    private static final int GENERATION = 1;
+    private final LoadingCache<String, Avatar> cache;
+    private final Timer renderTimer;
+
+    @Autowired
+    public AvatarService(MeterRegistry meterRegistry, @Value("${avatar.cache.maximum-size:10000}") long maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build(new CacheLoader<String, Avatar>() {
+            @Override
+            public Avatar load(String username) throws IOException {
+                return AvatarService.this.load(username);
+            }
+        });
+        this.renderTimer = Timer.builder("avatar.render").description("Avatars drawn because they were not in memory")
+                .register(meterRegistry);
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "avatars");
+    }
+
+    public Avatar getAvatar(String username) throws IOException {
+        try {
+            return cache.get(username);
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    private Avatar load(String username) throws IOException {
+        HashCode hash = Hashing.sha256().hashString(username, StandardCharsets.UTF_8);
+        //16 hex digits of the hash are plenty to tell two pictures apart
+        String eTag = "\"" + GENERATION + "-" + hash.toString().substring(0, 16) + "\"";
+        long start = System.nanoTime();
+        byte[] png = IdenticonRenderer.render(hash.asBytes());
+        renderTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return new Avatar(png, eTag);
+    }
+}
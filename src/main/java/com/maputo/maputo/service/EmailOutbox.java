@@ -0,0 +1,331 @@
+package com.maputo.maputo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.maputo.maputo.constant.EmailConstant.EMAIL_SUBJECT;
+import static com.maputo.maputo.constant.EmailConstant.NEW_PASSWORD_TEXT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+//Emails are written to the email_outbox table in the transaction that makes them necessary: a registration that rolls
+//back sends nothing, and one that commits does not wait for the mail server or lose its email when the server is down.
+//A dispatcher claims due rows in batches by stamping them with a token of its own for lease-seconds, so every node can
+//run one and the rows of a node that dies mid-batch are picked up once the lease runs out. A batch is sent over one
+//SMTP connection and delivered rows are deleted.
+//A failed send is retried after initial-backoff-seconds, doubled per attempt up to maximum-backoff-seconds. An email the
+//server refuses for good, or one that failed maximum-attempts times, is moved to email_dead_letter without its body,
+//the body carries a password.
+//For the same reason the body is stored encrypted with AES-GCM under a key from email-outbox.encryption-key, which is not
+//in the database: backups and replicas of email_outbox hold no passwords.
+@Service
+public class EmailOutbox {
+    private static final String CREATE_OUTBOX = "CREATE TABLE IF NOT EXISTS email_outbox (id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+            + "recipient VARCHAR(255) NOT NULL, subject VARCHAR(255) NOT NULL, body TEXT NOT NULL, attempts INT NOT NULL, "
+            + "created BIGINT NOT NULL, next_attempt BIGINT NOT NULL, claimed_by CHAR(36), claimed_until BIGINT NOT NULL, "
+            + "last_error VARCHAR(1000), INDEX email_outbox_next_attempt (next_attempt), INDEX email_outbox_claimed_by (claimed_by))";
+    private static final String CREATE_DEAD_LETTER = "CREATE TABLE IF NOT EXISTS email_dead_letter (id BIGINT NOT NULL PRIMARY KEY, "
+            + "recipient VARCHAR(255) NOT NULL, subject VARCHAR(255) NOT NULL, attempts INT NOT NULL, created BIGINT NOT NULL, "
+            + "failed BIGINT NOT NULL, last_error VARCHAR(1000))";
+    private static final String INSERT = "INSERT INTO email_outbox (recipient, subject, body, attempts, created, next_attempt, claimed_until) "
+            + "VALUES (?, ?, ?, 0, ?, ?, 0)";
+    private static final String CLAIM = "UPDATE email_outbox SET claimed_by = ?, claimed_until = ? "
+            + "WHERE next_attempt <= ? AND claimed_until <= ? ORDER BY id LIMIT ?";
+    private static final String SELECT_CLAIMED = "SELECT id, recipient, subject, body, attempts FROM email_outbox WHERE claimed_by = ?";
+    private static final String DELETE = "DELETE FROM email_outbox WHERE id = ? AND claimed_by = ?";
+    private static final String RETRY = "UPDATE email_outbox SET attempts = ?, next_attempt = ?, last_error = ?, claimed_by = NULL, "
+            + "claimed_until = 0 WHERE id = ? AND claimed_by = ?";
+    private static final String DEAD_LETTER = "INSERT INTO email_dead_letter (id, recipient, subject, attempts, created, failed, last_error) "
+            + "SELECT id, recipient, subject, ?, created, ?, ? FROM email_outbox WHERE id = ? AND claimed_by = ?";
+    private static final String SELECT_LAG = "SELECT COUNT(*), MIN(created) FROM email_outbox";
+    private static final int MAXIMUM_ERROR_LENGTH = 1000;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final EmailService emailService;
+    private final SecretKey bodyKey;
+    private final SecureRandom random = new SecureRandom();
+    private final int batchSize;
+    private final int maximumAttempts;
+    private final long initialBackoffMillis;
+    private final long maximumBackoffMillis;
+    private final long leaseMillis;
+    private final long pollIntervalMillis;
+    private final Timer sendTimer;
+    private final Counter sent;
+    private final Counter retried;
+    private final Counter deadLettered;
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong oldestCreated = new AtomicLong();
+    private final AtomicBoolean wakeUpScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("email-outbox-dispatcher").setDaemon(true).build());
+
+    @Autowired
+    public EmailOutbox(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+                       EmailService emailService,
+                       @Value("${email-outbox.batch-size:50}") int batchSize,
+                       @Value("${email-outbox.maximum-attempts:10}") int maximumAttempts,
+                       @Value("${email-outbox.initial-backoff-seconds:30}") long initialBackoffSeconds,
+                       @Value("${email-outbox.maximum-backoff-seconds:3600}") long maximumBackoffSeconds,
+                       @Value("${email-outbox.lease-seconds:300}") long leaseSeconds,
+                       @Value("${email-outbox.poll-interval-ms:5000}") long pollIntervalMillis,
+                       @Value("${email-outbox.encryption-key:${jwt.secret}}") String encryptionKey) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.emailService = emailService;
+        this.bodyKey = bodyKey(encryptionKey);
+        this.batchSize = batchSize;
+        this.maximumAttempts = maximumAttempts;
+        this.initialBackoffMillis = SECONDS.toMillis(initialBackoffSeconds);
+        this.maximumBackoffMillis = SECONDS.toMillis(maximumBackoffSeconds);
+        this.leaseMillis = SECONDS.toMillis(leaseSeconds);
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.sendTimer = Timer.builder("email.send").description("Time to hand one email to the SMTP server").register(meterRegistry);
+        this.sent = Counter.builder("email.outbox.sent").description("Emails delivered from the outbox").register(meterRegistry);
+        this.retried = Counter.builder("email.outbox.retried").description("Failed sends that will be tried again")
+                .register(meterRegistry);
+        this.deadLettered = Counter.builder("email.outbox.dead.lettered").description("Emails given up on")
+                .register(meterRegistry);
+        Gauge.builder("email.outbox.pending", pending, AtomicLong::get).description("Emails waiting in the outbox")
+                .register(meterRegistry);
+        Gauge.builder("email.outbox.lag", this, EmailOutbox::lagSeconds).description("Age of the oldest email waiting in the outbox")
+                .baseUnit("seconds").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        jdbcTemplate.execute(CREATE_OUTBOX);
+        jdbcTemplate.execute(CREATE_DEAD_LETTER);
+        dispatcher.scheduleWithFixedDelay(this::dispatchQuietly, pollIntervalMillis, pollIntervalMillis, MILLISECONDS);
+    }
+
+    //a malformed address fails here, in the transaction of the caller, rather than in the dispatcher
+    public void queueNewPasswordEmail(String firstName, String password, String email) throws AddressException {
+        queue(email, EMAIL_SUBJECT, String.format(NEW_PASSWORD_TEXT, firstName, password));
+    }
+
+    public void queue(String email, String subject, String text) throws AddressException {
+        InternetAddress.parse(email, false);
+        long now = System.currentTimeMillis();
+        jdbcTemplate.update(INSERT, email, subject, encrypt(text), now, now);
+        //sent as soon as the caller commits instead of on the next poll
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    wakeUp();
+                }
+            });
+        } else {
+            wakeUp();
+        }
+    }
+
+    private void wakeUp() {
+        if (wakeUpScheduled.compareAndSet(false, true)) {
+            dispatcher.execute(() -> {
+                wakeUpScheduled.set(false);
+                dispatchQuietly();
+            });
+        }
+    }
+
+    private void dispatchQuietly() {
+        try {
+            dispatch();
+        } catch (RuntimeException e) {
+            logger.error("Could not dispatch the email outbox, trying again in " + pollIntervalMillis + " ms: " + e.getMessage());
+        }
+    }
+
+    //sends every email that is due, batch after batch, returns how many were delivered
+    public synchronized int dispatch() {
+        int delivered = 0;
+        int claimed;
+        do {
+            String token = UUID.randomUUID().toString();
+            long now = System.currentTimeMillis();
+            claimed = jdbcTemplate.update(CLAIM, token, now + leaseMillis, now, now, batchSize);
+            List<QueuedEmail> emails = jdbcTemplate.query(SELECT_CLAIMED, (resultSet, rowNum) -> new QueuedEmail(resultSet.getLong(1),
+                    resultSet.getString(2), resultSet.getString(3), resultSet.getString(4), resultSet.getInt(5)), token);
+            //one connection for the whole batch
+            try (EmailService.Batch batch = emailService.openBatch()) {
+                for (QueuedEmail email : emails) {
+                    if (deliver(batch, email, token)) {
+                        delivered++;
+                    }
+                }
+            }
+        } while (claimed == batchSize);
+        refreshLag();
+        return delivered;
+    }
+
+    private boolean deliver(EmailService.Batch batch, QueuedEmail email, String token) {
+        long start = System.nanoTime();
+        try {
+            batch.send(email.recipient, email.subject, decrypt(email.body));
+        } catch (MessagingException | GeneralSecurityException | RuntimeException e) {
+            fail(email, token, e);
+            return false;
+        } finally {
+            sendTimer.record(System.nanoTime() - start, NANOSECONDS);
+        }
+        jdbcTemplate.update(DELETE, email.id, token);
+        sent.increment();
+        return true;
+    }
+
+    private void fail(QueuedEmail email, String token, Exception e) {
+        int attempts = email.attempts + 1;
+        long now = System.currentTimeMillis();
+        String error = e.toString();
+        if (error.length() > MAXIMUM_ERROR_LENGTH) {
+            error = error.substring(0, MAXIMUM_ERROR_LENGTH);
+        }
+        if (isPermanent(e) || attempts >= maximumAttempts) {
+            String lastError = error;
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.update(DEAD_LETTER, attempts, now, lastError, email.id, token);
+                jdbcTemplate.update(DELETE, email.id, token);
+            });
+            deadLettered.increment();
+            logger.error("Gave up on the email to " + email.recipient + " after " + attempts + " attempts: " + error);
+        } else {
+            jdbcTemplate.update(RETRY, attempts, now + backoffMillis(attempts), error, email.id, token);
+            retried.increment();
+            logger.warn("Could not send the email to " + email.recipient + ", attempt " + attempts + ": " + error);
+        }
+    }
+
+    //up to a quarter more at random, so a backlog left by an outage does not come back all at once
+    long backoffMillis(int attempts) {
+        long backoff = Math.min(maximumBackoffMillis, initialBackoffMillis << Math.min(attempts - 1, 30));
+        return backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+    }
+
+    //5xx replies about the message or its recipient are final, no connection, timeouts and 4xx replies may pass later.
+    //So is a body that doesn't decrypt, it was written under another key
+    static boolean isPermanent(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AddressException || cause instanceof GeneralSecurityException) {
+                return true;
+            }
+            if (cause instanceof SMTPAddressFailedException && ((SMTPAddressFailedException) cause).getReturnCode() >= 500) {
+                return true;
+            }
+            if (cause instanceof SMTPSendFailedException && ((SMTPSendFailedException) cause).getReturnCode() >= 500) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //base64 of a random IV followed by the ciphertext and its tag
+    private String encrypt(String text) {
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, bodyKey, new GCMParameterSpec(TAG_BITS, iv));
+            byte[] encrypted = cipher.doFinal(text.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(ByteBuffer.allocate(IV_LENGTH + encrypted.length).put(iv).put(encrypted).array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String decrypt(String body) throws GeneralSecurityException {
+        byte[] bytes = Base64.getDecoder().decode(body);
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, bodyKey, new GCMParameterSpec(TAG_BITS, bytes, 0, IV_LENGTH));
+        return new String(cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH), StandardCharsets.UTF_8);
+    }
+
+    //any length of secret, hashed into an AES-256 key
+    private static SecretKey bodyKey(String encryptionKey) {
+        try {
+            byte[] key = MessageDigest.getInstance("SHA-256").digest(("email-outbox:" + encryptionKey).getBytes(StandardCharsets.UTF_8));
+            return new SecretKeySpec(key, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void refreshLag() {
+        jdbcTemplate.query(SELECT_LAG, (RowCallbackHandler) resultSet -> {
+            pending.set(resultSet.getLong(1));
+            oldestCreated.set(resultSet.getLong(2));
+        });
+    }
+
+    private double lagSeconds() {
+        long oldest = oldestCreated.get();
+        return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest) / 1000.0;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+    }
+
+    private static class QueuedEmail {
+        private final long id;
+        private final String recipient;
+        private final String subject;
+        private final String body;
+        private final int attempts;
+
+        private QueuedEmail(long id, String recipient, String subject, String body, int attempts) {
+            this.id = id;
+            this.recipient = recipient;
+            this.subject = subject;
+            this.body = body;
+            this.attempts = attempts;
+        }
+    }
+}
@@ -1,49 +1,259 @@
 package com.maputo.maputo.service;
 
 
-import com.sun.mail.smtp.SMTPTransport;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import static com.maputo.maputo.constant.EmailConstant.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+//Sends emails to the SMTP server, the application queues them in EmailOutbox which calls this in the background.
+//The Session is built once from email.smtp.* and shared. Connections are logged in once and kept in a small pool,
+//so a send is one MAIL/RCPT/DATA exchange instead of a TCP connect, TLS handshake and login. A pooled connection
+//idle for more than pool.validate-after-idle-ms is checked with a NOOP before it is used again, and it is closed once
+//it has been idle for pool.idle-timeout-ms or has sent pool.maximum-messages-per-connection emails.
+//A Batch sends several emails over one connection.
 @Service
 public class EmailService {
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final Session session;
+    private final String host;
+    private final int port;
+    private final String protocol;
+    private final String username;
+    private final String password;
+    private final int maximumIdle;
+    private final long idleTimeoutMillis;
+    private final long validateAfterIdleMillis;
+    private final int maximumMessagesPerConnection;
+    private final Counter opened;
+    private final Counter reused;
+    //most recently used first, the idle ones to close are at the end
+    private final Deque<PooledTransport> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("smtp-connection-evictor").setDaemon(true).build());
 
-    public void sendNewPasswordEmail(String firstName, String password, String email) throws MessagingException {
-        Message message = createEmail(firstName, password, email);
-        SMTPTransport smtpTransport = (SMTPTransport) getEmailSession().getTransport(SIMPLE_MAIL_TRANSFER_PROTOCOL);
-        smtpTransport.connect(GMAIL_SMTP_SERVER, USERNAME, PASSWORD);
-        smtpTransport.sendMessage(message, message.getAllRecipients());
-        smtpTransport.close();
+    @Autowired
+    public EmailService(MeterRegistry meterRegistry,
+                        @Value("${email.smtp.host:" + GMAIL_SMTP_SERVER + "}") String host,
+                        @Value("${email.smtp.port:" + DEFAULT_PORT + "}") int port,
+                        @Value("${email.smtp.protocol:" + SIMPLE_MAIL_TRANSFER_PROTOCOL + "}") String protocol,
+                        @Value("${email.smtp.username:" + USERNAME + "}") String username,
+                        @Value("${email.smtp.password:" + PASSWORD + "}") String password,
+                        @Value("${email.smtp.starttls:true}") boolean startTls,
+                        @Value("${email.smtp.timeout-ms:10000}") int timeoutMillis,
+                        @Value("${email.smtp.pool.maximum-idle:2}") int maximumIdle,
+                        @Value("${email.smtp.pool.idle-timeout-ms:60000}") long idleTimeoutMillis,
+                        @Value("${email.smtp.pool.validate-after-idle-ms:1000}") long validateAfterIdleMillis,
+                        @Value("${email.smtp.pool.maximum-messages-per-connection:100}") int maximumMessagesPerConnection) {
+        this.host = host;
+        this.port = port;
+        this.protocol = protocol;
+        //without a username the server is used without logging in
+        this.username = username.isEmpty() ? null : username;
+        this.password = username.isEmpty() ? null : password;
+        this.maximumIdle = maximumIdle;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.maximumMessagesPerConnection = maximumMessagesPerConnection;
+        //own properties, not the JVM-wide System properties, so nothing else sees or changes them
+        Properties properties = new Properties();
+        properties.put(String.format(SMTP_HOST, protocol), host);
+        properties.put(String.format(SMTP_AUTH, protocol), String.valueOf(this.username != null));
+        properties.put(String.format(SMTP_PORT, protocol), String.valueOf(port));
+        properties.put(String.format(SMTP_STARTTLS_ENABLE, protocol), String.valueOf(startTls));
+        properties.put(String.format(SMTP_STARTTLS_REQUIRED, protocol), String.valueOf(startTls));
+        //a server that stops answering would otherwise hold the outbox dispatcher forever
+        properties.put(String.format(SMTP_CONNECTION_TIMEOUT, protocol), String.valueOf(timeoutMillis));
+        properties.put(String.format(SMTP_TIMEOUT, protocol), String.valueOf(timeoutMillis));
+        //Message-IDs are made from this address, without it every email looks up the name of the local host
+        properties.put(MAIL_FROM, FROM_EMAIL);
+        this.session = Session.getInstance(properties);
+        this.opened = Counter.builder("email.smtp.connections.opened").description("SMTP connections opened and logged in")
+                .register(meterRegistry);
+        this.reused = Counter.builder("email.smtp.connections.reused").description("Pooled SMTP connections used again")
+                .register(meterRegistry);
+        Gauge.builder("email.smtp.connections.idle", idle, pool -> {
+            synchronized (pool) {
+                return pool.size();
+            }
+        }).description("SMTP connections waiting in the pool").register(meterRegistry);
     }
 
-    private Message createEmail(String firstName, String password, String email) throws MessagingException {
-        Message message = new MimeMessage(getEmailSession());
+    @PostConstruct
+    public void start() {
+        long evictionInterval = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, evictionInterval, evictionInterval, MILLISECONDS);
+    }
+
+    public void send(String email, String subject, String text) throws MessagingException {
+        try (Batch batch = openBatch()) {
+            batch.send(email, subject, text);
+        }
+    }
+
+    public Batch openBatch() {
+        return new Batch();
+    }
+
+    //Emails sent through one Batch share a connection, taken from the pool on the first send and put back on close.
+    //Not for use by more than one thread at a time.
+    public class Batch implements AutoCloseable {
+        private PooledTransport pooled;
+        //once the server could not be reached the rest of the batch fails right away instead of waiting for it again
+        private MessagingException connectFailure;
+
+        private Batch() {
+        }
+
+        public void send(String email, String subject, String text) throws MessagingException {
+            Message message = createEmail(email, subject, text);
+            if (connectFailure != null) {
+                throw connectFailure;
+            }
+            if (pooled == null) {
+                try {
+                    pooled = borrow();
+                } catch (MessagingException e) {
+                    connectFailure = e;
+                    throw e;
+                }
+            }
+            try {
+                pooled.transport.sendMessage(message, message.getAllRecipients());
+                pooled.messages++;
+            } catch (MessagingException | RuntimeException e) {
+                //a refused email leaves the connection usable, anything else and it is dropped
+                if (!pooled.transport.isConnected()) {
+                    closeQuietly(pooled);
+                    pooled = null;
+                }
+                throw e;
+            }
+            if (pooled.messages >= maximumMessagesPerConnection) {
+                closeQuietly(pooled);
+                pooled = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (pooled != null) {
+                release(pooled);
+                pooled = null;
+            }
+        }
+    }
+
+    private Message createEmail(String email, String subject, String text) throws MessagingException {
+        Message message = new MimeMessage(session);
         message.setFrom(new InternetAddress(FROM_EMAIL));
         message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(email, false));
         message.setRecipients(Message.RecipientType.CC, InternetAddress.parse(CC_EMAIL,false));
-        message.setSubject(EMAIL_SUBJECT);
-        message.setText("Hello "+ firstName+", \n \n Your new account password is: " +password +"\n \n The support team");
+        message.setSubject(subject);
+        message.setText(text);
         message.setSentDate(new Date());
         message.saveChanges();
         return message;
     }
 
-    private Session getEmailSession(){
-        Properties properties = System.getProperties();
-        properties.put(SMTP_HOST, GMAIL_SMTP_SERVER);
-        properties.put(SMTP_AUTH,true);
-        properties.put(SMTP_PORT, DEFAULT_PORT);
-        properties.put(SMTP_STARTTLS_ENABLE, true);
-        properties.put(SMTP_STARTTLS_REQUIRED, true);
-        return Session.getInstance(properties, null);
+    private PooledTransport borrow() throws MessagingException {
+        long now = System.currentTimeMillis();
+        while (true) {
+            PooledTransport pooled;
+            synchronized (idle) {
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) {
+                break;
+            }
+            //isConnected sends a NOOP and closes the connection when the server does not answer it,
+            //one that was used a moment ago is taken as it is
+            long idleMillis = now - pooled.lastUsed;
+            if (idleMillis < idleTimeoutMillis && (idleMillis < validateAfterIdleMillis || pooled.transport.isConnected())) {
+                reused.increment();
+                return pooled;
+            }
+            closeQuietly(pooled);
+        }
+        Transport transport = session.getTransport(protocol);
+        transport.connect(host, port, username, password);
+        opened.increment();
+        return new PooledTransport(transport);
+    }
+
+    private void release(PooledTransport pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        synchronized (idle) {
+            if (idle.size() < maximumIdle) {
+                idle.addFirst(pooled);
+                return;
+            }
+        }
+        closeQuietly(pooled);
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        List<PooledTransport> expired = new ArrayList<>();
+        synchronized (idle) {
+            while (!idle.isEmpty() && idle.peekLast().lastUsed < cutoff) {
+                expired.add(idle.pollLast());
+            }
+        }
+        expired.forEach(this::closeQuietly);
+    }
+
+    private void closeQuietly(PooledTransport pooled) {
+        try {
+            pooled.transport.close();
+        } catch (MessagingException | RuntimeException e) {
+            logger.debug("Could not close an SMTP connection: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        evictor.shutdownNow();
+        List<PooledTransport> open;
+        synchronized (idle) {
+            open = new ArrayList<>(idle);
+            idle.clear();
+        }
+        open.forEach(this::closeQuietly);
+    }
+
+    private static class PooledTransport {
+        private final Transport transport;
+        private long lastUsed;
+        private int messages;
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
     }
 }
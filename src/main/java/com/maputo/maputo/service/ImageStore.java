@@ -0,0 +1,22 @@
+package com.maputo.maputo.service;
+
+import com.maputo.maputo.exception.domain.InvalidImageException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+//Uploaded profile images, kept once per content under the SHA-256 of their bytes: "<hash>.jpg", ".png" or ".webp".
+//A name never stands for other bytes, so anything served under it can be cached for good.
+//Every user whose profile image it is holds a reference, content nobody refers to any more is removed some time later.
+public interface ImageStore {
+    //Stores the bytes unless the same content is stored already, adds a reference to it and returns its name.
+    //Content that doesn't start like an ImageFormat, or is longer than the upload limit, is rejected while it is read.
+    String add(InputStream content) throws IOException, InvalidImageException;
+
+    //drops a reference taken by add, names that are not from the store are ignored
+    void release(String name);
+
+    //the file of a stored name or of one of its thumbnails, null for any other name
+    Path locate(String name);
+}
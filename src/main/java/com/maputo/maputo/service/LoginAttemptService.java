@@ -1,54 +1,34 @@
 package com.maputo.maputo.service;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.util.concurrent.ExecutionException;
-
-import static java.util.concurrent.TimeUnit.MINUTES;
-
 @Service
 public class LoginAttemptService {
-    private static final int MAXIMUM_NUM_OF_ATTEMPTS=5;
-    private static final int ATTEMPT_INCREMENT=1;
-    private LoadingCache<String, Integer> loginAttemptCache;
-
-    //initializing the cache
-    public LoginAttemptService(){
-        super();
-        loginAttemptCache= CacheBuilder.newBuilder().expireAfterWrite(15,MINUTES)
-                .maximumSize(100).build(new CacheLoader<String, Integer>() {
-                    @Override
-                    public Integer load(String key) throws Exception {
-                        return 0;
-                    }
-                });
+    private final int maximumNumOfAttempts;
+    private final LoginAttemptStore loginAttemptStore;
+
+    @Autowired
+    public LoginAttemptService(LoginAttemptStore loginAttemptStore,
+                               @Value("${login-attempt.maximum-attempts:5}") int maximumNumOfAttempts){
+        this.loginAttemptStore = loginAttemptStore;
+        this.maximumNumOfAttempts = maximumNumOfAttempts;
     }
 
     //remove user from cache
     public void evictUserFromLoginAttemptCache(String username){
-        loginAttemptCache.invalidate(username);
+        loginAttemptStore.reset(username);
     }
 
-
-    public void addUserToLoginAttemptCache(String username){
-        int attempts = 0;
-        try {
-            attempts = ATTEMPT_INCREMENT + loginAttemptCache.get(username);
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
-        loginAttemptCache.put(username, attempts);
+    //atomic increment-and-check: concurrent failures can't lose an attempt, and only the one that brings the count to the
+    //limit gets true, so the account is blocked once and not again by every failure after it. The JDBC store's count can
+    //step over the limit when other nodes' failures come in, hasExceededMaxAttempts blocks those at the next login
+    public boolean addAttemptAndCheckLimitReached(String username){
+        return loginAttemptStore.recordFailure(username) == maximumNumOfAttempts;
     }
 
     public boolean hasExceededMaxAttempts(String username)  {
-        try {
-            return loginAttemptCache.get(username) >= MAXIMUM_NUM_OF_ATTEMPTS;
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return loginAttemptStore.getAttempts(username) >= maximumNumOfAttempts;
     }
 }
\ No newline at end of file
@@ -0,0 +1,12 @@
+package com.maputo.maputo.service;
+
+//Where failed login attempts are counted. The in-memory store is per node, the JDBC store is shared by the whole cluster.
+//Picked with login-attempt.store=memory|jdbc
+public interface LoginAttemptStore {
+    //adds one failed attempt and returns the count including it
+    int recordFailure(String username);
+
+    int getAttempts(String username);
+
+    void reset(String username);
+}
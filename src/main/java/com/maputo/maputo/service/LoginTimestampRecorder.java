@@ -0,0 +1,161 @@
+package com.maputo.maputo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserView;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManagerFactory;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+//Write-behind for lastLoginDate/lastLoginDateDisplay, so a login doesn't have to write the user row.
+//Logins of the same user are merged in memory and written with one JDBC batch on a timer or when the queue gets big.
+//The batch goes around Hibernate, so the written users are evicted from the second-level cache afterwards.
+@Service
+public class LoginTimestampRecorder {
+    private static final String UPDATE_LOGIN_DATES = "UPDATE user SET last_login_date = ?, last_login_date_display = ? WHERE id = ?";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final ConcurrentMap<Long, LoginTimestamp> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final JdbcTemplate jdbcTemplate;
+    private final EntityManagerFactory entityManagerFactory;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final ScheduledExecutorService flusher;
+    private final Timer flushTimer;
+
+    @Autowired
+    public LoginTimestampRecorder(JdbcTemplate jdbcTemplate, EntityManagerFactory entityManagerFactory, MeterRegistry meterRegistry,
+                                  @Value("${login-timestamp.batch-size:500}") int batchSize,
+                                  @Value("${login-timestamp.flush-interval-ms:5000}") long flushIntervalMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.entityManagerFactory = entityManagerFactory;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("login-timestamp-flusher").setDaemon(true).build());
+        this.flushTimer = Timer.builder("login.timestamp.flush").description("Time to write a batch of login dates")
+                .register(meterRegistry);
+        Gauge.builder("login.timestamp.queue", pending, Map::size).description("Users with unwritten login dates")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, MILLISECONDS);
+    }
+
+    //Queues the write and returns the view with this login's dates, whether or not they are written by the time it's used.
+    //The stored lastLoginDate becomes lastLoginDateDisplay unless an unwritten login came first. Other reads see the
+    //login through applyPending.
+    public UserView recordLogin(UserView user) {
+        Date now = new Date();
+        LoginTimestamp timestamp = pending.compute(user.getId(), (id, previous) ->
+                new LoginTimestamp(now, previous != null ? previous.lastLoginDate : user.getLastLoginDate()));
+        if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+        return user.withLoginDates(timestamp.lastLoginDate, timestamp.lastLoginDateDisplay);
+    }
+
+    //Reads go through here so they see logins that are not written yet
+    public User applyPending(User user) {
+        if (user != null && user.getId() != null) {
+            LoginTimestamp timestamp = pending.get(user.getId());
+            if (timestamp != null) {
+                user.setLastLoginDate(timestamp.lastLoginDate);
+                user.setLastLoginDateDisplay(timestamp.lastLoginDateDisplay);
+            }
+        }
+        return user;
+    }
+
+    public UserView applyPending(UserView user) {
+        if (user != null && user.getId() != null) {
+            LoginTimestamp timestamp = pending.get(user.getId());
+            if (timestamp != null) {
+                return user.withLoginDates(timestamp.lastLoginDate, timestamp.lastLoginDateDisplay);
+            }
+        }
+        return user;
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public synchronized void flush() {
+        flushRequested.set(false);
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Object[]> batch = new ArrayList<>(pending.size());
+        List<Map.Entry<Long, LoginTimestamp>> written = new ArrayList<>(pending.size());
+        for (Map.Entry<Long, LoginTimestamp> entry : pending.entrySet()) {
+            LoginTimestamp timestamp = entry.getValue();
+            written.add(Map.entry(entry.getKey(), timestamp));
+            batch.add(new Object[]{toTimestamp(timestamp.lastLoginDate), toTimestamp(timestamp.lastLoginDateDisplay), entry.getKey()});
+        }
+        flushTimer.record(() -> {
+            for (int from = 0; from < batch.size(); from += batchSize) {
+                jdbcTemplate.batchUpdate(UPDATE_LOGIN_DATES, batch.subList(from, Math.min(from + batchSize, batch.size())));
+            }
+        });
+        //only drop what we wrote, a newer login that came in meanwhile stays queued
+        for (Map.Entry<Long, LoginTimestamp> entry : written) {
+            entityManagerFactory.getCache().evict(User.class, entry.getKey());
+            pending.remove(entry.getKey(), entry.getValue());
+        }
+        logger.debug("Wrote login dates for {} users", written.size());
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            //entries stay queued and are retried on the next tick
+            logger.error("Could not write login dates: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    private static Timestamp toTimestamp(Date date) {
+        return date == null ? null : new Timestamp(date.getTime());
+    }
+
+    private static final class LoginTimestamp {
+        private final Date lastLoginDate;
+        private final Date lastLoginDateDisplay;
+
+        private LoginTimestamp(Date lastLoginDate, Date lastLoginDateDisplay) {
+            this.lastLoginDate = lastLoginDate;
+            this.lastLoginDateDisplay = lastLoginDateDisplay;
+        }
+    }
+}
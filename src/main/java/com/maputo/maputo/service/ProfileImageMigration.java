@@ -0,0 +1,151 @@
+package com.maputo.maputo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.exception.domain.ImageNotFoundException;
+import com.maputo.maputo.exception.domain.InvalidImageException;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.maputo.maputo.constant.FileConstant.DEFAULT_USER_IMAGE_PATH;
+import static com.maputo.maputo.constant.FileConstant.FORWARD_SLASH;
+import static com.maputo.maputo.constant.FileConstant.USER_IMAGE_PATH;
+
+//Moves profile images uploaded before the ImageStore into it: the file behind /user/image/rick/rick.jpg?v=… becomes a stored
+//image and the user's profileImageUrl points at that. It follows the URL and not the username, so users renamed since their
+//upload keep their picture. Each user is its own transaction and only URLs of the old form are picked, so the job can stop
+//and resume at any time and on any node. The old files are not deleted, USER_FOLDER can go once a run moves the rest
+//without any it could not move.
+@Component
+public class ProfileImageMigration {
+    private static final String SELECT_PENDING = "SELECT id, profile_image_url FROM user WHERE id > ? AND profile_image_url LIKE ? "
+            + "AND profile_image_url NOT LIKE ? ORDER BY id LIMIT ?";
+    //the old URL again, a user that uploaded a new image in the meantime keeps that one
+    private static final String UPDATE_URL = "UPDATE user SET profile_image_url = ? WHERE id = ? AND profile_image_url = ?";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final EntityManagerFactory entityManagerFactory;
+    private final ImageStore imageStore;
+    private final ProfileImageService profileImageService;
+    private final boolean enabled;
+    private final int batchSize;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("profile-image-migration").setDaemon(true).build());
+
+    @Autowired
+    public ProfileImageMigration(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                 EntityManagerFactory entityManagerFactory, ImageStore imageStore, ProfileImageService profileImageService,
+                                 @Value("${image-store.migration.enabled:true}") boolean enabled,
+                                 @Value("${image-store.migration.batch-size:100}") int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionManager = transactionManager;
+        this.entityManagerFactory = entityManagerFactory;
+        this.imageStore = imageStore;
+        this.profileImageService = profileImageService;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (enabled) {
+            executor.execute(() -> {
+                try {
+                    migrate();
+                } catch (RuntimeException e) {
+                    logger.error("Profile image migration stopped, it continues on the next start: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    //returns the number of users whose image was moved
+    public long migrate() {
+        long migrated = 0;
+        long skipped = 0;
+        long lastId = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Long> ids = new ArrayList<>(batchSize);
+            List<String> urls = new ArrayList<>(batchSize);
+            jdbcTemplate.query(SELECT_PENDING, resultSet -> {
+                ids.add(resultSet.getLong(1));
+                urls.add(resultSet.getString(2));
+            }, lastId, "%" + USER_IMAGE_PATH + "%/%", "%" + DEFAULT_USER_IMAGE_PATH + "%", batchSize);
+            if (ids.isEmpty()) {
+                break;
+            }
+            for (int i = 0; i < ids.size(); i++) {
+                try {
+                    if (migrate(ids.get(i), urls.get(i))) {
+                        migrated++;
+                    }
+                } catch (ImageNotFoundException | InvalidImageException | IOException e) {
+                    //left as it is, the old URL keeps working as long as the file is there
+                    logger.warn("Could not move the profile image of user " + ids.get(i) + ": " + e.getMessage());
+                    skipped++;
+                }
+            }
+            lastId = ids.get(ids.size() - 1);
+        }
+        if (migrated > 0 || skipped > 0) {
+            logger.info("Moved the profile images of {} users into the image store, {} could not be moved", migrated, skipped);
+        }
+        return migrated;
+    }
+
+    private boolean migrate(long id, String url) throws ImageNotFoundException, InvalidImageException, IOException {
+        int start = url.indexOf(USER_IMAGE_PATH);
+        String[] parts = StringUtils.substringBefore(url.substring(start + USER_IMAGE_PATH.length()), "?").split(FORWARD_SLASH);
+        if (parts.length != 2) {
+            throw new ImageNotFoundException(url);
+        }
+        //the same checks as serving it, a URL can't reach outside USER_FOLDER
+        Path file = profileImageService.resolve(parts[0], parts[1]);
+        if (!Files.isRegularFile(file)) {
+            throw new ImageNotFoundException(file.toString());
+        }
+        TransactionStatus status = transactionManager.getTransaction(TransactionDefinition.withDefaults());
+        try (InputStream content = Files.newInputStream(file)) {
+            String image = imageStore.add(content);
+            if (jdbcTemplate.update(UPDATE_URL, url.substring(0, start) + USER_IMAGE_PATH + image, id, url) == 0) {
+                //changed since it was selected, rolling back drops the reference again
+                transactionManager.rollback(status);
+                return false;
+            }
+        } catch (IOException | InvalidImageException | RuntimeException e) {
+            transactionManager.rollback(status);
+            throw e;
+        }
+        transactionManager.commit(status);
+        //a cached copy would still have the old URL
+        entityManagerFactory.getCache().evict(User.class, id);
+        return true;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,143 @@
+package com.maputo.maputo.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.maputo.maputo.domain.ProfileImage;
+import com.maputo.maputo.exception.domain.ImageNotFoundException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.maputo.maputo.constant.FileConstant.FORWARD_SLASH;
+import static com.maputo.maputo.constant.FileConstant.NO_IMAGE_FOUND;
+import static com.maputo.maputo.constant.FileConstant.USER_FOLDER;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+//Finds profile images on disk for /user/image and keeps the small, frequently asked for ones in memory.
+//The cache is bounded by bytes, a hit touches neither the file nor its attributes.
+//Images of the ImageStore never change under their name. For the ones from before it, in a folder per user, a ?v= that
+//doesn't match the cached file is checked against the disk, and ttl-seconds catches files changed behind the application's back.
+@Service
+public class ProfileImageService {
+    private final Path root = Paths.get(USER_FOLDER).toAbsolutePath().normalize();
+    private final Cache<Path, ProfileImage> cache;
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final long maximumEntryBytes;
+    private final boolean offHeap;
+
+    @Autowired
+    public ProfileImageService(MeterRegistry meterRegistry,
+                               @Value("${profile-image.cache.maximum-bytes:67108864}") long maximumBytes,
+                               @Value("${profile-image.cache.maximum-entry-bytes:1048576}") long maximumEntryBytes,
+                               @Value("${profile-image.cache.off-heap:false}") boolean offHeap,
+                               @Value("${profile-image.cache.ttl-seconds:600}") long ttlSeconds) {
+        this.maximumEntryBytes = Math.min(maximumEntryBytes, maximumBytes);
+        this.offHeap = offHeap;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((Path path, ProfileImage image) -> (int) image.getLength())
+                .expireAfterWrite(ttlSeconds, SECONDS)
+                .removalListener((RemovalNotification<Path, ProfileImage> removed) -> residentBytes.addAndGet(-removed.getValue().getLength()))
+                .recordStats()
+                .build();
+        //cache.gets (hit/miss), cache.evictions, cache.size and friends, tagged cache=profile.images
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "profile.images");
+        Gauge.builder("profile.images.cache.hit.ratio", cache, images -> images.stats().hitRate())
+                .description("Share of image requests answered from memory").register(meterRegistry);
+        Gauge.builder("profile.images.cache.bytes", residentBytes, AtomicLong::get).baseUnit("bytes")
+                .description(offHeap ? "Image bytes held in direct buffers" : "Image bytes held on the heap").register(meterRegistry);
+    }
+
+    //version is the ?v= of the request, when set it has to match the cached file
+    public ProfileImage findProfileImage(String username, String filename, String version) throws ImageNotFoundException, IOException {
+        return find(resolve(username, filename), version, username + FORWARD_SLASH + filename);
+    }
+
+    //a path that can't point anywhere else, from the ImageStore or next to an image found before
+    public ProfileImage findProfileImage(Path path) throws ImageNotFoundException, IOException {
+        return find(path, null, path.getFileName().toString());
+    }
+
+    private ProfileImage find(Path path, String version, String name) throws ImageNotFoundException, IOException {
+        ProfileImage cached = cache.getIfPresent(path);
+        if (cached != null && (version == null || version.equals(cached.getVersion()))) {
+            return cached;
+        }
+        ProfileImage onDisk = readAttributes(path, name);
+        if (cached != null) {
+            if (cached.isSameFileAs(onDisk)) {
+                return cached;
+            }
+            cache.asMap().remove(path, cached);
+        }
+        if (onDisk.getLength() > maximumEntryBytes) {
+            //large ones are sent from the file, sendfile does that without a copy anyway
+            return onDisk;
+        }
+        try {
+            //concurrent misses on the same image wait for one read, and only the lookup above counts as a miss
+            return cache.asMap().computeIfAbsent(path, key -> readContent(onDisk));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    //after an image in the user's folder has been replaced
+    public void evict(String username) {
+        Path userFolder = root.resolve(username).normalize();
+        cache.asMap().keySet().removeIf(path -> path.startsWith(userFolder));
+    }
+
+    //only a file directly inside the user's own folder, "..", "/" or a link to a folder are not found
+    Path resolve(String username, String filename) throws ImageNotFoundException {
+        Path userFolder = root.resolve(username).normalize();
+        Path image = userFolder.resolve(filename).normalize();
+        if (!root.equals(userFolder.getParent()) || !userFolder.equals(image.getParent())) {
+            throw new ImageNotFoundException(NO_IMAGE_FOUND + username + FORWARD_SLASH + filename);
+        }
+        return image;
+    }
+
+    private ProfileImage readAttributes(Path path, String name) throws ImageNotFoundException, IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isRegularFile()) {
+                return new ProfileImage(path, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+            }
+        } catch (NoSuchFileException e) {
+            //not found below
+        }
+        throw new ImageNotFoundException(NO_IMAGE_FOUND + name);
+    }
+
+    private ProfileImage readContent(ProfileImage image) {
+        ByteBuffer content = offHeap ? ByteBuffer.allocateDirect((int) image.getLength()) : ByteBuffer.allocate((int) image.getLength());
+        try (FileChannel channel = FileChannel.open(image.getPath(), StandardOpenOption.READ)) {
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                //a file that shrank since its attributes were read ends early
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        content.flip();
+        ProfileImage loaded = new ProfileImage(image.getPath(), content.remaining(), image.getLastModified(), content.asReadOnlyBuffer());
+        residentBytes.addAndGet(loaded.getLength());
+        return loaded;
+    }
+}
@@ -0,0 +1,163 @@
+package com.maputo.maputo.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maputo.maputo.domain.ProfileImage;
+import com.maputo.maputo.exception.domain.ImageNotFoundException;
+import com.maputo.maputo.utility.ThumbnailRenderer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.maputo.maputo.constant.FileConstant.DOT;
+import static com.maputo.maputo.constant.FileConstant.JPG_EXTENSION;
+import static com.maputo.maputo.constant.FileConstant.THUMBNAIL_SUFFIX;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+//Square JPEG thumbnails of uploaded profile images, next to the original as <name>-40px.jpg etc.
+//They are made on a small bounded pool after the upload. Until one exists /user/image?size= serves the original,
+//and asking for a missing one queues it again, so a full queue or a restart only delays thumbnails.
+@Service
+public class ThumbnailService {
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final ProfileImageService profileImageService;
+    private final int[] sizes;
+    private final float quality;
+    private final ThreadPoolExecutor executor;
+    //originals queued or being rendered, so repeated requests for a missing thumbnail queue it once
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    //last modified of originals that could not be rendered, they are not retried until a new file is uploaded
+    private final Cache<Path, Long> failed = CacheBuilder.newBuilder().maximumSize(10_000).build();
+    private final Counter rejected;
+    private final Counter failures;
+    private final Timer renderTimer;
+
+    @Autowired
+    public ThumbnailService(ProfileImageService profileImageService, MeterRegistry meterRegistry,
+                            @Value("${thumbnail.sizes:40,128,256}") int[] sizes,
+                            @Value("${thumbnail.quality:0.85}") float quality,
+                            @Value("${thumbnail.threads:2}") int threads,
+                            @Value("${thumbnail.queue-capacity:100}") int queueCapacity) {
+        this.profileImageService = profileImageService;
+        this.sizes = Arrays.stream(sizes).sorted().toArray();
+        this.quality = quality;
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS, queue,
+                new ThreadFactoryBuilder().setNameFormat("thumbnail-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.rejected = Counter.builder("thumbnail.rejected").description("Originals not queued because the queue was full")
+                .register(meterRegistry);
+        this.failures = Counter.builder("thumbnail.failed").description("Originals that could not be decoded or written")
+                .register(meterRegistry);
+        this.renderTimer = Timer.builder("thumbnail.render").description("Time to decode an original and write all its thumbnails")
+                .register(meterRegistry);
+        Gauge.builder("thumbnail.queue", queue, BlockingQueue::size).register(meterRegistry);
+    }
+
+    public static String thumbnailName(String filename, int size) {
+        int dot = filename.lastIndexOf(DOT);
+        return (dot > 0 ? filename.substring(0, dot) : filename) + "-" + size + THUMBNAIL_SUFFIX + DOT + JPG_EXTENSION;
+    }
+
+    //after an upload, content that was stored already usually has its thumbnails
+    public void makeThumbnails(Path original) {
+        if (Arrays.stream(sizes).anyMatch(size -> !Files.exists(thumbnailOf(original, size)))) {
+            schedule(original);
+        }
+    }
+
+    //The smallest thumbnail at least size pixels wide, the original when size is larger than every thumbnail,
+    //null while the thumbnail is still being made (it is queued then).
+    public ProfileImage findThumbnail(ProfileImage original, int size) throws IOException {
+        int thumbnailSize = Arrays.stream(sizes).filter(candidate -> candidate >= size).findFirst().orElse(-1);
+        if (thumbnailSize < 0) {
+            return original;
+        }
+        try {
+            ProfileImage thumbnail = profileImageService.findProfileImage(thumbnailOf(original.getPath(), thumbnailSize));
+            //one left over from an earlier upload doesn't count
+            if (thumbnail.getLastModified() >= original.getLastModified()) {
+                return thumbnail;
+            }
+        } catch (ImageNotFoundException e) {
+            //not made yet
+        }
+        Long failedVersion = failed.getIfPresent(original.getPath());
+        if (failedVersion == null || failedVersion != original.getLastModified()) {
+            schedule(original.getPath());
+        }
+        return null;
+    }
+
+    private void schedule(Path original) {
+        if (!pending.add(original)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    render(original);
+                } finally {
+                    pending.remove(original);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(original);
+            rejected.increment();
+        }
+    }
+
+    private void render(Path original) {
+        Map<Integer, Path> targets = new LinkedHashMap<>();
+        for (int size : sizes) {
+            targets.put(size, thumbnailOf(original, size));
+        }
+        long lastModified;
+        try {
+            lastModified = Files.getLastModifiedTime(original).toMillis();
+        } catch (IOException e) {
+            //replaced or deleted since it was queued, nothing to do
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            ThumbnailRenderer.render(original, targets, quality);
+            renderTimer.record(System.nanoTime() - start, NANOSECONDS);
+        } catch (IOException | RuntimeException e) {
+            failed.put(original, lastModified);
+            failures.increment();
+            logger.error("Could not make thumbnails of " + original + ": " + e.getMessage());
+        }
+    }
+
+    private static Path thumbnailOf(Path original, int size) {
+        return original.resolveSibling(thumbnailName(original.getFileName().toString(), size));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
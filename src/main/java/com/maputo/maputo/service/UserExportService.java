@@ -0,0 +1,129 @@
+package com.maputo.maputo.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.maputo.maputo.enumeration.ExportFormat;
+import com.maputo.maputo.utility.CsvWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+//Streams the whole user table straight from a forward-only JDBC result set to the response.
+//Rows are never turned into entities or collected, so heap use is the same for ten users or ten million.
+@Service
+public class UserExportService {
+    //no password and no authorities blob, authorities follow from the role
+    private static final String SELECT_USERS = "SELECT id, user_id, first_name, last_name, username, email, profile_image_url, "
+            + "last_login_date, last_login_date_display, join_date, role, is_active, is_not_blocked FROM user ORDER BY id";
+    private static final String[] COLUMNS = {"id", "userId", "firstName", "lastName", "username", "email", "profileImageUrl",
+            "lastLoginDate", "lastLoginDateDisplay", "joinDate", "role", "active", "notBlocked"};
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final JdbcTemplate jdbcTemplate;
+    private final LoginTimestampRecorder loginTimestampRecorder;
+
+    @Autowired
+    public UserExportService(JdbcTemplate jdbcTemplate, LoginTimestampRecorder loginTimestampRecorder,
+                             @Value("${user-export.fetch-size:1000}") int fetchSize) {
+        //own template, the fetch size only makes sense for this query
+        this.jdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.jdbcTemplate.setFetchSize(fetchSize);
+        this.loginTimestampRecorder = loginTimestampRecorder;
+    }
+
+    public long export(ExportFormat format, OutputStream outputStream) throws IOException {
+        //so the export has the login dates that are still queued
+        loginTimestampRecorder.flush();
+        long start = System.currentTimeMillis();
+        OutputStream out = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+        long rows = format == ExportFormat.CSV ? exportCsv(out) : exportNdjson(out);
+        out.flush();
+        logger.info("Exported {} users as {} in {} ms", rows, format, System.currentTimeMillis() - start);
+        return rows;
+    }
+
+    private long exportNdjson(OutputStream out) throws IOException {
+        long[] rows = {0};
+        try (JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            //the response stream is closed by the container, not by us
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            query(resultSet -> {
+                generator.writeStartObject();
+                generator.writeNumberField(COLUMNS[0], resultSet.getLong(1));
+                for (int i = 1; i <= 6; i++) {
+                    generator.writeStringField(COLUMNS[i], resultSet.getString(i + 1));
+                }
+                for (int i = 7; i <= 9; i++) {
+                    Timestamp timestamp = resultSet.getTimestamp(i + 1);
+                    generator.writeFieldName(COLUMNS[i]);
+                    if (timestamp == null) {
+                        generator.writeNull();
+                    } else {
+                        //epoch millis, same as the dates in /user/list
+                        generator.writeNumber(timestamp.getTime());
+                    }
+                }
+                generator.writeStringField(COLUMNS[10], resultSet.getString(11));
+                generator.writeBooleanField(COLUMNS[11], resultSet.getBoolean(12));
+                generator.writeBooleanField(COLUMNS[12], resultSet.getBoolean(13));
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+                rows[0]++;
+            });
+        }
+        return rows[0];
+    }
+
+    private long exportCsv(OutputStream out) throws IOException {
+        long[] rows = {0};
+        CsvWriter csv = new CsvWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        csv.writeRow(COLUMNS);
+        String[] values = new String[COLUMNS.length];
+        query(resultSet -> {
+            for (int i = 0; i < values.length; i++) {
+                Object value = resultSet.getObject(i + 1);
+                values[i] = value == null ? null
+                        : value instanceof Timestamp ? ((Timestamp) value).toInstant().toString() : value.toString();
+            }
+            csv.writeRow(values);
+            rows[0]++;
+        });
+        csv.flush();
+        return rows[0];
+    }
+
+    private void query(RowWriter rowWriter) throws IOException {
+        try {
+            jdbcTemplate.query(SELECT_USERS, (RowCallbackHandler) resultSet -> {
+                try {
+                    rowWriter.write(resultSet);
+                } catch (IOException e) {
+                    //usually the client went away, no point reading the rest
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private interface RowWriter {
+        void write(ResultSet resultSet) throws SQLException, IOException;
+    }
+}
@@ -0,0 +1,438 @@
+package com.maputo.maputo.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.maputo.maputo.domain.ImportReport;
+import com.maputo.maputo.domain.ImportReport.RowResult;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserImportRow;
+import com.maputo.maputo.enumeration.ExportFormat;
+import com.maputo.maputo.enumeration.Role;
+import com.maputo.maputo.exception.domain.PasswordEncoderBusyException;
+import com.maputo.maputo.repository.UserRepository;
+import com.maputo.maputo.utility.BoundedPasswordEncoder;
+import com.maputo.maputo.utility.CsvReader;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static com.maputo.maputo.constant.UserImplConstant.EMAIL_ALREADY_EXISTS;
+import static com.maputo.maputo.constant.UserImplConstant.USERNAME_ALREADY_EXISTS;
+import static com.maputo.maputo.enumeration.Role.ROLE_USER;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+//Creates users from a CSV or NDJSON stream, chunk by chunk, so the upload is never held in memory. Across chunks only
+//the counts and the first maximum-reported-failures failed rows are kept.
+//Per chunk: one query for taken usernames/emails, passwords hashed in parallel on the password encoder pool,
+//and one transaction of batched inserts. Rows are created like /user/add does it.
+@Service
+public class UserImportService {
+    private static final String REQUIRED = " is required";
+    private static final String UNKNOWN_ROLE = "Unknown role: ";
+    private static final String DUPLICATE_IN_UPLOAD = " appears more than once in this import";
+    private static final String INVALID_JSON = "Invalid JSON: ";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final ObjectReader rowReader = new ObjectMapper().readerFor(UserImportRow.class);
+    private final UserRepository userRepository;
+    private final BoundedPasswordEncoder passwordEncoder;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final UserSearchService userSearchService;
+    private final int chunkSize;
+    private final int maximumReportedFailures;
+    private final Timer importTimer;
+    private final Counter createdRows;
+    private final Counter failedRows;
+
+    @Autowired
+    public UserImportService(UserRepository userRepository, BoundedPasswordEncoder passwordEncoder, EntityManager entityManager,
+                             PlatformTransactionManager transactionManager, UserSearchService userSearchService, MeterRegistry meterRegistry,
+                             @Value("${user-import.chunk-size:500}") int chunkSize,
+                             @Value("${user-import.maximum-reported-failures:1000}") int maximumReportedFailures) {
+        this.userRepository = userRepository;
+        this.passwordEncoder = passwordEncoder;
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.userSearchService = userSearchService;
+        this.chunkSize = chunkSize;
+        this.maximumReportedFailures = maximumReportedFailures;
+        this.importTimer = Timer.builder("user.import").description("Time to run a bulk import").register(meterRegistry);
+        this.createdRows = Counter.builder("user.import.rows").tag("result", "created").register(meterRegistry);
+        this.failedRows = Counter.builder("user.import.rows").tag("result", "failed").register(meterRegistry);
+    }
+
+    //profileImageBaseUrl is DEFAULT_USER_IMAGE_PATH resolved against the request once, the username is appended per row
+    public ImportReport importUsers(ExportFormat format, InputStream inputStream, String profileImageBaseUrl) throws IOException {
+        long start = System.nanoTime();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
+        RowSource source = format == ExportFormat.CSV ? new CsvRowSource(reader) : new NdjsonRowSource(reader);
+        Import current = new Import(profileImageBaseUrl);
+        List<ParsedRow> chunk = new ArrayList<>(chunkSize);
+        ParsedRow row;
+        while ((row = source.next()) != null) {
+            chunk.add(row);
+            if (chunk.size() == chunkSize) {
+                importChunk(chunk, current);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            importChunk(chunk, current);
+        }
+        long elapsed = System.nanoTime() - start;
+        importTimer.record(elapsed, NANOSECONDS);
+        ImportReport report = new ImportReport(current.created, current.failed, NANOSECONDS.toMillis(elapsed), current.failures);
+        logger.info("Imported {} of {} users in {} ms ({} rows/s)", report.getCreated(), report.getCreated() + report.getFailed(),
+                report.getElapsedMillis(), (long) report.getRowsPerSecond());
+        return report;
+    }
+
+    private void importChunk(List<ParsedRow> chunk, Import current) {
+        importRows(chunk, current);
+        current.endChunk();
+    }
+
+    private void importRows(List<ParsedRow> chunk, Import current) {
+        //1. rows that are broken on their own or repeat an earlier row of the chunk. Earlier chunks are in the table
+        //by now, a row repeating one of them is found by step 2
+        current.usernames.clear();
+        current.emails.clear();
+        List<ParsedRow> valid = new ArrayList<>(chunk.size());
+        for (ParsedRow row : chunk) {
+            String error = row.error != null ? row.error : validate(row.user, current);
+            if (error != null) {
+                current.fail(row, error);
+            } else {
+                valid.add(row);
+            }
+        }
+        //2. one query for every username and email of the chunk that is already taken
+        Set<String> usernames = new HashSet<>();
+        Set<String> emails = new HashSet<>();
+        for (ParsedRow row : valid) {
+            usernames.add(row.user.getUsername());
+            emails.add(row.user.getEmail());
+        }
+        Set<String> takenUsernames = new HashSet<>();
+        Set<String> takenEmails = new HashSet<>();
+        if (!valid.isEmpty()) {
+            for (Object[] taken : userRepository.findUsernamesAndEmails(usernames, emails)) {
+                takenUsernames.add(lowerCase((String) taken[0]));
+                takenEmails.add(lowerCase((String) taken[1]));
+            }
+        }
+        //3. passwords hashed in parallel, the rows are only waited for once all of them are queued
+        Deque<CompletableFuture<String>> inFlight = new ArrayDeque<>();
+        Map<ParsedRow, CompletableFuture<String>> hashes = new HashMap<>();
+        for (ParsedRow row : valid) {
+            if (takenUsernames.contains(lowerCase(row.user.getUsername()))) {
+                current.fail(row, USERNAME_ALREADY_EXISTS);
+            } else if (takenEmails.contains(lowerCase(row.user.getEmail()))) {
+                current.fail(row, EMAIL_ALREADY_EXISTS);
+            } else {
+                try {
+                    hashes.put(row, encode(RandomStringUtils.randomAlphanumeric(10), inFlight));
+                } catch (PasswordEncoderBusyException e) {
+                    current.fail(row, e.getMessage());
+                }
+            }
+        }
+        List<ParsedRow> rows = new ArrayList<>(hashes.size());
+        List<User> users = new ArrayList<>(hashes.size());
+        for (ParsedRow row : valid) {
+            CompletableFuture<String> hash = hashes.get(row);
+            if (hash == null) {
+                continue;
+            }
+            try {
+                users.add(newUser(row.user, hash.join(), current.profileImageBaseUrl));
+                rows.add(row);
+            } catch (CompletionException e) {
+                current.fail(row, e.getCause().getMessage());
+            }
+        }
+        //4. batched inserts, ids come 50 at a time from the pooled sequence
+        if (!users.isEmpty()) {
+            insert(rows, users, current);
+        }
+    }
+
+    private void insert(List<ParsedRow> rows, List<User> users, Import current) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> persist(users));
+            rows.forEach(current::succeed);
+        } catch (DataIntegrityViolationException e) {
+            //someone else took a username or email since step 2, find out which rows by inserting them one by one
+            for (int i = 0; i < users.size(); i++) {
+                User user = users.get(i);
+                user.setId(null);
+                try {
+                    transactionTemplate.executeWithoutResult(status -> persist(List.of(user)));
+                    current.succeed(rows.get(i));
+                } catch (DataIntegrityViolationException rowException) {
+                    current.fail(rows.get(i), USERNAME_ALREADY_EXISTS + " / " + EMAIL_ALREADY_EXISTS);
+                }
+            }
+        }
+    }
+
+    private void persist(List<User> users) {
+        //imported users aren't being read yet, keep them from pushing the hot users out of the second-level cache
+        //only restored after completion, Hibernate checks the mode again when the transaction ends
+        Session session = entityManager.unwrap(Session.class);
+        CacheMode cacheMode = session.getCacheMode();
+        session.setCacheMode(CacheMode.IGNORE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                session.setCacheMode(cacheMode);
+            }
+        });
+        users.forEach(entityManager::persist);
+        entityManager.flush();
+        users.forEach(userSearchService::index);
+        //the request may hold an open persistence context, don't let imported users pile up in it
+        entityManager.clear();
+    }
+
+    //waits for the oldest hash of this import whenever the encoder queue is full
+    private CompletableFuture<String> encode(String password, Deque<CompletableFuture<String>> inFlight) {
+        while (true) {
+            try {
+                CompletableFuture<String> hash = passwordEncoder.encodeAsync(password);
+                inFlight.add(hash);
+                return hash;
+            } catch (PasswordEncoderBusyException e) {
+                CompletableFuture<String> oldest = inFlight.poll();
+                if (oldest == null) {
+                    //the pool is full with other work, not ours
+                    throw e;
+                }
+                oldest.exceptionally(throwable -> null).join();
+            }
+        }
+    }
+
+    private String validate(UserImportRow user, Import current) {
+        if (StringUtils.isBlank(user.getFirstName())) {
+            return "firstName" + REQUIRED;
+        }
+        if (StringUtils.isBlank(user.getLastName())) {
+            return "lastName" + REQUIRED;
+        }
+        if (StringUtils.isBlank(user.getUsername())) {
+            return "username" + REQUIRED;
+        }
+        if (StringUtils.isBlank(user.getEmail())) {
+            return "email" + REQUIRED;
+        }
+        if (user.getRole() != null && !isRole(user.getRole())) {
+            return UNKNOWN_ROLE + user.getRole();
+        }
+        if (current.usernames.contains(lowerCase(user.getUsername()))) {
+            return user.getUsername() + DUPLICATE_IN_UPLOAD;
+        }
+        if (current.emails.contains(lowerCase(user.getEmail()))) {
+            return user.getEmail() + DUPLICATE_IN_UPLOAD;
+        }
+        current.usernames.add(lowerCase(user.getUsername()));
+        current.emails.add(lowerCase(user.getEmail()));
+        return null;
+    }
+
+    private static User newUser(UserImportRow row, String encodedPassword, String profileImageBaseUrl) {
+        Role role = row.getRole() == null ? ROLE_USER : Role.valueOf(row.getRole().toUpperCase(Locale.ROOT));
+        User user = new User();
+        user.setUserId(RandomStringUtils.randomNumeric(10));
+        user.setFirstName(row.getFirstName());
+        user.setLastName(row.getLastName());
+        user.setUsername(row.getUsername());
+        user.setEmail(row.getEmail());
+        user.setJoinDate(new Date());
+        user.setPassword(encodedPassword);
+        user.setActive(row.getActive() == null || row.getActive());
+        user.setNotBlocked(row.getNotBlocked() == null || row.getNotBlocked());
+        user.setRole(role.name());
+        user.setAuthorities(role.getAuthorities());
+        user.setProfileImageUrl(profileImageBaseUrl + row.getUsername());
+        return user;
+    }
+
+    private static boolean isRole(String role) {
+        try {
+            Role.valueOf(role.toUpperCase(Locale.ROOT));
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    //MySQL compares usernames and emails case-insensitively, so the checks here do too
+    private static String lowerCase(String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    //state of one import call
+    private final class Import {
+        private final String profileImageBaseUrl;
+        private final List<RowResult> failures = new ArrayList<>();
+        private final List<RowResult> chunkFailures = new ArrayList<>();
+        private final Set<String> usernames = new HashSet<>();
+        private final Set<String> emails = new HashSet<>();
+        private long created;
+        private long failed;
+
+        private Import(String profileImageBaseUrl) {
+            this.profileImageBaseUrl = profileImageBaseUrl;
+        }
+
+        private void succeed(ParsedRow row) {
+            created++;
+            createdRows.increment();
+        }
+
+        private void fail(ParsedRow row, String message) {
+            failed++;
+            failedRows.increment();
+            if (failures.size() + chunkFailures.size() < maximumReportedFailures) {
+                chunkFailures.add(new RowResult(row.number, row.user == null ? null : row.user.getUsername(), message));
+            }
+        }
+
+        //failures of a chunk are found before its inserts fail, put them back in upload order
+        private void endChunk() {
+            chunkFailures.sort(Comparator.comparingLong(RowResult::getRow));
+            failures.addAll(chunkFailures);
+            chunkFailures.clear();
+        }
+    }
+
+    private static final class ParsedRow {
+        private final long number;
+        private final UserImportRow user;
+        private final String error;
+
+        private ParsedRow(long number, UserImportRow user, String error) {
+            this.number = number;
+            this.user = user;
+            this.error = error;
+        }
+    }
+
+    private interface RowSource {
+        //null at the end of the upload
+        ParsedRow next() throws IOException;
+    }
+
+    //first record is the header, columns are matched by name so their order doesn't matter
+    private static final class CsvRowSource implements RowSource {
+        private final CsvReader csv;
+        private Map<String, Integer> columns;
+        private long number;
+
+        private CsvRowSource(BufferedReader reader) {
+            this.csv = new CsvReader(reader);
+        }
+
+        @Override
+        public ParsedRow next() throws IOException {
+            if (columns == null) {
+                List<String> header = csv.readRecord();
+                if (header == null) {
+                    return null;
+                }
+                columns = new HashMap<>();
+                for (int i = 0; i < header.size(); i++) {
+                    columns.put(header.get(i).trim(), i);
+                }
+            }
+            List<String> record;
+            do {
+                record = csv.readRecord();
+                if (record == null) {
+                    return null;
+                }
+            } while (record.size() == 1 && record.get(0).isEmpty());
+            UserImportRow user = new UserImportRow();
+            user.setFirstName(value(record, "firstName"));
+            user.setLastName(value(record, "lastName"));
+            user.setUsername(value(record, "username"));
+            user.setEmail(value(record, "email"));
+            user.setRole(value(record, "role"));
+            String active = value(record, "active");
+            user.setActive(active == null ? null : Boolean.valueOf(active));
+            String notBlocked = value(record, "notBlocked");
+            user.setNotBlocked(notBlocked == null ? null : Boolean.valueOf(notBlocked));
+            return new ParsedRow(++number, user, null);
+        }
+
+        private String value(List<String> record, String column) {
+            Integer index = columns.get(column);
+            if (index == null || index >= record.size() || record.get(index).isEmpty()) {
+                return null;
+            }
+            return record.get(index).trim();
+        }
+    }
+
+    private final class NdjsonRowSource implements RowSource {
+        private final BufferedReader reader;
+        private long number;
+
+        private NdjsonRowSource(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public ParsedRow next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+            } while (line.isBlank());
+            number++;
+            try {
+                return new ParsedRow(number, rowReader.readValue(line), null);
+            } catch (JsonProcessingException e) {
+                return new ParsedRow(number, null, INVALID_JSON + e.getOriginalMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.maputo.maputo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserSearchPage;
+import com.maputo.maputo.utility.UserSearchIndex;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+//Keeps a UserSearchIndex of every user for /user/search.
+//It is loaded once after startup by streaming the table, until then searches see whatever is loaded so far.
+//The write methods of UserServiceImplementation and UserImportService update it after their transaction commits.
+//Those only run on the node that made the change, so every resync-interval-minutes the table is streamed again to pick up
+//users created, renamed or deleted through the other nodes.
+@Service
+public class UserSearchService {
+    private static final String SELECT_USERS = "SELECT id, username, first_name, last_name, email FROM user";
+    private static final String SELECT_USERS_BY_ID = SELECT_USERS + " ORDER BY id";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final UserSearchIndex index;
+    private final JdbcTemplate jdbcTemplate;
+    private final int defaultPageSize;
+    private final int maximumPageSize;
+    private final long resyncIntervalMinutes;
+    private final Timer searchTimer;
+    //users written or removed while the table is being read, the read may have seen them before the change
+    private final Set<Long> writtenWhileLoading = new HashSet<>();
+    private boolean loading;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("user-search-loader").setDaemon(true).build());
+
+    @Autowired
+    public UserSearchService(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry,
+                             @Value("${user-search.fetch-size:1000}") int fetchSize,
+                             @Value("${user-search.default-page-size:10}") int defaultPageSize,
+                             @Value("${user-search.maximum-page-size:50}") int maximumPageSize,
+                             @Value("${user-search.maximum-candidates:10000}") int maximumCandidates,
+                             @Value("${user-search.resync-interval-minutes:10}") long resyncIntervalMinutes) {
+        //own template, the fetch size only makes sense for the load
+        this.jdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.jdbcTemplate.setFetchSize(fetchSize);
+        this.defaultPageSize = defaultPageSize;
+        this.maximumPageSize = maximumPageSize;
+        this.resyncIntervalMinutes = resyncIntervalMinutes;
+        this.index = new UserSearchIndex(maximumCandidates);
+        this.searchTimer = Timer.builder("user.search").description("Time to answer a /user/search query").register(meterRegistry);
+        Gauge.builder("user.search.indexed", index, UserSearchIndex::size).description("Users in the search index")
+                .register(meterRegistry);
+        Gauge.builder("user.search.bytes.per.user", index, UserSearchIndex::estimatedBytesPerUser)
+                .description("Estimated heap used by the search index per user").baseUnit("bytes").register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        executor.execute(() -> {
+            try {
+                load();
+            } catch (RuntimeException e) {
+                logger.error("Could not load the search index, only users written from now on can be found: " + e.getMessage());
+            }
+        });
+        if (resyncIntervalMinutes > 0) {
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    resync();
+                } catch (RuntimeException e) {
+                    logger.error("Could not resync the search index: " + e.getMessage());
+                }
+            }, resyncIntervalMinutes, resyncIntervalMinutes, MINUTES);
+        }
+    }
+
+    //adds every user that is not indexed yet, returns how many were added
+    public long load() {
+        long start = System.currentTimeMillis();
+        startLoading();
+        long[] added = {0};
+        try {
+            jdbcTemplate.query(SELECT_USERS, (RowCallbackHandler) resultSet -> {
+                long id = resultSet.getLong(1);
+                //a user written since the row was read is already indexed with its newer values and is kept
+                synchronized (writtenWhileLoading) {
+                    if (!writtenWhileLoading.contains(id)
+                            && index.putIfAbsent(id, resultSet.getString(2), resultSet.getString(3), resultSet.getString(4), resultSet.getString(5))) {
+                        added[0]++;
+                    }
+                }
+            });
+        } finally {
+            stopLoading();
+        }
+        logger.info("Loaded {} users into the search index in {} ms, about {} bytes per user", added[0],
+                System.currentTimeMillis() - start, index.estimatedBytesPerUser());
+        return added[0];
+    }
+
+    //Brings the index in line with the table: users changed through other nodes are indexed again, the ones missing from the
+    //table are removed. Both lists are walked in id order. Returns how many users were indexed again or removed
+    public long resync() {
+        long start = System.currentTimeMillis();
+        //taken before the read starts, users indexed later are not removed for missing from it
+        long[] indexed = index.ids();
+        startLoading();
+        long[] changed = {0};
+        int[] next = {0};
+        try {
+            jdbcTemplate.query(SELECT_USERS_BY_ID, (RowCallbackHandler) resultSet -> {
+                long id = resultSet.getLong(1);
+                synchronized (writtenWhileLoading) {
+                    //indexed ids the table skipped over
+                    while (next[0] < indexed.length && indexed[next[0]] < id) {
+                        changed[0] += removeUnlessWritten(indexed[next[0]++]);
+                    }
+                    if (next[0] < indexed.length && indexed[next[0]] == id) {
+                        next[0]++;
+                    }
+                    if (!writtenWhileLoading.contains(id)
+                            && index.putIfChanged(id, resultSet.getString(2), resultSet.getString(3), resultSet.getString(4), resultSet.getString(5))) {
+                        changed[0]++;
+                    }
+                }
+            });
+            synchronized (writtenWhileLoading) {
+                while (next[0] < indexed.length) {
+                    changed[0] += removeUnlessWritten(indexed[next[0]++]);
+                }
+            }
+        } finally {
+            stopLoading();
+        }
+        logger.info("Resynced the search index in {} ms, {} users changed through other nodes", System.currentTimeMillis() - start, changed[0]);
+        return changed[0];
+    }
+
+    public UserSearchPage search(String query, Integer page, Integer size) {
+        int pageSize = size == null ? defaultPageSize : Math.max(1, Math.min(size, maximumPageSize));
+        //in long, a large page would overflow into a negative offset. Past maximum-candidates every page is empty anyway
+        long offset = (long) Math.max(0, page == null ? 0 : page) * pageSize;
+        return searchTimer.record(() -> index.search(query, (int) Math.min(offset, Integer.MAX_VALUE), pageSize));
+    }
+
+    //the values are taken now, the index only sees them once the transaction has committed
+    public void index(User user) {
+        long id = user.getId();
+        String username = user.getUsername();
+        String firstName = user.getFirstName();
+        String lastName = user.getLastName();
+        String email = user.getEmail();
+        afterCommit(() -> {
+            synchronized (writtenWhileLoading) {
+                if (loading) {
+                    writtenWhileLoading.add(id);
+                }
+                index.put(id, username, firstName, lastName, email);
+            }
+        });
+    }
+
+    public void remove(long id) {
+        afterCommit(() -> {
+            synchronized (writtenWhileLoading) {
+                if (loading) {
+                    writtenWhileLoading.add(id);
+                }
+                index.remove(id);
+            }
+        });
+    }
+
+    private void startLoading() {
+        synchronized (writtenWhileLoading) {
+            loading = true;
+            writtenWhileLoading.clear();
+        }
+    }
+
+    private void stopLoading() {
+        synchronized (writtenWhileLoading) {
+            loading = false;
+            writtenWhileLoading.clear();
+        }
+    }
+
+    //called holding the writtenWhileLoading lock
+    private int removeUnlessWritten(long id) {
+        if (writtenWhileLoading.contains(id)) {
+            return 0;
+        }
+        index.remove(id);
+        return 1;
+    }
+
+    private void afterCommit(Runnable update) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    update.run();
+                }
+            });
+        } else {
+            update.run();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,8 +1,12 @@
 package com.maputo.maputo.service;
 
 import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserFilter;
+import com.maputo.maputo.domain.UserPage;
+import com.maputo.maputo.domain.UserView;
 import com.maputo.maputo.exception.domain.EmailExistException;
 import com.maputo.maputo.exception.domain.EmailNotFoundException;
+import com.maputo.maputo.exception.domain.InvalidImageException;
 import com.maputo.maputo.exception.domain.UserNotFoundException;
 import com.maputo.maputo.exception.domain.UsernameExistException;
 import org.springframework.web.multipart.MultipartFile;
@@ -13,12 +17,15 @@ import java.util.List;
 
 public interface UserService {
     User register(String firstName, String lastName, String username, String email) throws UserNotFoundException, EmailExistException, UsernameExistException, MessagingException;
-    List<User> getUsers();
-    User findUserByUsername(String username);
-    User findUserByEmail(String email);
-    User addNewUser(String firstName, String lastName, String username, String email, String role, boolean isNonLocked, boolean isActive, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException;
-    User updateUser(String currentUsername, String newFirstName, String newLastName, String newUsername, String newEmail, String role, boolean isNonLocked, boolean isActive, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException;
+    UserPage getUsers(Long afterId, Integer size, UserFilter filter);
+    UserView findUserByUsername(String username);
+    UserView findUserByEmail(String email);
+    User addNewUser(String firstName, String lastName, String username, String email, String role, boolean isNonLocked, boolean isActive, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException, InvalidImageException;
+    User updateUser(String currentUsername, String newFirstName, String newLastName, String newUsername, String newEmail, String role, boolean isNonLocked, boolean isActive, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException, InvalidImageException;
     void deleteUser(long id);
     void resetPassword(String email) throws EmailNotFoundException, MessagingException;
-    User updateProfileImage(String username, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException;
+    void blockUser(String username);
+    User updateProfileImage(String username, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException, InvalidImageException;
+    //image is a name from ImageStore.add, the reference it took is the user's once this returns
+    User updateStoredProfileImage(String username, String image) throws UserNotFoundException, EmailExistException, UsernameExistException;
 }
@@ -0,0 +1,255 @@
+package com.maputo.maputo.service.implementation;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maputo.maputo.enumeration.ImageFormat;
+import com.maputo.maputo.exception.domain.ImageTooLargeException;
+import com.maputo.maputo.exception.domain.InvalidImageException;
+import com.maputo.maputo.service.ImageStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.maputo.maputo.constant.FileConstant.DOT;
+import static com.maputo.maputo.constant.FileConstant.IMAGE_TOO_LARGE;
+import static com.maputo.maputo.constant.FileConstant.JPG_EXTENSION;
+import static com.maputo.maputo.constant.FileConstant.THUMBNAIL_SUFFIX;
+import static com.maputo.maputo.constant.FileConstant.UNSUPPORTED_IMAGE;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+//Content under image-store.folder, sharded by the first two bytes of its hash: 3f/a2/3fa2….jpg, so no folder holds more
+//than a handful of files however many users there are. Thumbnails sit next to the content they are made from.
+//Uploads are checked, hashed and counted while they are written to a temporary file on the same file system, then renamed
+//into place: the first bytes have to be those of an ImageFormat and reading stops as soon as there are more than
+//profile-image.upload.maximum-bytes, so a rejected upload never takes more than that on disk or a buffer on the heap.
+//The stored_image table counts references in the transaction of the user that takes or drops them. A sweep deletes content
+//that has had no references for release-grace-minutes: it deletes the row first and holds its lock while the files go,
+//an add of the same content waits for that and then finds the file missing and writes it again.
+@Service
+public class FileSystemImageStore implements ImageStore {
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS stored_image (hash CHAR(64) NOT NULL PRIMARY KEY, "
+            + "reference_count INT NOT NULL, released BIGINT NOT NULL, INDEX stored_image_released (reference_count, released))";
+    private static final String ADD_REFERENCE = "INSERT INTO stored_image (hash, reference_count, released) VALUES (?, 1, 0) "
+            + "ON DUPLICATE KEY UPDATE reference_count = reference_count + 1";
+    private static final String RELEASE_REFERENCE = "UPDATE stored_image SET reference_count = reference_count - 1, released = ? "
+            + "WHERE hash = ? AND reference_count > 0";
+    //content written by an add that was rolled back may have no row at all, this makes the sweep find it
+    private static final String MARK_UNREFERENCED = "INSERT INTO stored_image (hash, reference_count, released) VALUES (?, 0, ?) "
+            + "ON DUPLICATE KEY UPDATE released = VALUES(released)";
+    private static final String SELECT_RELEASED = "SELECT hash FROM stored_image WHERE reference_count = 0 AND released < ? LIMIT ?";
+    private static final String DELETE_RELEASED = "DELETE FROM stored_image WHERE hash = ? AND reference_count = 0 AND released < ?";
+    //the content in its own format, thumbnails are always JPEG
+    private static final Pattern NAME = Pattern.compile("([0-9a-f]{64})(?:\\.(?:" + Arrays.stream(ImageFormat.values())
+            .map(ImageFormat::getExtension).collect(Collectors.joining("|")) + ")|(-[0-9]+" + THUMBNAIL_SUFFIX + "\\." + JPG_EXTENSION + "))");
+    private static final int BUFFER_SIZE = 8192;
+    private static final int SWEEP_BATCH_SIZE = 500;
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate newTransactionTemplate;
+    private final Path root;
+    private final Path uploads;
+    private final long sweepIntervalMinutes;
+    private final long releaseGraceMillis;
+    private final long maximumBytes;
+    private final Counter deduplicated;
+    private final Counter swept;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("image-store-sweeper").setDaemon(true).build());
+
+    @Autowired
+    public FileSystemImageStore(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+                                @Value("${image-store.folder:${user.home}/supportportal/image/}") String folder,
+                                @Value("${image-store.sweep-interval-minutes:60}") long sweepIntervalMinutes,
+                                @Value("${image-store.release-grace-minutes:60}") long releaseGraceMinutes,
+                                @Value("${profile-image.upload.maximum-bytes:5242880}") long maximumBytes) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.root = Paths.get(folder).toAbsolutePath().normalize();
+        this.uploads = root.resolve("upload");
+        this.sweepIntervalMinutes = sweepIntervalMinutes;
+        this.releaseGraceMillis = MINUTES.toMillis(releaseGraceMinutes);
+        this.maximumBytes = maximumBytes;
+        this.deduplicated = Counter.builder("image.store.deduplicated").description("Uploads whose content was stored already")
+                .register(meterRegistry);
+        this.swept = Counter.builder("image.store.swept").description("Stored images deleted because nobody refers to them")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        jdbcTemplate.execute(CREATE_TABLE);
+        sweeper.scheduleWithFixedDelay(this::sweepQuietly, sweepIntervalMinutes, sweepIntervalMinutes, MINUTES);
+    }
+
+    @Override
+    public String add(InputStream content) throws IOException, InvalidImageException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        HashingInputStream hashing = new HashingInputStream(Hashing.sha256(), content);
+        //checked before anything is written
+        int read = hashing.readNBytes(buffer, 0, ImageFormat.HEADER_LENGTH);
+        ImageFormat format = ImageFormat.of(buffer, read);
+        if (format == null) {
+            throw new InvalidImageException(UNSUPPORTED_IMAGE);
+        }
+        Files.createDirectories(uploads);
+        Path temporary = Files.createTempFile(uploads, "upload", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                long length = 0;
+                while (read >= 0) {
+                    length += read;
+                    if (length > maximumBytes) {
+                        throw new ImageTooLargeException(String.format(IMAGE_TOO_LARGE, maximumBytes));
+                    }
+                    out.write(buffer, 0, read);
+                    read = hashing.read(buffer);
+                }
+            }
+            HashCode hash = hashing.hash();
+            //the reference before the file: a sweep of the same content has either finished or waits for this transaction
+            addReference(hash.toString());
+            String name = hash + DOT + format.getExtension();
+            Path file = locate(name);
+            if (Files.exists(file)) {
+                deduplicated.increment();
+            } else {
+                Files.createDirectories(file.getParent());
+                Files.move(temporary, file, ATOMIC_MOVE);
+            }
+            return name;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public void release(String name) {
+        Matcher matcher = NAME.matcher(name);
+        if (matcher.matches() && matcher.group(2) == null) {
+            jdbcTemplate.update(RELEASE_REFERENCE, System.currentTimeMillis(), matcher.group(1));
+        }
+    }
+
+    @Override
+    public Path locate(String name) {
+        Matcher matcher = NAME.matcher(name);
+        if (!matcher.matches()) {
+            return null;
+        }
+        String hash = matcher.group(1);
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(name);
+    }
+
+    //deletes content that has had no references for the grace period, returns how many were deleted
+    public long sweep() {
+        long cutoff = System.currentTimeMillis() - releaseGraceMillis;
+        long deleted = 0;
+        List<String> hashes;
+        do {
+            hashes = jdbcTemplate.queryForList(SELECT_RELEASED, String.class, cutoff, SWEEP_BATCH_SIZE);
+            for (String hash : hashes) {
+                //a file that can't be deleted rolls the row back and ends this sweep, the next one tries again
+                Boolean done = transactionTemplate.execute(status -> {
+                    if (jdbcTemplate.update(DELETE_RELEASED, hash, cutoff) == 0) {
+                        //referenced again since it was selected
+                        return false;
+                    }
+                    deleteFiles(hash);
+                    return true;
+                });
+                if (Boolean.TRUE.equals(done)) {
+                    deleted++;
+                }
+            }
+        } while (hashes.size() == SWEEP_BATCH_SIZE && !Thread.currentThread().isInterrupted());
+        swept.increment(deleted);
+        return deleted;
+    }
+
+    private void addReference(String hash) {
+        jdbcTemplate.update(ADD_REFERENCE, hash);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        markUnreferenced(hash);
+                    }
+                }
+            });
+        }
+    }
+
+    private void markUnreferenced(String hash) {
+        try {
+            newTransactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(MARK_UNREFERENCED, hash, System.currentTimeMillis()));
+        } catch (RuntimeException e) {
+            logger.error("Could not mark stored image " + hash + " for the sweep, its file stays until it is uploaded again: " + e.getMessage());
+        }
+    }
+
+    //the content and its thumbnails
+    private void deleteFiles(String hash) {
+        Path folder = root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, hash + "*")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (NoSuchFileException e) {
+            //a row without files, from an add that failed before it wrote any
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void sweepQuietly() {
+        try {
+            long deleted = sweep();
+            if (deleted > 0) {
+                logger.info("Deleted {} stored images nobody refers to", deleted);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not sweep the image store: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+}
@@ -0,0 +1,50 @@
+package com.maputo.maputo.service.implementation;
+
+import com.maputo.maputo.service.LoginAttemptStore;
+import com.maputo.maputo.utility.SlidingWindowAttemptTracker;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+@Component
+@ConditionalOnProperty(name = "login-attempt.store", havingValue = "memory", matchIfMissing = true)
+public class InMemoryLoginAttemptStore implements LoginAttemptStore {
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final SlidingWindowAttemptTracker loginAttemptTracker;
+
+    //failed attempts per username over a sliding window, sized for millions of usernames
+    @Autowired
+    public InMemoryLoginAttemptStore(MeterRegistry meterRegistry,
+                                     @Value("${login-attempt.window-minutes:15}") long windowMinutes,
+                                     @Value("${login-attempt.buckets:5}") int buckets,
+                                     @Value("${login-attempt.capacity:1000000}") long capacity) {
+        this.loginAttemptTracker = new SlidingWindowAttemptTracker(capacity, MINUTES.toMillis(windowMinutes), buckets);
+        Gauge.builder("login.attempts.tracked", loginAttemptTracker, SlidingWindowAttemptTracker::size).register(meterRegistry);
+        Gauge.builder("login.attempts.memory", loginAttemptTracker, SlidingWindowAttemptTracker::estimatedMemoryBytes)
+                .baseUnit("bytes").register(meterRegistry);
+        logger.info("Tracking login attempts for up to {} usernames, about {} MB when full", loginAttemptTracker.getCapacity(),
+                loginAttemptTracker.getCapacity() * loginAttemptTracker.estimatedBytesPerEntry() / (1024 * 1024));
+    }
+
+    @Override
+    public int recordFailure(String username) {
+        return loginAttemptTracker.incrementAndGet(username);
+    }
+
+    @Override
+    public int getAttempts(String username) {
+        return loginAttemptTracker.get(username);
+    }
+
+    @Override
+    public void reset(String username) {
+        loginAttemptTracker.reset(username);
+    }
+}
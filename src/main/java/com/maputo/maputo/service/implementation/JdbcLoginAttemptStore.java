@@ -0,0 +1,166 @@
+package com.maputo.maputo.service.implementation;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.maputo.maputo.service.LoginAttemptStore;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+//Attempts shared by every node through the database, so an attacker gets MAXIMUM_NUM_OF_ATTEMPTS per cluster and not per node.
+//Failures and resets are collected locally and written in batches, reads go through a short local cache,
+//so the login path rarely waits on the database. Attempts reset once a user has had no failure for a full window.
+@Component
+@ConditionalOnProperty(name = "login-attempt.store", havingValue = "jdbc")
+public class JdbcLoginAttemptStore implements LoginAttemptStore {
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS login_attempt (username VARCHAR(255) NOT NULL PRIMARY KEY, attempts INT NOT NULL, last_attempt BIGINT NOT NULL)";
+    private static final String SELECT_ATTEMPTS = "SELECT attempts FROM login_attempt WHERE username = ? AND last_attempt > ?";
+    //attempts is assigned before last_attempt, so the CASE still sees the old last_attempt
+    private static final String UPSERT_ATTEMPTS = "INSERT INTO login_attempt (username, attempts, last_attempt) VALUES (?, ?, ?) "
+            + "ON DUPLICATE KEY UPDATE attempts = CASE WHEN last_attempt > ? THEN attempts + VALUES(attempts) ELSE VALUES(attempts) END, "
+            + "last_attempt = VALUES(last_attempt)";
+    private static final String DELETE_ATTEMPTS = "DELETE FROM login_attempt WHERE username = ?";
+    private static final String DELETE_EXPIRED = "DELETE FROM login_attempt WHERE last_attempt <= ?";
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final ConcurrentMap<String, Integer> pendingFailures = new ConcurrentHashMap<>();
+    private final Set<String> pendingResets = ConcurrentHashMap.newKeySet();
+    private final JdbcTemplate jdbcTemplate;
+    private final long windowMillis;
+    private final long flushIntervalMillis;
+    private final Cache<String, Integer> sharedAttempts;
+    private final ScheduledExecutorService flusher;
+    private volatile long lastPurge;
+
+    @Autowired
+    public JdbcLoginAttemptStore(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry,
+                                 @Value("${login-attempt.window-minutes:15}") long windowMinutes,
+                                 @Value("${login-attempt.jdbc.flush-interval-ms:500}") long flushIntervalMillis,
+                                 @Value("${login-attempt.jdbc.cache-ttl-ms:1000}") long cacheTtlMillis,
+                                 @Value("${login-attempt.capacity:1000000}") long capacity) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.windowMillis = MINUTES.toMillis(windowMinutes);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.sharedAttempts = CacheBuilder.newBuilder().maximumSize(capacity).expireAfterWrite(cacheTtlMillis, MILLISECONDS).build();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("login-attempt-flusher").setDaemon(true).build());
+        Gauge.builder("login.attempts.pending", pendingFailures, Map::size).register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        jdbcTemplate.execute(CREATE_TABLE);
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, MILLISECONDS);
+    }
+
+    @Override
+    public int recordFailure(String username) {
+        int pending = pendingFailures.merge(username, 1, Integer::sum);
+        return sharedAttempts(username) + pending;
+    }
+
+    @Override
+    public int getAttempts(String username) {
+        return sharedAttempts(username) + pendingFailures.getOrDefault(username, 0);
+    }
+
+    @Override
+    public void reset(String username) {
+        //called on every successful login, only users that actually failed are deleted
+        if (pendingFailures.remove(username) != null || sharedAttempts(username) > 0) {
+            pendingResets.add(username);
+            sharedAttempts.put(username, 0);
+        }
+    }
+
+    //resets go first so failures that came in after a reset are kept
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        if (!pendingResets.isEmpty()) {
+            List<String> usernames = new ArrayList<>(pendingResets);
+            pendingResets.removeAll(usernames);
+            List<Object[]> resets = new ArrayList<>(usernames.size());
+            usernames.forEach(username -> resets.add(new Object[]{username}));
+            try {
+                jdbcTemplate.batchUpdate(DELETE_ATTEMPTS, resets);
+            } catch (RuntimeException e) {
+                pendingResets.addAll(usernames);
+                throw e;
+            }
+        }
+        if (!pendingFailures.isEmpty()) {
+            Map<String, Integer> taken = new HashMap<>();
+            for (String username : pendingFailures.keySet()) {
+                Integer pending = pendingFailures.remove(username);
+                if (pending != null) {
+                    taken.put(username, pending);
+                }
+            }
+            List<Object[]> failures = new ArrayList<>(taken.size());
+            taken.forEach((username, pending) -> failures.add(new Object[]{username, pending, now, now - windowMillis}));
+            try {
+                jdbcTemplate.batchUpdate(UPSERT_ATTEMPTS, failures);
+            } catch (RuntimeException e) {
+                taken.forEach((username, pending) -> pendingFailures.merge(username, pending, Integer::sum));
+                throw e;
+            }
+            //next read picks up the merged count from every node
+            sharedAttempts.invalidateAll(taken.keySet());
+        }
+    }
+
+    private int sharedAttempts(String username) {
+        try {
+            return sharedAttempts.get(username, () -> {
+                List<Integer> attempts = jdbcTemplate.queryForList(SELECT_ATTEMPTS, Integer.class, username, System.currentTimeMillis() - windowMillis);
+                return attempts.isEmpty() ? 0 : attempts.get(0);
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            //while the database is unreachable only this node's own pending failures count
+            logger.error("Could not read login attempts for " + username + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+            long now = System.currentTimeMillis();
+            if (now - lastPurge > MINUTES.toMillis(1)) {
+                lastPurge = now;
+                jdbcTemplate.update(DELETE_EXPIRED, now - windowMillis);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not write login attempts: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        flushQuietly();
+    }
+}
@@ -1,15 +1,23 @@
 package com.maputo.maputo.service.implementation;
 
 import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserFilter;
+import com.maputo.maputo.domain.UserPage;
+import com.maputo.maputo.domain.UserView;
 import com.maputo.maputo.domain.UserPrincipal;
 import com.maputo.maputo.enumeration.Role;
 import com.maputo.maputo.exception.domain.EmailExistException;
 import com.maputo.maputo.exception.domain.EmailNotFoundException;
+import com.maputo.maputo.exception.domain.InvalidImageException;
 import com.maputo.maputo.exception.domain.UserNotFoundException;
 import com.maputo.maputo.exception.domain.UsernameExistException;
 import com.maputo.maputo.repository.UserRepository;
-import com.maputo.maputo.service.EmailService;
+import com.maputo.maputo.service.EmailOutbox;
+import com.maputo.maputo.service.ImageStore;
 import com.maputo.maputo.service.LoginAttemptService;
+import com.maputo.maputo.service.LoginTimestampRecorder;
+import com.maputo.maputo.service.ThumbnailService;
+import com.maputo.maputo.service.UserSearchService;
 import com.maputo.maputo.service.UserService;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -18,51 +26,82 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.userdetails.UserCache;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import javax.mail.MessagingException;
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.EntityManager;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 
 import static com.maputo.maputo.constant.FileConstant.*;
 import static com.maputo.maputo.constant.UserImplConstant.*;
 import static com.maputo.maputo.enumeration.Role.ROLE_USER;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static org.apache.logging.log4j.util.Strings.EMPTY;
 import static org.apache.logging.log4j.util.Strings.isBlank;
+import static org.hibernate.cfg.AvailableSettings.JPA_SHARED_CACHE_RETRIEVE_MODE;
 
 @Service
-@Transactional
+//a failed upload or an email that can not be queued leaves the user as it was,
+//the other checked exceptions are thrown before anything is written
+@Transactional(rollbackFor = {IOException.class, InvalidImageException.class, MessagingException.class})
 //Transactional manage propagation when doing transactions
 @Qualifier("userDetailsService") // name for bean
-public class UserServiceImplementation implements UserService, UserDetailsService {
+public class UserServiceImplementation implements UserService, UserDetailsService, UserDetailsPasswordService {
     private Logger logger = LoggerFactory.getLogger(getClass());
     private UserRepository userRepository;
-    private BCryptPasswordEncoder passwordEncoder;
+    private PasswordEncoder passwordEncoder;
     private LoginAttemptService loginAttemptService;
-    private EmailService emailService;
+    private EmailOutbox emailOutbox;
+    private LoginTimestampRecorder loginTimestampRecorder;
+    private EntityManager entityManager;
+    private UserCache userCache;
+    private UserSearchService userSearchService;
+    private ImageStore imageStore;
+    private ThumbnailService thumbnailService;
+    private int defaultPageSize;
+    private int maximumPageSize;
     //Auto wiring to the created bean
     @Autowired
-    public UserServiceImplementation(UserRepository userRepository,BCryptPasswordEncoder passwordEncoder, LoginAttemptService loginAttemptService, EmailService emailService) {
+    public UserServiceImplementation(UserRepository userRepository,PasswordEncoder passwordEncoder, LoginAttemptService loginAttemptService, EmailOutbox emailOutbox,
+                                     LoginTimestampRecorder loginTimestampRecorder, EntityManager entityManager, UserCache userCache,
+                                     UserSearchService userSearchService, ImageStore imageStore,
+                                     ThumbnailService thumbnailService,
+                                     @Value("${user-list.default-page-size:50}") int defaultPageSize,
+                                     @Value("${user-list.maximum-page-size:500}") int maximumPageSize) {
         this.passwordEncoder=passwordEncoder;
         this.userRepository = userRepository;
         this.loginAttemptService=loginAttemptService;
-        this.emailService=emailService;
+        this.emailOutbox=emailOutbox;
+        this.loginTimestampRecorder=loginTimestampRecorder;
+        this.entityManager=entityManager;
+        this.userCache=userCache;
+        this.userSearchService=userSearchService;
+        this.imageStore=imageStore;
+        this.thumbnailService=thumbnailService;
+        this.defaultPageSize=defaultPageSize;
+        this.maximumPageSize=maximumPageSize;
     }
 
+    //not read-only, it may lock the account, and a login right after register must not miss the user on a lagging replica
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
         User user = userRepository.findUserByUsername(username);
@@ -70,16 +109,57 @@ public class UserServiceImplementation implements UserService, UserDetailsServic
             logger.error(NO_USER_FOUND_BY_USERNAME+username);
             throw new UsernameNotFoundException(NO_USER_FOUND_BY_USERNAME+username);
         }else{
+            boolean wasNotBlocked = user.isNotBlocked();
             validateLoginAttempt(user);
-            user.setLastLoginDateDisplay(user.getLastLoginDate());
-            user.setLastLoginDate(new Date());
-            userRepository.save(user);//already defined in JPArepository
+            if(wasNotBlocked != user.isNotBlocked()){
+                //locking the account is rare and has to be visible right away, so it is still written here
+                userRepository.saveAndFlush(user);
+                //otherwise the unlocked principal in the user cache would still let them in
+                evictFromUserCache(username);
+            }
+            //detached, the principal outlives the persistence context and may be shared by the user cache
+            entityManager.detach(user);
             UserPrincipal userPrincipal = new UserPrincipal(user);
             logger.info(FOUND_USER_BY_USERNAME + username);
             return userPrincipal;
         }
     }
 
+    //called after a successful login when password-encoder.rehash-on-login is on and the stored hash is weaker than the current strength
+    @Override
+    public UserDetails updatePassword(UserDetails userDetails, String newPassword) {
+        userRepository.updatePassword(userDetails.getUsername(), newPassword);
+        User user = ((UserPrincipal) userDetails).getUser();
+        user.setPassword(newPassword);
+        evictFromUserCache(user.getUsername());
+        return new UserPrincipal(user);
+    }
+
+    //Evicts now and again after commit, so a login racing with the write can't cache the old row for long
+    private void evictFromUserCache(String... usernames) {
+        for (String username : usernames) {
+            userCache.removeUserFromCache(username);
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    for (String username : usernames) {
+                        userCache.removeUserFromCache(username);
+                    }
+                }
+            });
+        }
+    }
+
+    //called by AuthenticationFailureListener with the failure that reaches the limit, unknown usernames change nothing
+    @Override
+    public void blockUser(String username) {
+        if (userRepository.block(username) > 0) {
+            evictFromUserCache(username);
+        }
+    }
+
     private void validateLoginAttempt(User user) {
         if(user.isNotBlocked()){
             if(loginAttemptService.hasExceededMaxAttempts(user.getUsername())){
@@ -111,9 +191,11 @@ public class UserServiceImplementation implements UserService, UserDetailsServic
         user.setRole(ROLE_USER.name());//converting it to the string by the name() function
         user.setAuthorities(ROLE_USER.getAuthorities());
         user.setProfileImageUrl(getTemporaryProfileImgUrl(username));
-        userRepository.save(user);
+        //flushed so a duplicate fails here, before the password email is queued
+        userRepository.saveAndFlush(user);
+        userSearchService.index(user);
         logger.info("New user password: "+password);//remove in future
-        emailService.sendNewPasswordEmail(firstName,password, email);
+        emailOutbox.queueNewPasswordEmail(firstName,password, email);
         return user;
     }
 
@@ -135,55 +217,70 @@ public class UserServiceImplementation implements UserService, UserDetailsServic
         return RandomStringUtils.randomNumeric(10);//returns some string of numbers with the length of 10 digits
     }
 
+    //The unique keys on username and email are what really stop duplicates, this is only for a friendly message
+    //in the common case. Two registrations racing past it end in a DataIntegrityViolationException instead.
     private User validateNewUsernameAndEmail(String currentUsername, String newUsername, String newEmail) throws UserNotFoundException, UsernameExistException, EmailExistException {
-        //checking if current user is not blank, if it is blank then I am dealing with new user
-        User userByNewUsername = findUserByUsername(newUsername);
-        User userByNewEmail = findUserByEmail(newEmail);
-        if(StringUtils.isNotBlank(currentUsername)){
-            User currentUser=findUserByUsername(currentUsername);
+        boolean existingUser = StringUtils.isNotBlank(currentUsername);
+        List<User> users = userRepository.findConflictingUsers(existingUser ? currentUsername : null, newUsername, newEmail);
+        User currentUser = null;
+        if(existingUser){
+            //exact match first, MySQL's default collation also returns rows that only differ in case
+            currentUser = users.stream().filter(user -> currentUsername.equals(user.getUsername())).findFirst()
+                    .orElse(users.stream().filter(user -> currentUsername.equalsIgnoreCase(user.getUsername())).findFirst().orElse(null));
             if(currentUser == null){
                 throw new UserNotFoundException(NO_USER_FOUND_BY_USERNAME +currentUsername);
             }
-            //I take new username that user passing and the I try to find a user
-            //And if that user is not null and their ids dont match then I know that it is a brand new user
-
-            if(userByNewUsername != null && !currentUser.getId().equals(userByNewUsername.getId())){
-                throw new UsernameExistException(USERNAME_ALREADY_EXISTS);
+        }
+        //any other row with the new username or email is a conflict, for a new user that is any row at all
+        for(User user : users){
+            if(currentUser != null && currentUser.getId().equals(user.getId())){
+                continue;
             }
-            //and the same goes to the email
-
-            if(userByNewEmail != null && !currentUser.getId().equals(userByNewEmail.getId())){
-                throw new EmailExistException(EMAIL_ALREADY_EXISTS);
-            }//if it is not the case I just return that user
-            return currentUser;
-        }else{
-            if(userByNewUsername != null){
+            if(newUsername != null && newUsername.equalsIgnoreCase(user.getUsername())){
                 throw new UsernameExistException(USERNAME_ALREADY_EXISTS);
             }
-            if(userByNewEmail != null){
+            if(newEmail != null && newEmail.equalsIgnoreCase(user.getEmail())){
                 throw new EmailExistException(EMAIL_ALREADY_EXISTS);
             }
-            return null;
         }
+        return currentUser;
     }
 
+    //read only, Hibernate skips flushing and dirty checking; the views are not entities anyway
     @Override
-    public List<User> getUsers() {
-        return userRepository.findAll();
+    @Transactional(readOnly = true)
+    public UserPage getUsers(Long afterId, Integer size, UserFilter filter) {
+        int pageSize = size == null ? defaultPageSize : Math.max(1, Math.min(size, maximumPageSize));
+        //one extra row tells us whether there is a next page without a count query
+        List<UserView> users = userRepository.findPage(afterId, pageSize + 1, filter);
+        Long nextCursor = null;
+        if(users.size() > pageSize){
+            users = users.subList(0, pageSize);
+            nextCursor = users.get(pageSize - 1).getId();
+        }
+        users.replaceAll(loginTimestampRecorder::applyPending);
+        return new UserPage(users, nextCursor);
     }
 
+    //single users come from the second-level cache, the cached row already is everything the view needs
     @Override
-    public User findUserByUsername(String username) {
-        return userRepository.findUserByUsername(username);
+    @Transactional(readOnly = true)
+    public UserView findUserByUsername(String username) {
+        return toView(userRepository.findUserByNaturalId(username));
     }
 
     @Override
-    public User findUserByEmail(String email) {
-        return userRepository.findUserByEmail(email);
+    @Transactional(readOnly = true)
+    public UserView findUserByEmail(String email) {
+        return toView(userRepository.findUserByEmail(email));
+    }
+
+    private UserView toView(User user) {
+        return user == null ? null : loginTimestampRecorder.applyPending(UserView.from(user));
     }
 
     @Override
-    public User addNewUser(String firstName, String lastName, String username, String email, String role, boolean isNonLocked, boolean isActive, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException {
+    public User addNewUser(String firstName, String lastName, String username, String email, String role, boolean isNonLocked, boolean isActive, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException, InvalidImageException {
         validateNewUsernameAndEmail(EMPTY, username, email);
         User user = new User();
         String password = generatePassword();
@@ -199,30 +296,44 @@ public class UserServiceImplementation implements UserService, UserDetailsServic
         user.setRole(getRoleEnumName(role).name());
         user.setAuthorities(getRoleEnumName(role).getAuthorities());
         user.setProfileImageUrl(getTemporaryProfileImgUrl(username));
-        userRepository.save(user);
+        //flushed so a duplicate fails here, before the image is written to disk
+        userRepository.saveAndFlush(user);
+        userSearchService.index(user);
         saveProfileImg(user, profileImg);
         return user;
     }
 
-    private void saveProfileImg(User user, MultipartFile profileImg) throws IOException {
+    private void saveProfileImg(User user, MultipartFile profileImg) throws IOException, InvalidImageException {
         if(profileImg !=null){
-            // user/home/supportportal/user/rick
-            Path userFolder = Paths.get(USER_FOLDER + user.getUsername()).toAbsolutePath().normalize();
-            if(!Files.exists(userFolder)){
-                Files.createDirectories(userFolder);
-                logger.info(DIRECTORY_CREATED + userFolder);
+            try (InputStream content = profileImg.getInputStream()) {
+                saveProfileImg(user, content);
             }
-            Files.deleteIfExists(Paths.get(userFolder+user.getUsername()+DOT+JPG_EXTENSION));
-            Files.copy(profileImg.getInputStream(), userFolder.resolve(user.getUsername()+DOT+JPG_EXTENSION),REPLACE_EXISTING);
-            user.setProfileImageUrl(setProfileImageUrl(user.getUsername()));
-            userRepository.save(user);
-            logger.info(FILE_SAVED_IN_FILE_SYSTEM + profileImg.getOriginalFilename());
         }
     }
 
-    private String setProfileImageUrl(String username) {
-        //return location of the image
-        return ServletUriComponentsBuilder.fromCurrentContextPath().path(USER_IMAGE_PATH+username+FORWARD_SLASH + username + DOT + JPG_EXTENSION).toUriString();
+    private void saveProfileImg(User user, InputStream profileImg) throws IOException, InvalidImageException {
+        //stored by its content, the same picture uploaded by many users is one file
+        setProfileImg(user, imageStore.add(profileImg));
+    }
+
+    private void setProfileImg(User user, String image) {
+        releaseProfileImg(user);
+        thumbnailService.makeThumbnails(imageStore.locate(image));
+        user.setProfileImageUrl(setProfileImageUrl(image));
+        userRepository.save(user);
+        logger.info(FILE_SAVED_IN_FILE_SYSTEM + image);
+    }
+
+    private String setProfileImageUrl(String image) {
+        //return location of the image, the name changes with the content so browsers can keep each one for good
+        return ServletUriComponentsBuilder.fromCurrentContextPath().path(USER_IMAGE_PATH + image).toUriString();
+    }
+
+    //the stored image is the last part of the URL, drawn avatars and images from before the store are not released
+    private void releaseProfileImg(User user) {
+        if(user.getProfileImageUrl() != null){
+            imageStore.release(StringUtils.substringAfterLast(user.getProfileImageUrl(), FORWARD_SLASH));
+        }
     }
 
     private Role getRoleEnumName(String role) {
@@ -230,7 +341,7 @@ public class UserServiceImplementation implements UserService, UserDetailsServic
     }
 
     @Override
-    public User updateUser(String currentUsername, String newFirstName, String newLastName, String newUsername, String newEmail, String role, boolean isNonLocked, boolean isActive, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException {
+    public User updateUser(String currentUsername, String newFirstName, String newLastName, String newUsername, String newEmail, String role, boolean isNonLocked, boolean isActive, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException, InvalidImageException {
         User currentUser=validateNewUsernameAndEmail(currentUsername, newUsername, newEmail);
         currentUser.setFirstName(newFirstName);
         currentUser.setLastName(newLastName);
@@ -240,32 +351,51 @@ public class UserServiceImplementation implements UserService, UserDetailsServic
         currentUser.setNotBlocked(isNonLocked);
         currentUser.setRole(getRoleEnumName(role).name());
         currentUser.setAuthorities(getRoleEnumName(role).getAuthorities());
-        userRepository.save(currentUser);
+        userRepository.saveAndFlush(currentUser);
+        evictFromUserCache(currentUsername, newUsername);
+        userSearchService.index(currentUser);
         saveProfileImg(currentUser,profileImg);
         return currentUser;
     }
 
     @Override
     public void deleteUser(long id) {
+        //the image reference released is the one in the database, not a cached copy from before a change on another node
+        Optional.ofNullable(entityManager.find(User.class, id, Map.of(JPA_SHARED_CACHE_RETRIEVE_MODE, CacheRetrieveMode.BYPASS))).ifPresent(user -> {
+            evictFromUserCache(user.getUsername());
+            releaseProfileImg(user);
+        });
         userRepository.deleteById(id);
+        userSearchService.remove(id);
     }
 
     @Override
     public void resetPassword(String email) throws EmailNotFoundException, MessagingException {
-        User user = userRepository.findUserByEmail(email);
+        User user = userRepository.findUncachedUserByEmail(email);
         if(user==null){
             throw new EmailNotFoundException(NO_USER_FOUND_BY_EMAIL+email);
         }
         String password = generatePassword();
         user.setPassword(encodedPassword(password));
         userRepository.save(user);
-        emailService.sendNewPasswordEmail(user.getFirstName(), password, user.getEmail());
+        evictFromUserCache(user.getUsername());
+        emailOutbox.queueNewPasswordEmail(user.getFirstName(), password, user.getEmail());
     }
 
     @Override
-    public User updateProfileImage(String username, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException {
+    public User updateProfileImage(String username, MultipartFile profileImg) throws UserNotFoundException, EmailExistException, UsernameExistException, IOException, InvalidImageException {
         User user = validateNewUsernameAndEmail(username, null, null);
         saveProfileImg(user,profileImg);
+        evictFromUserCache(username);
+        return user;
+    }
+
+    //the upload was stored before this transaction began, only the user row is written here
+    @Override
+    public User updateStoredProfileImage(String username, String image) throws UserNotFoundException, EmailExistException, UsernameExistException {
+        User user = validateNewUsernameAndEmail(username, null, null);
+        setProfileImg(user, image);
+        evictFromUserCache(username);
         return user;
     }
 }
@@ -0,0 +1,104 @@
+package com.maputo.maputo.utility;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.maputo.maputo.constant.Authority.AUTHORITY_BITS;
+
+//Maps authority strings to bit positions so tokens can carry a single int instead of an array of strings.
+//Every distinct mask resolves to one shared, immutable list of GrantedAuthority objects.
+public final class AuthorityMask {
+    public static final int UNMAPPED = -1;
+    private static final Map<String, Integer> BIT_BY_AUTHORITY = new HashMap<>();
+    private static final GrantedAuthority[] AUTHORITY_BY_BIT = new GrantedAuthority[AUTHORITY_BITS.length];
+    private static final ConcurrentMap<Integer, List<GrantedAuthority>> AUTHORITIES_BY_MASK = new ConcurrentHashMap<>();
+    //authorities outside AUTHORITY_BITS still get interned, they just can't be packed into a mask
+    private static final ConcurrentMap<String, GrantedAuthority> AUTHORITY_POOL = new ConcurrentHashMap<>();
+
+    static {
+        for (int bit = 0; bit < AUTHORITY_BITS.length; bit++) {
+            BIT_BY_AUTHORITY.put(AUTHORITY_BITS[bit], bit);
+            AUTHORITY_BY_BIT[bit] = intern(AUTHORITY_BITS[bit]);
+        }
+    }
+
+    private AuthorityMask() {}
+
+    //returns UNMAPPED if any of the authorities has no bit assigned
+    public static int toMask(String[] authorities) {
+        if (authorities == null) {
+            return 0;
+        }
+        int mask = 0;
+        for (String authority : authorities) {
+            Integer bit = BIT_BY_AUTHORITY.get(authority);
+            if (bit == null) {
+                return UNMAPPED;
+            }
+            mask |= 1 << bit;
+        }
+        return mask;
+    }
+
+    //every mask that includes the authority, for "authority_mask in (...)" queries. Empty when the authority has no bit.
+    public static List<Integer> masksWith(String authority) {
+        Integer bit = BIT_BY_AUTHORITY.get(authority);
+        if (bit == null) {
+            return Collections.emptyList();
+        }
+        List<Integer> masks = new ArrayList<>(1 << (AUTHORITY_BITS.length - 1));
+        for (int mask = 0; mask < 1 << AUTHORITY_BITS.length; mask++) {
+            if ((mask & (1 << bit)) != 0) {
+                masks.add(mask);
+            }
+        }
+        return masks;
+    }
+
+    public static String[] toArray(int mask) {
+        List<GrantedAuthority> authorities = toAuthorities(mask);
+        String[] result = new String[authorities.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = authorities.get(i).getAuthority();
+        }
+        return result;
+    }
+
+    public static List<GrantedAuthority> toAuthorities(int mask) {
+        return AUTHORITIES_BY_MASK.computeIfAbsent(mask, AuthorityMask::buildAuthorities);
+    }
+
+    public static List<GrantedAuthority> toAuthorities(String[] authorities) {
+        int mask = toMask(authorities);
+        if (mask != UNMAPPED) {
+            return toAuthorities(mask);
+        }
+        List<GrantedAuthority> result = new ArrayList<>(authorities.length);
+        for (String authority : authorities) {
+            result.add(intern(authority));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static List<GrantedAuthority> buildAuthorities(int mask) {
+        List<GrantedAuthority> authorities = new ArrayList<>(Integer.bitCount(mask));
+        for (int bit = 0; bit < AUTHORITY_BY_BIT.length; bit++) {
+            if ((mask & (1 << bit)) != 0) {
+                authorities.add(AUTHORITY_BY_BIT[bit]);
+            }
+        }
+        return Collections.unmodifiableList(authorities);
+    }
+
+    private static GrantedAuthority intern(String authority) {
+        return AUTHORITY_POOL.computeIfAbsent(authority, SimpleGrantedAuthority::new);
+    }
+}
@@ -0,0 +1,113 @@
+package com.maputo.maputo.utility;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maputo.maputo.exception.domain.PasswordEncoderBusyException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+//Runs BCrypt on its own small pool instead of on Tomcat request threads.
+//When the pool and its queue are full we fail fast with PasswordEncoderBusyException (503) instead of piling up request threads.
+public class BoundedPasswordEncoder implements PasswordEncoder {
+    private static final String ENCODE = "encode";
+    private static final String MATCHES = "matches";
+    private final PasswordEncoder delegate;
+    private final ThreadPoolExecutor executor;
+    private final boolean rehashOnLogin;
+    private final Counter rejected;
+    private final Timer encodeWait;
+    private final Timer encodeWork;
+    private final Timer matchesWait;
+    private final Timer matchesWork;
+
+    public BoundedPasswordEncoder(PasswordEncoder delegate, int threads, int queueCapacity, boolean rehashOnLogin, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.rehashOnLogin = rehashOnLogin;
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS, queue,
+                new ThreadFactoryBuilder().setNameFormat("password-encoder-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.rejected = Counter.builder("password.encoder.rejected").description("Hash requests rejected because the pool was full")
+                .register(meterRegistry);
+        Gauge.builder("password.encoder.queue", queue, BlockingQueue::size).register(meterRegistry);
+        this.encodeWait = timer("password.encoder.wait", ENCODE, meterRegistry);
+        this.encodeWork = timer("password.encoder.work", ENCODE, meterRegistry);
+        this.matchesWait = timer("password.encoder.wait", MATCHES, meterRegistry);
+        this.matchesWork = timer("password.encoder.work", MATCHES, meterRegistry);
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return await(encodeAsync(rawPassword));
+    }
+
+    //for callers that hash many passwords at once and want them done in parallel
+    public CompletableFuture<String> encodeAsync(CharSequence rawPassword) {
+        return submit(encodeWait, encodeWork, () -> delegate.encode(rawPassword));
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return await(submit(matchesWait, matchesWork, () -> delegate.matches(rawPassword, encodedPassword)));
+    }
+
+    //DaoAuthenticationProvider re-encodes the password after a successful login when this returns true,
+    //so raising the strength upgrades stored hashes lazily
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        return rehashOnLogin && delegate.upgradeEncoding(encodedPassword);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(Timer waitTimer, Timer workTimer, Supplier<T> work) {
+        long queuedAt = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long startedAt = System.nanoTime();
+                waitTimer.record(startedAt - queuedAt, NANOSECONDS);
+                try {
+                    return work.get();
+                } finally {
+                    workTimer.record(System.nanoTime() - startedAt, NANOSECONDS);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new PasswordEncoderBusyException();
+        }
+    }
+
+    private static Timer timer(String name, String operation, MeterRegistry meterRegistry) {
+        return Timer.builder(name).tag("operation", operation).register(meterRegistry);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PasswordEncoderBusyException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.maputo.maputo.utility;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+//Lets DaoAuthenticationProvider skip loadUserByUsername for users that logged in recently.
+//UserServiceImplementation evicts entries whenever it changes a user.
+public class BoundedUserCache implements UserCache {
+    private final Cache<String, UserDetails> cache;
+
+    public BoundedUserCache(long maximumSize, long ttlSeconds) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttlSeconds, SECONDS).build();
+    }
+
+    @Override
+    public UserDetails getUserFromCache(String username) {
+        return cache.getIfPresent(username);
+    }
+
+    @Override
+    public void putUserInCache(UserDetails user) {
+        cache.put(user.getUsername(), user);
+    }
+
+    @Override
+    public void removeUserFromCache(String username) {
+        cache.invalidate(username);
+    }
+}
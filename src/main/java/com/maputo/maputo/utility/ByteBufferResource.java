@@ -0,0 +1,61 @@
+package com.maputo.maputo.utility;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+//Lets Spring's resource converters (full body and Range) write a heap or direct ByteBuffer without copying it first.
+//Each stream reads its own duplicate, the buffer itself is never moved.
+public class ByteBufferResource extends AbstractResource {
+    private final ByteBuffer buffer;
+    private final String description;
+
+    public ByteBufferResource(ByteBuffer buffer, String description) {
+        this.buffer = buffer;
+        this.description = description;
+    }
+
+    @Override
+    public String getDescription() {
+        return "ByteBuffer resource [" + description + "]";
+    }
+
+    @Override
+    public long contentLength() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        ByteBuffer content = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return content.hasRemaining() ? content.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+                int read = Math.min(length, content.remaining());
+                content.get(bytes, offset, read);
+                return read;
+            }
+
+            @Override
+            public long skip(long n) {
+                int skipped = (int) Math.max(0, Math.min(n, content.remaining()));
+                content.position(content.position() + skipped);
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return content.remaining();
+            }
+        };
+    }
+}
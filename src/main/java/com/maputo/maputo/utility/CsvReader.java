@@ -0,0 +1,69 @@
+package com.maputo.maputo.utility;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+//Reads RFC 4180 records one at a time, the counterpart of CsvWriter. Quoted values may contain commas, quotes and line breaks.
+public class CsvReader {
+    private final Reader reader;
+    private int next = -2;
+
+    public CsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    //null at the end of the input
+    public List<String> readRecord() throws IOException {
+        if (peek() == -1) {
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            int c = read();
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted value");
+                }
+                if (c == '"') {
+                    if (peek() == '"') {
+                        value.append((char) read());
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    value.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+                values.add(value.toString());
+                return values;
+            } else {
+                value.append((char) c);
+            }
+        }
+    }
+
+    private int peek() throws IOException {
+        if (next == -2) {
+            next = reader.read();
+        }
+        return next;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        next = -2;
+        return c;
+    }
+}
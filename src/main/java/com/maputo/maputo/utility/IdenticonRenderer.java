@@ -0,0 +1,59 @@
+package com.maputo.maputo.utility;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+//Draws a 5x5 identicon from a hash: one colour and a left half of 15 cells that is mirrored to the right.
+//Same hash, same picture, so nothing about it has to be stored to draw it again.
+public final class IdenticonRenderer {
+    private static final int CELLS = 5;
+    private static final int CELL_SIZE = 44;
+    private static final int MARGIN = 15;
+    public static final int SIZE = CELLS * CELL_SIZE + 2 * MARGIN;
+    private static final Color BACKGROUND = new Color(240, 240, 240);
+    private static final String PNG = "png";
+
+    private IdenticonRenderer() {
+    }
+
+    //needs at least 6 bytes of hash
+    public static byte[] render(byte[] hash) throws IOException {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(BACKGROUND);
+            graphics.fillRect(0, 0, SIZE, SIZE);
+            graphics.setColor(colour(hash));
+            for (int column = 0; column < (CELLS + 1) / 2; column++) {
+                for (int row = 0; row < CELLS; row++) {
+                    int bit = column * CELLS + row;
+                    if ((hash[4 + bit / 8] >> (bit % 8) & 1) == 1) {
+                        fill(graphics, column, row);
+                        fill(graphics, CELLS - 1 - column, row);
+                    }
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream(2048);
+        ImageIO.write(image, PNG, png);
+        return png.toByteArray();
+    }
+
+    //any hue, saturated and dark enough to stand out from the background
+    private static Color colour(byte[] hash) {
+        float hue = ((hash[0] & 0xFF) << 8 | hash[1] & 0xFF) / 65536f;
+        float saturation = 0.45f + (hash[2] & 0xFF) / 255f * 0.35f;
+        float brightness = 0.55f + (hash[3] & 0xFF) / 255f * 0.25f;
+        return Color.getHSBColor(hue, saturation, brightness);
+    }
+
+    private static void fill(Graphics2D graphics, int column, int row) {
+        graphics.fillRect(MARGIN + column * CELL_SIZE, MARGIN + row * CELL_SIZE, CELL_SIZE, CELL_SIZE);
+    }
+}
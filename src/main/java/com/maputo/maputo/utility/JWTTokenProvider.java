@@ -1,41 +1,68 @@
 package com.maputo.maputo.utility;
 
 import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTCreator;
 import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
-import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.Claim;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.maputo.maputo.domain.UserPrincipal;
+import com.maputo.maputo.domain.VerifiedToken;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
 import org.springframework.stereotype.Component;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import static com.maputo.maputo.constant.SecurityConstant.*;
-import static java.util.Arrays.stream;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 @Component
 public class JWTTokenProvider {
-    @Value("${jwt.secret}")
-    private String secret;
+    private final Algorithm algorithm;
+    private final JWTVerifier verifier;
+    //keyed by the token digest so we never keep raw bearer tokens in memory
+    private final Cache<HashCode, VerifiedToken> verifiedTokenCache;
+    //keep writing the old array claim until every node reads the mask claim
+    private final boolean legacyAuthoritiesClaim;
+
+    public JWTTokenProvider(@Value("${jwt.secret}") String secret,
+                            @Value("${jwt.verified-cache-size:10000}") long verifiedCacheSize,
+                            @Value("${jwt.legacy-authorities-claim:true}") boolean legacyAuthoritiesClaim) {
+        //algorithm and verifier are thread safe, building them once instead of on every call
+        this.algorithm = Algorithm.HMAC512(secret.getBytes(UTF_8));
+        this.verifier = JWT.require(algorithm).withIssuer(MAPUTO_LLC).build();
+        this.verifiedTokenCache = CacheBuilder.newBuilder().maximumSize(verifiedCacheSize).build();
+        this.legacyAuthoritiesClaim = legacyAuthoritiesClaim;
+    }
 
     public String generateJwtToken(UserPrincipal userPrincipal){
         String[] claims= getClaimsFromUser(userPrincipal);
-        return JWT.create().withIssuer(MAPUTO_LLC).withAudience(MAPUTO_ADMINISTRATION)
+        int authorityMask = AuthorityMask.toMask(claims);
+        JWTCreator.Builder builder = JWT.create().withIssuer(MAPUTO_LLC).withAudience(MAPUTO_ADMINISTRATION)
                 .withIssuedAt(new Date())
                 .withSubject(userPrincipal.getUsername())
-                .withArrayClaim(AUTHORITIES, claims)
-                .withExpiresAt(new Date(System.currentTimeMillis()+EXPIRATION_TIME))
-                .sign(Algorithm.HMAC512(secret.getBytes()));
+                .withExpiresAt(new Date(System.currentTimeMillis()+EXPIRATION_TIME));
+        if(authorityMask != AuthorityMask.UNMAPPED){
+            builder.withClaim(AUTHORITY_MASK, authorityMask);
+        }
+        //authorities without a bit can only travel in the array claim
+        if(legacyAuthoritiesClaim || authorityMask == AuthorityMask.UNMAPPED){
+            builder.withArrayClaim(AUTHORITIES, claims);
+        }
+        return builder.sign(algorithm);
     }
 
     private String[] getClaimsFromUser(UserPrincipal userPrincipal) {
@@ -46,28 +73,43 @@ public class JWTTokenProvider {
         return authorities.toArray(new String[0]);//returning it as an array of string instead of a list of string
     }
 
-    public List<GrantedAuthority> getAuthorities(String token){
-        //determine what authorities user has before letting them an access
-        String[] claims= getClaimsFromToken(token);
-        //loop over some collection and map every item to a simplegrantedauthority and collecting them into a list
-        return stream(claims).map(SimpleGrantedAuthority::new).collect(Collectors.toList());
+    //Verifies the signature once and decodes everything the filter needs.
+    //Hot tokens are served from the cache until they expire, so the HMAC is only checked on the first request.
+    public VerifiedToken verify(String token) {
+        HashCode key = Hashing.sha256().hashString(token, UTF_8);
+        VerifiedToken verifiedToken = verifiedTokenCache.getIfPresent(key);
+        if (verifiedToken != null && !verifiedToken.isExpired(System.currentTimeMillis())) {
+            return verifiedToken;
+        }
+        if (verifiedToken != null) {
+            verifiedTokenCache.invalidate(key);
+        }
+        //throws the same JWTVerificationException / TokenExpiredException as before
+        verifiedToken = decode(verifier.verify(token));
+        verifiedTokenCache.put(key, verifiedToken);
+        return verifiedToken;
     }
 
-    private String[] getClaimsFromToken(String token) {
-        JWTVerifier verifier = getJWTVerifier();
-        return verifier.verify(token).getClaim(AUTHORITIES).asArray(String.class);
+    private VerifiedToken decode(DecodedJWT decodedJWT) {
+        return new VerifiedToken(decodedJWT.getSubject(), decodedJWT.getExpiresAt(), getAuthorities(decodedJWT));
     }
 
-    private JWTVerifier getJWTVerifier() {
-        JWTVerifier verifier;
-        try{
-            Algorithm algorithm = Algorithm.HMAC512(secret);
-            verifier = JWT.require(algorithm).withIssuer(MAPUTO_LLC).build();
-        }catch (JWTVerificationException e){
-            //I dont want to show the user the actual exception message that's why I pass mmy own message
-            throw new JWTVerificationException(TOKEN_CANNOT_BE_VERIFIED);
+    private List<GrantedAuthority> getAuthorities(DecodedJWT decodedJWT) {
+        //tokens issued before the mask claim existed only have the array claim
+        Claim maskClaim = decodedJWT.getClaim(AUTHORITY_MASK);
+        if (!maskClaim.isNull()) {
+            return AuthorityMask.toAuthorities(maskClaim.asInt());
         }
-        return verifier;
+        String[] claims = decodedJWT.getClaim(AUTHORITIES).asArray(String.class);
+        if (claims == null) {
+            return Collections.emptyList();
+        }
+        return AuthorityMask.toAuthorities(claims);
+    }
+
+    public List<GrantedAuthority> getAuthorities(String token){
+        //determine what authorities user has before letting them an access
+        return verify(token).getAuthorities();
     }
 
     public Authentication getAuthentication(String username, List<GrantedAuthority> authorities, HttpServletRequest request){
@@ -78,20 +120,17 @@ public class JWTTokenProvider {
         return usernamePasswordAuthenticationToken;
     }
 
-    public boolean isTokenValid(String username, String token){
-        JWTVerifier verifier=getJWTVerifier();
+    public boolean isTokenValid(VerifiedToken verifiedToken){
         //String util apache library, it is very handy whenever we need to check String
-        return StringUtils.isNotEmpty(username) && !isTokenExpired(verifier, token);
+        return StringUtils.isNotEmpty(verifiedToken.getSubject()) && !verifiedToken.isExpired(System.currentTimeMillis());
     }
 
-    private boolean isTokenExpired(JWTVerifier verifier, String token) {
-        Date expiration= verifier.verify(token).getExpiresAt();
-        return expiration.before(new Date());
+    public boolean isTokenValid(String username, String token){
+        return StringUtils.isNotEmpty(username) && isTokenValid(verify(token));
     }
 
     public String getSubject(String token){
-        JWTVerifier verifier=getJWTVerifier();
-        return verifier.verify(token).getSubject();
+        return verify(token).getSubject();
     }
 
 }
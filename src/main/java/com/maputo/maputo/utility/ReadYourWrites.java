@@ -0,0 +1,47 @@
+package com.maputo.maputo.utility;
+
+//What the current request has to see of its own writes, set up by ReadYourWritesFilter.
+//Outside a request nothing is pinned and writes are not remembered.
+public final class ReadYourWrites {
+    private static final ThreadLocal<State> CURRENT = new ThreadLocal<>();
+
+    private ReadYourWrites() {
+    }
+
+    public static void begin(boolean pinned) {
+        CURRENT.set(new State(pinned));
+    }
+
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    //pinned requests read from the primary even in read-only transactions
+    public static boolean isPinned() {
+        State state = CURRENT.get();
+        return state != null && state.pinned;
+    }
+
+    //reads after a write in the same request have to see it too
+    public static void recordWrite() {
+        State state = CURRENT.get();
+        if (state != null) {
+            state.pinned = true;
+            state.wrote = true;
+        }
+    }
+
+    public static boolean hasWritten() {
+        State state = CURRENT.get();
+        return state != null && state.wrote;
+    }
+
+    private static final class State {
+        private boolean pinned;
+        private boolean wrote;
+
+        private State(boolean pinned) {
+            this.pinned = pinned;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.maputo.maputo.utility;
+
+import com.maputo.maputo.enumeration.DataSourceRole;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.Map;
+
+import static com.maputo.maputo.enumeration.DataSourceRole.PRIMARY;
+import static com.maputo.maputo.enumeration.DataSourceRole.REPLICA;
+
+//Read-only transactions get a replica connection, everything else (writes, no transaction at all) the primary.
+//Has to sit behind a LazyConnectionDataSourceProxy: the transaction manager opens the connection before it marks
+//the transaction read-only, the proxy only picks the target at the first statement when the flag is set.
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica) {
+        setTargetDataSources(Map.<Object, Object>of(PRIMARY, primary, REPLICA, replica));
+        setDefaultTargetDataSource(primary);
+    }
+
+    @Override
+    protected DataSourceRole determineCurrentLookupKey() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            if (TransactionSynchronizationManager.isActualTransactionActive()) {
+                ReadYourWrites.recordWrite();
+            }
+            return PRIMARY;
+        }
+        return ReadYourWrites.isPinned() ? PRIMARY : REPLICA;
+    }
+}
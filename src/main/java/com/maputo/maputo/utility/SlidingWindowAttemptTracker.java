@@ -0,0 +1,195 @@
+package com.maputo.maputo.utility;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+//Counts attempts per key over a sliding time window.
+//Keys are spread over independent segments, each with its own share of the capacity, so a flood of new keys only
+//sweeps one segment at a time. Counters are updated with CAS, there are no locks on the increment path.
+public class SlidingWindowAttemptTracker {
+    //rough per-entry overhead: map node + table slot + Window object + array header + key String with a ~12 char username
+    private static final int ENTRY_OVERHEAD_BYTES = 32 + 8 + 24 + 16 + 64;
+    private static final int EVICTION_SAMPLE = 16;
+    private static final int EVICTION_ATTEMPTS = 4;
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final int bucketCount;
+    private final long bucketMillis;
+    private final long capacity;
+
+    public SlidingWindowAttemptTracker(long capacity, long windowMillis, int bucketCount) {
+        int segmentCount = Integer.highestOneBit(Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+        this.segments = new Segment[segmentCount];
+        this.segmentMask = segmentCount - 1;
+        long perSegment = Math.max(1, capacity / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.capacity = perSegment * segmentCount;
+        this.bucketCount = bucketCount;
+        this.bucketMillis = Math.max(1, windowMillis / bucketCount);
+    }
+
+    //Adds one attempt and returns the count in the window including it
+    public int incrementAndGet(String key) {
+        long bucket = currentBucket();
+        Window window = segmentFor(key).getOrCreate(key, bucket);
+        window.increment(bucket);
+        return window.sum(bucket);
+    }
+
+    public int get(String key) {
+        Window window = segmentFor(key).windows.get(key);
+        return window == null ? 0 : window.sum(currentBucket());
+    }
+
+    public void reset(String key) {
+        segmentFor(key).windows.remove(key);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.windows.mappingCount();
+        }
+        return size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long estimatedBytesPerEntry() {
+        return ENTRY_OVERHEAD_BYTES + 8L * bucketCount;
+    }
+
+    public long estimatedMemoryBytes() {
+        return size() * estimatedBytesPerEntry();
+    }
+
+    private long currentBucket() {
+        return System.currentTimeMillis() / bucketMillis;
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & segmentMask];
+    }
+
+    private final class Segment {
+        private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+        private final long maximumSize;
+        private volatile long lastSweepBucket = -1;
+        //the sample carries on where the last one stopped and starts over at a random entry, so the order of the
+        //table gives no key a spot that is never looked at
+        private Iterator<Map.Entry<String, Window>> cursor;
+
+        private Segment(long maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        private Window getOrCreate(String key, long bucket) {
+            Window window = windows.get(key);
+            if (window != null) {
+                return window;
+            }
+            if (windows.mappingCount() >= maximumSize) {
+                makeRoom(bucket);
+            }
+            return windows.computeIfAbsent(key, k -> new Window(bucketCount));
+        }
+
+        //drops expired windows first (at most one full sweep per bucket), if everything is live the stalest of a small sample goes
+        private void makeRoom(long bucket) {
+            if (lastSweepBucket != bucket) {
+                lastSweepBucket = bucket;
+                windows.values().removeIf(window -> window.lastBucket() <= bucket - bucketCount);
+                if (windows.mappingCount() < maximumSize) {
+                    return;
+                }
+            }
+            //the cursor may still hand out entries removed since it passed them, those are sampled again
+            for (int attempt = 0; attempt < EVICTION_ATTEMPTS; attempt++) {
+                Map.Entry<String, Window> stalest = sampleStalest();
+                if (stalest == null || windows.remove(stalest.getKey(), stalest.getValue())) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized Map.Entry<String, Window> sampleStalest() {
+            Map.Entry<String, Window> stalest = null;
+            long stalestBucket = Long.MAX_VALUE;
+            for (int i = 0; i < EVICTION_SAMPLE; i++) {
+                if (cursor == null || !cursor.hasNext()) {
+                    cursor = windows.entrySet().iterator();
+                    //skipping is paid once per walk over the segment, which takes size / EVICTION_SAMPLE evictions
+                    long skip = ThreadLocalRandom.current().nextLong(Math.max(1, windows.mappingCount()));
+                    for (long j = 0; j < skip && cursor.hasNext(); j++) {
+                        cursor.next();
+                    }
+                    if (!cursor.hasNext()) {
+                        cursor = windows.entrySet().iterator();
+                        if (!cursor.hasNext()) {
+                            break;
+                        }
+                    }
+                }
+                Map.Entry<String, Window> entry = cursor.next();
+                if (entry.getValue().lastBucket() < stalestBucket) {
+                    stalestBucket = entry.getValue().lastBucket();
+                    stalest = entry;
+                }
+            }
+            return stalest;
+        }
+    }
+
+    //Ring of buckets, every slot packs (bucket number << 16 | count) into one long so it can be updated with a single CAS
+    private static final class Window {
+        private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+        private static final int COUNT_BITS = 16;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+        private final long[] slots;
+
+        private Window(int bucketCount) {
+            this.slots = new long[bucketCount];
+        }
+
+        private void increment(long bucket) {
+            int index = (int) (bucket % slots.length);
+            while (true) {
+                long slot = (long) SLOTS.getVolatile(slots, index);
+                long updated = (slot >>> COUNT_BITS) == bucket
+                        ? (slot & COUNT_MASK) == COUNT_MASK ? slot : slot + 1
+                        : (bucket << COUNT_BITS) | 1;
+                if (SLOTS.compareAndSet(slots, index, slot, updated)) {
+                    return;
+                }
+            }
+        }
+
+        private int sum(long bucket) {
+            int sum = 0;
+            for (int i = 0; i < slots.length; i++) {
+                long slot = (long) SLOTS.getVolatile(slots, i);
+                if ((slot >>> COUNT_BITS) > bucket - slots.length) {
+                    sum += (int) (slot & COUNT_MASK);
+                }
+            }
+            return sum;
+        }
+
+        private long lastBucket() {
+            long last = 0;
+            for (int i = 0; i < slots.length; i++) {
+                last = Math.max(last, (long) SLOTS.getVolatile(slots, i) >>> COUNT_BITS);
+            }
+            return last;
+        }
+    }
+}
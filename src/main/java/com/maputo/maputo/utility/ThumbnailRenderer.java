@@ -0,0 +1,109 @@
+package com.maputo.maputo.utility;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+//Turns one image into square JPEG thumbnails of several sizes.
+//The source is decoded once, cropped to its centre square while decoding and subsampled down to about twice the largest
+//thumbnail, which is most of the saving on big uploads. Each size is then halved from the one above it.
+public final class ThumbnailRenderer {
+    private static final String JPEG = "jpeg";
+
+    private ThumbnailRenderer() {
+    }
+
+    //targets by edge length in pixels, an image smaller than a size is written at its own size instead of blown up
+    public static void render(Path source, Map<Integer, Path> targets, float quality) throws IOException {
+        TreeMap<Integer, Path> bySize = new TreeMap<>(targets);
+        BufferedImage image = decodeSquare(source, bySize.lastKey());
+        for (Map.Entry<Integer, Path> target : bySize.descendingMap().entrySet()) {
+            image = scale(image, Math.min(target.getKey(), image.getWidth()));
+            write(image, target.getValue(), quality);
+        }
+    }
+
+    private static BufferedImage decodeSquare(Path source, int largestSize) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source.toFile())) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Not a readable image: " + source);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int side = Math.min(width, height);
+                int subsampling = Math.max(1, side / (largestSize * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle((width - side) / 2, (height - side) / 2, side, side));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    //bilinear in steps of at most half, one big bilinear step would skip most source pixels and alias
+    private static BufferedImage scale(BufferedImage image, int size) {
+        BufferedImage scaled = image;
+        do {
+            int next = Math.max(size, scaled.getWidth() / 2);
+            scaled = draw(scaled, next);
+        } while (scaled.getWidth() > size);
+        return scaled;
+    }
+
+    //always into opaque RGB, JPEG has no alpha so transparent parts become white
+    private static BufferedImage draw(BufferedImage image, int size) {
+        BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, size, size, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    //written next to the target and renamed, a reader sees the old thumbnail or the new one, never half of one
+    private static void write(BufferedImage image, Path target, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(JPEG).next();
+        Path temporary = Files.createTempFile(target.getParent(), ".thumbnail", ".tmp");
+        try {
+            try (ImageOutputStream output = ImageIO.createImageOutputStream(temporary.toFile())) {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+                writer.setOutput(output);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            Files.move(temporary, target, ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            writer.dispose();
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
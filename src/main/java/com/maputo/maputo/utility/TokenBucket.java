@@ -0,0 +1,36 @@
+package com.maputo.maputo.utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+//Lock-free token bucket kept as a single "theoretical arrival time" (GCRA), so taking a token is one CAS on one long.
+//The bucket is full again once the arrival time is in the past, which is also when it can be dropped.
+public class TokenBucket {
+    private final AtomicLong theoreticalArrivalNanos;
+    private final long nanosPerToken;
+    private final long burstNanos;
+
+    public TokenBucket(int burst, long nanosPerToken, long now) {
+        this.nanosPerToken = nanosPerToken;
+        this.burstNanos = nanosPerToken * burst;
+        this.theoreticalArrivalNanos = new AtomicLong(now);
+    }
+
+    //returns 0 if a token was taken, otherwise the nanos to wait before the next one is available
+    public long tryAcquire(long now) {
+        while (true) {
+            long arrival = theoreticalArrivalNanos.get();
+            long next = Math.max(arrival, now) + nanosPerToken;
+            long wait = next - now - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (theoreticalArrivalNanos.compareAndSet(arrival, next)) {
+                return 0;
+            }
+        }
+    }
+
+    public boolean isIdle(long now) {
+        return theoreticalArrivalNanos.get() <= now;
+    }
+}
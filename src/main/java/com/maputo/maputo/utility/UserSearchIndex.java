@@ -0,0 +1,494 @@
+package com.maputo.maputo.utility;
+
+import com.maputo.maputo.domain.UserSearchPage;
+import com.maputo.maputo.domain.UserSearchResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//In-memory type-ahead index over username, first name, last name and email.
+//Each field is cut into grams: its first 1-3 characters, the first 1-3 characters of every later word, and all trigrams.
+//Each gram keeps a sorted list of entry slots. A query is answered in tiers, best match kind first: field prefix,
+//word prefix, then substring. Each tier intersects the lists of its grams, and a candidate is only looked at when its
+//tier score could still make the page. What is left is checked against the text itself, so trigram false positives
+//never make it into the results.
+//Searches share a read lock, writes take the write lock. A removed or re-indexed user leaves a dead slot behind until there
+//are more dead slots than live ones, then the lists are rebuilt.
+public class UserSearchIndex {
+    private static final int USERNAME = 0;
+    private static final int FIELDS = 4;
+    //same match kind in two fields: username beats the names, the names beat email
+    private static final int[] FIELD_PRIORITY = {3, 2, 2, 1};
+    private static final int EXACT = 4, PREFIX = 3, WORD_PREFIX = 2, SUBSTRING = 1;
+    //gram types, the prefix types are followed by the prefix length
+    private static final int FIELD_START = 0, WORD_START = 3, TRIGRAM = 7;
+    //rough sizes for the memory estimate: Entry + its two String[4], HashMap node with its Long key and Integer value
+    //+ table slot, the slot in entries, ids and lengths
+    private static final int ENTRY_OVERHEAD_BYTES = 24 + 2 * 32 + 32 + 16 + 16 + 8 + 4 + 8 + 8;
+    private static final int STRING_OVERHEAD_BYTES = 24 + 16;
+    //Postings + its int[] header, HashMap node with its Long key + table slot
+    private static final int POSTINGS_OVERHEAD_BYTES = 24 + 16 + 32 + 24 + 8;
+    private static final int MINIMUM_DEAD_TO_COMPACT = 1024;
+    private static final Comparator<Scored> BEST_FIRST = Comparator.comparingInt((Scored scored) -> -scored.score)
+            .thenComparingInt(scored -> scored.usernameLength)
+            .thenComparingLong(scored -> scored.id);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private final Map<Long, Integer> slots = new HashMap<>();
+    private final int maximumCandidates;
+    private Entry[] entries = new Entry[1024];
+    //per slot, so a candidate can be ranked without following the Entry pointer
+    private long[] ids = new long[1024];
+    private long[] lengths = new long[1024];
+    private int slotCount;
+    private long stringBytes;
+
+    //no tier looks at more than maximumCandidates users, so a one letter query can't walk the whole directory
+    public UserSearchIndex(int maximumCandidates) {
+        this.maximumCandidates = maximumCandidates;
+    }
+
+    //adds the user or replaces what is indexed for it
+    public void put(long id, String username, String firstName, String lastName, String email) {
+        Entry entry = new Entry(id, username, firstName, lastName, email);
+        long[] grams = entry.grams();
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+            addLocked(entry, grams);
+            compactIfMostlyDead();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //like put, but a user indexed with the same values keeps its slot. False when nothing changed
+    public boolean putIfChanged(long id, String username, String firstName, String lastName, String email) {
+        Entry entry = new Entry(id, username, firstName, lastName, email);
+        lock.readLock().lock();
+        try {
+            Integer slot = slots.get(id);
+            if (slot != null && Arrays.equals(entries[slot].fields, entry.fields)) {
+                return false;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        put(id, username, firstName, lastName, email);
+        return true;
+    }
+
+    //false when the user is indexed already, the indexed version is then kept
+    public boolean putIfAbsent(long id, String username, String firstName, String lastName, String email) {
+        Entry entry = new Entry(id, username, firstName, lastName, email);
+        long[] grams = entry.grams();
+        lock.writeLock().lock();
+        try {
+            if (slots.containsKey(id)) {
+                return false;
+            }
+            addLocked(entry, grams);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+            compactIfMostlyDead();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //every indexed id, in ascending order
+    public long[] ids() {
+        lock.readLock().lock();
+        try {
+            return slots.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Users with a field containing the query (any case), best match first. Queries of one or two characters only match
+    //the start of a word, anything in the middle would match nearly everyone.
+    public UserSearchPage search(String query, int offset, int limit) {
+        String folded = fold(query).trim();
+        //one more than the page, to know whether there is a next one
+        int wanted = (int) Math.min((long) offset + limit + 1, maximumCandidates);
+        if (folded.isEmpty() || limit <= 0 || offset >= wanted) {
+            return new UserSearchPage(Collections.emptyList(), false);
+        }
+        PriorityQueue<Scored> best = new PriorityQueue<>(wanted + 1, BEST_FIRST.reversed());
+        lock.readLock().lock();
+        try {
+            for (int kind : new int[]{PREFIX, WORD_PREFIX, SUBSTRING}) {
+                for (int field = 0; field < FIELDS; field++) {
+                    //later tiers score lower, unless a field prefix turns out to be the whole field
+                    int tierMaximum = (kind == PREFIX ? EXACT : kind) * 4 + FIELD_PRIORITY[field];
+                    if (best.size() == wanted && best.peek().score > tierMaximum) {
+                        continue;
+                    }
+                    long[] grams = tierGrams(folded, kind, field);
+                    if (grams != null) {
+                        searchTier(grams, folded, kind, field, wanted, best);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Scored> ranked = new ArrayList<>(best);
+        ranked.sort(BEST_FIRST);
+        int end = Math.min(ranked.size(), offset + limit);
+        List<UserSearchResult> results = new ArrayList<>(Math.max(0, end - offset));
+        for (int i = offset; i < end; i++) {
+            Entry entry = ranked.get(i).entry;
+            results.add(new UserSearchResult(entry.id, entry.fields[0], entry.fields[1], entry.fields[2], entry.fields[3]));
+        }
+        return new UserSearchPage(results, ranked.size() > end);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long estimatedMemoryBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = (long) slots.size() * ENTRY_OVERHEAD_BYTES + stringBytes;
+            for (Postings list : postings.values()) {
+                bytes += POSTINGS_OVERHEAD_BYTES + 4L * list.slots.length;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long estimatedBytesPerUser() {
+        int size = size();
+        return size == 0 ? 0 : estimatedMemoryBytes() / size;
+    }
+
+    private void searchTier(long[] grams, String query, int kind, int field, int wanted, PriorityQueue<Scored> best) {
+        Postings[] lists = new Postings[grams.length];
+        for (int i = 0; i < grams.length; i++) {
+            lists[i] = postings.get(grams[i]);
+            if (lists[i] == null) {
+                return;
+            }
+        }
+        //walk the shortest list, the others are only probed
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.size));
+        int[] cursors = new int[lists.length];
+        int candidates = 0;
+        next:
+        for (int i = 0; i < lists[0].size && candidates < maximumCandidates; i++) {
+            int slot = lists[0].slots[i];
+            for (int j = 1; j < lists.length; j++) {
+                cursors[j] = lists[j].seek(cursors[j], slot);
+                if (cursors[j] == lists[j].size) {
+                    return;
+                }
+                if (lists[j].slots[cursors[j]] != slot) {
+                    continue next;
+                }
+            }
+            if (entries[slot] == null) {
+                continue;
+            }
+            candidates++;
+            int score = (kind == PREFIX && length(slot, field) == query.length() ? EXACT : kind) * 4 + FIELD_PRIORITY[field];
+            int usernameLength = length(slot, USERNAME);
+            if (best.size() == wanted && !beats(score, usernameLength, ids[slot], best.peek())) {
+                continue;
+            }
+            //the text decides: the trigrams can all be there without the query, and a user that matches better in
+            //another field (or just as well in an earlier one) is taken by that field's tier
+            if (score(entries[slot], query) != (score << 2 | field)) {
+                continue;
+            }
+            if (best.size() == wanted) {
+                best.poll();
+            }
+            best.add(new Scored(entries[slot], score, usernameLength));
+        }
+    }
+
+    private void addLocked(Entry entry, long[] grams) {
+        int slot = slotCount++;
+        if (slot == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+            ids = Arrays.copyOf(ids, entries.length);
+            lengths = Arrays.copyOf(lengths, entries.length);
+        }
+        entries[slot] = entry;
+        ids[slot] = entry.id;
+        lengths[slot] = entry.lengths();
+        slots.put(entry.id, slot);
+        //slots only grow, so appending keeps every list sorted
+        for (long gram : grams) {
+            postings.computeIfAbsent(gram, key -> new Postings()).add(slot);
+        }
+        stringBytes += entry.stringBytes();
+    }
+
+    private void removeLocked(long id) {
+        Integer slot = slots.remove(id);
+        if (slot != null) {
+            stringBytes -= entries[slot].stringBytes();
+            entries[slot] = null;
+        }
+    }
+
+    private void compactIfMostlyDead() {
+        int dead = slotCount - slots.size();
+        if (dead >= MINIMUM_DEAD_TO_COMPACT && dead > slots.size()) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        Entry[] live = entries;
+        int liveCount = slotCount;
+        int capacity = Math.max(1024, Integer.highestOneBit(Math.max(1, slots.size())) * 2);
+        entries = new Entry[capacity];
+        ids = new long[capacity];
+        lengths = new long[capacity];
+        slotCount = 0;
+        slots.clear();
+        postings.clear();
+        stringBytes = 0;
+        for (int i = 0; i < liveCount; i++) {
+            if (live[i] != null) {
+                addLocked(live[i], live[i].grams());
+            }
+        }
+    }
+
+    private int length(int slot, int field) {
+        return (int) (lengths[slot] >>> (16 * field)) & 0xFFFF;
+    }
+
+    private static boolean beats(int score, int usernameLength, long id, Scored worst) {
+        if (score != worst.score) {
+            return score > worst.score;
+        }
+        if (usernameLength != worst.usernameLength) {
+            return usernameLength < worst.usernameLength;
+        }
+        return id < worst.id;
+    }
+
+    //best score << 2 | the first field that reaches it
+    private static int score(Entry entry, String query) {
+        int best = 0;
+        for (int field = 0; field < FIELDS; field++) {
+            int kind = kind(entry.folded[field], query);
+            if (kind > 0 && kind * 4 + FIELD_PRIORITY[field] > best >> 2) {
+                best = (kind * 4 + FIELD_PRIORITY[field]) << 2 | field;
+            }
+        }
+        return best;
+    }
+
+    private static int kind(String text, String query) {
+        if (text.equals(query)) {
+            return EXACT;
+        }
+        if (text.startsWith(query)) {
+            return PREFIX;
+        }
+        int kind = 0;
+        for (int at = text.indexOf(query, 1); at > 0; at = text.indexOf(query, at + 1)) {
+            if (isWordStart(text, at)) {
+                return WORD_PREFIX;
+            }
+            kind = SUBSTRING;
+        }
+        return query.length() < 3 ? 0 : kind;
+    }
+
+    //the grams a user needs to be in a tier, null when the tier can't match a query this short
+    private static long[] tierGrams(String query, int kind, int field) {
+        if (kind == SUBSTRING) {
+            return query.length() < 3 ? null : trigrams(query, field, 0);
+        }
+        int prefixLength = Math.min(3, query.length());
+        long[] grams = query.length() > 3 ? trigrams(query, field, 1) : new long[0];
+        grams = Arrays.copyOf(grams, grams.length + 1);
+        grams[grams.length - 1] = gram((kind == PREFIX ? FIELD_START : WORD_START) + prefixLength, field, query, 0, prefixLength);
+        return grams;
+    }
+
+    private static long[] trigrams(String query, int field, int from) {
+        long[] grams = new long[query.length() - 2 - from];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = gram(TRIGRAM, field, query, from + i, 3);
+        }
+        return unique(grams, grams.length);
+    }
+
+    //type in the top bits, then the field, then up to three 16 bit chars
+    private static long gram(int type, int field, String text, int at, int length) {
+        long chars = 0;
+        for (int i = 0; i < length; i++) {
+            chars = chars << 16 | text.charAt(at + i);
+        }
+        return (long) type << 52 | (long) field << 48 | chars;
+    }
+
+    private static boolean isWordStart(String text, int at) {
+        return at == 0 || !Character.isLetterOrDigit(text.charAt(at - 1));
+    }
+
+    private static long[] unique(long[] grams, int count) {
+        Arrays.sort(grams, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || grams[unique - 1] != grams[i]) {
+                grams[unique++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, unique);
+    }
+
+    private static String fold(String text) {
+        //toLowerCase hands back the same String when there is nothing to change, lower case input costs no extra copy
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+
+    private static long stringBytes(String text) {
+        boolean latin1 = text.chars().allMatch(c -> c <= 0xFF);
+        return STRING_OVERHEAD_BYTES + (long) text.length() * (latin1 ? 1 : 2);
+    }
+
+    private static final class Entry {
+        private final long id;
+        private final String[] fields;
+        private final String[] folded;
+
+        private Entry(long id, String username, String firstName, String lastName, String email) {
+            this.id = id;
+            this.fields = new String[]{nullToEmpty(username), nullToEmpty(firstName), nullToEmpty(lastName), nullToEmpty(email)};
+            this.folded = new String[FIELDS];
+            for (int i = 0; i < FIELDS; i++) {
+                folded[i] = fold(fields[i]);
+            }
+        }
+
+        private long[] grams() {
+            int count = 0;
+            for (String text : folded) {
+                count += 4 * text.length();
+            }
+            long[] grams = new long[count];
+            count = 0;
+            for (int field = 0; field < FIELDS; field++) {
+                String text = folded[field];
+                for (int i = 0; i < text.length(); i++) {
+                    if (isWordStart(text, i)) {
+                        int type = i == 0 ? FIELD_START : WORD_START;
+                        for (int length = 1; length <= 3 && i + length <= text.length(); length++) {
+                            grams[count++] = gram(type + length, field, text, i, length);
+                        }
+                    }
+                    if (i + 3 <= text.length()) {
+                        grams[count++] = gram(TRIGRAM, field, text, i, 3);
+                    }
+                }
+            }
+            return unique(grams, count);
+        }
+
+        //the four folded lengths, 16 bits each
+        private long lengths() {
+            long lengths = 0;
+            for (int i = FIELDS - 1; i >= 0; i--) {
+                lengths = lengths << 16 | Math.min(folded[i].length(), 0xFFFF);
+            }
+            return lengths;
+        }
+
+        private long stringBytes() {
+            long bytes = 0;
+            for (int i = 0; i < FIELDS; i++) {
+                bytes += UserSearchIndex.stringBytes(fields[i]);
+                if (folded[i] != fields[i]) {
+                    bytes += UserSearchIndex.stringBytes(folded[i]);
+                }
+            }
+            return bytes;
+        }
+
+        private static String nullToEmpty(String text) {
+            return text == null ? "" : text;
+        }
+    }
+
+    private static final class Postings {
+        private int[] slots = new int[4];
+        private int size;
+
+        private void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size + (size >> 1));
+            }
+            slots[size++] = slot;
+        }
+
+        //index of the first slot >= target from `from` on, galloping so a long list is probed in log steps
+        private int seek(int from, int target) {
+            int step = 1;
+            int low = from;
+            int high = from;
+            while (high < size && slots[high] < target) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high, size);
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (slots[middle] < target) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static final class Scored {
+        private final Entry entry;
+        private final int score;
+        private final int usernameLength;
+        private final long id;
+
+        private Scored(Entry entry, int score, int usernameLength) {
+            this.entry = entry;
+            this.score = score;
+            this.usernameLength = usernameLength;
+            this.id = entry.id;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.maputo.maputo.configuration;
+
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.repository.UserRepository;
+import com.maputo.maputo.utility.ReadYourWrites;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.Date;
+
+import static com.maputo.maputo.enumeration.Role.ROLE_USER;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+//Two in-memory databases: the replica gets the primary's schema but never any of its rows,
+//so whatever a read finds tells which one it went to.
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:primary;MODE=MySQL;DB_CLOSE_DELAY=-1",
+        "replica-datasource.enabled=true",
+        "replica-datasource.url=jdbc:h2:mem:replica;MODE=MySQL;DB_CLOSE_DELAY=-1",
+        "replica-datasource.username=sa",
+        //cached users would hide where a read went
+        "spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+        "spring.jpa.properties.hibernate.cache.use_query_cache=false"})
+@AutoConfigureMockMvc
+class ReplicaDataSourceConfigurationTest {
+    private static final String DATABASE = "SELECT DATABASE()";
+    @Autowired
+    private MockMvc mockMvc;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    @Qualifier("primaryDataSource")
+    private DataSource primaryDataSource;
+    @Autowired
+    @Qualifier("replicaDataSource")
+    private DataSource replicaDataSource;
+    @Autowired
+    private UserRepository userRepository;
+
+    @BeforeEach
+    void setUp() {
+        JdbcTemplate replica = new JdbcTemplate(replicaDataSource);
+        replica.execute("DROP ALL OBJECTS");
+        for (String statement : new JdbcTemplate(primaryDataSource).queryForList("SCRIPT NODATA", String.class)) {
+            if (!statement.startsWith("CREATE USER")) {
+                replica.execute(statement);
+            }
+        }
+        userRepository.save(newUser("rick"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        userRepository.deleteAll();
+    }
+
+    @Test
+    void readOnlyTransactionsGoToTheReplica() {
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+
+        assertEquals("REPLICA", readOnly.execute(status -> jdbcTemplate.queryForObject(DATABASE, String.class)));
+        assertEquals("PRIMARY", new TransactionTemplate(transactionManager).execute(status -> jdbcTemplate.queryForObject(DATABASE, String.class)));
+        assertEquals("PRIMARY", jdbcTemplate.queryForObject(DATABASE, String.class));
+    }
+
+    @Test
+    void pinnedReadOnlyTransactionsGoToThePrimary() {
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+        ReadYourWrites.begin(true);
+        try {
+            assertEquals("PRIMARY", readOnly.execute(status -> jdbcTemplate.queryForObject(DATABASE, String.class)));
+        } finally {
+            ReadYourWrites.end();
+        }
+    }
+
+    @Test
+    void whoeverWroteReadsTheirWriteFromThePrimary() throws Exception {
+        mockMvc.perform(get("/user/find/rick").with(user("morty")))
+                .andExpect(status().isOk())
+                .andExpect(content().string(""));
+
+        mockMvc.perform(post("/user/update").with(user("rick").authorities(() -> "user:update"))
+                        .param("currentUsername", "rick").param("firstName", "Rick").param("lastName", "Sanchez").param("username", "rick")
+                        .param("email", "rick@maputo.com").param("role", "ROLE_USER").param("isActive", "true").param("isNonLocked", "true"))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(get("/user/find/rick").with(user("rick")))
+                .andExpect(jsonPath("$.lastName").value("Sanchez"));
+        //morty did not write anything, he still reads the replica
+        mockMvc.perform(get("/user/find/rick").with(user("morty")))
+                .andExpect(content().string(""));
+    }
+
+    private User newUser(String username) {
+        User user = new User();
+        user.setUserId(username);
+        user.setFirstName(username);
+        user.setLastName(username);
+        user.setUsername(username);
+        user.setEmail(username + "@maputo.com");
+        user.setPassword("$2a$10$7EqJtq98hPqEX7fNZaFWoO5sOGnH6n.Fhyq1jNxGZ6C/QeHF.yGq2");
+        user.setJoinDate(new Date());
+        user.setRole(ROLE_USER.name());
+        user.setAuthorities(ROLE_USER.getAuthorities());
+        user.setActive(true);
+        user.setNotBlocked(true);
+        return user;
+    }
+}
@@ -0,0 +1,84 @@
+package com.maputo.maputo.filter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class RateLimitFilterTest {
+    private final RateLimitFilter filter = new RateLimitFilter(new SimpleMeterRegistry(), true, 100, 10, Set.of("10.1.0.1"), 2, 1, 1, 1, 1, 1);
+
+    @Test
+    void rejectsOnceTheBurstIsUsedUp() throws Exception {
+        assertEquals(200, call("/user/login", "10.0.0.1").getStatus());
+        assertEquals(200, call("/login", "10.0.0.1").getStatus());
+        MockHttpServletResponse rejected = call("/user/login", "10.0.0.1");
+        assertEquals(429, rejected.getStatus());
+        assertNotNull(rejected.getHeader("Retry-After"));
+    }
+
+    @Test
+    void bucketsArePerClientAndRouteGroup() throws Exception {
+        assertEquals(200, call("/user/register", "10.0.0.2").getStatus());
+        assertEquals(429, call("/user/register", "10.0.0.2").getStatus());
+        assertEquals(200, call("/user/register", "10.0.0.3").getStatus());
+        assertEquals(200, call("/user/resetPassword/rick@example.com", "10.0.0.2").getStatus());
+        assertEquals(429, call("/user/resetpassword/morty@example.com", "10.0.0.2").getStatus());
+    }
+
+    @Test
+    void otherRoutesAreNotLimited() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(200, call("/user/list", "10.0.0.4").getStatus());
+        }
+    }
+
+    @Test
+    void aFullMapSharesOneBucketInsteadOfLettingEveryoneThrough() throws Exception {
+        RateLimitFilter small = new RateLimitFilter(new SimpleMeterRegistry(), true, 2, 10, Set.of(), 1, 1, 1, 1, 1, 1);
+        assertEquals(200, call(small, "/user/login", "10.0.0.5", null).getStatus());
+        assertEquals(200, call(small, "/user/login", "10.0.0.6", null).getStatus());
+
+        assertEquals(200, call(small, "/user/login", "10.0.0.7", null).getStatus());
+        assertEquals(429, call(small, "/user/login", "10.0.0.8", null).getStatus());
+        //clients that already had a bucket keep it
+        assertEquals(429, call(small, "/user/login", "10.0.0.5", null).getStatus());
+
+        small.evictIdleBuckets();
+        assertEquals(429, call(small, "/user/login", "10.0.0.9", null).getStatus());
+    }
+
+    @Test
+    void forwardedForIsOnlyBelievedFromTrustedProxies() throws Exception {
+        //two clients behind the load balancer get a bucket each
+        assertEquals(200, call(filter, "/user/register", "10.1.0.1", "192.168.0.1").getStatus());
+        assertEquals(429, call(filter, "/user/register", "10.1.0.1", "192.168.0.1").getStatus());
+        assertEquals(200, call(filter, "/user/register", "10.1.0.1", "192.168.0.2").getStatus());
+        //a made up address in front of the real one changes nothing
+        assertEquals(429, call(filter, "/user/register", "10.1.0.1", "1.2.3.4, 192.168.0.1").getStatus());
+        //and from anyone else the header is ignored
+        assertEquals(200, call(filter, "/user/register", "10.0.0.10", "192.168.0.3").getStatus());
+        assertEquals(429, call(filter, "/user/register", "10.0.0.10", "192.168.0.4").getStatus());
+    }
+
+    private MockHttpServletResponse call(String uri, String remoteAddr) throws Exception {
+        return call(filter, uri, remoteAddr, null);
+    }
+
+    private static MockHttpServletResponse call(RateLimitFilter filter, String uri, String remoteAddr, String forwardedFor) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", uri);
+        request.setRemoteAddr(remoteAddr);
+        if (forwardedFor != null) {
+            request.addHeader("X-Forwarded-For", forwardedFor);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+}
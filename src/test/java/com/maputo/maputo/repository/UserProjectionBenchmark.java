@@ -0,0 +1,133 @@
+package com.maputo.maputo.repository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.maputo.maputo.MaputoApplication;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserFilter;
+import com.maputo.maputo.domain.UserView;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.maputo.maputo.enumeration.Role.ROLE_USER;
+
+//Entity reads vs what the endpoints do for /user/find and one page of /user/list, including the JSON the endpoint writes.
+///user/find builds its UserView from the entity in the second-level cache, /user/list selects the UserView columns.
+//Payload sizes are printed once during setup. Runs against the H2 database from the test application.yml.
+//JMH forks a JVM, so run it on a plain classpath:
+//mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+//java -cp target/test-classes:target/classes:$(cat cp.txt) com.maputo.maputo.repository.UserProjectionBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserProjectionBenchmark {
+    private static final int USERS = 1000;
+    private static final int PAGE_SIZE = 100;
+    private ConfigurableApplicationContext context;
+    private UserRepository userRepository;
+    private TransactionTemplate readOnly;
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = SpringApplication.run(MaputoApplication.class, "--server.port=0", "--spring.jpa.show-sql=false");
+        userRepository = context.getBean(UserRepository.class);
+        objectMapper = context.getBean(ObjectMapper.class);
+        readOnly = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        readOnly.setReadOnly(true);
+        List<User> users = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            users.add(user("user" + i));
+        }
+        userRepository.saveAll(users);
+        System.out.printf("find payload: entity %d bytes, view %d bytes%n",
+                objectMapper.writeValueAsBytes(findEntity()).length, objectMapper.writeValueAsBytes(findCachedView()).length);
+        System.out.printf("list payload: entity %d bytes, view %d bytes%n",
+                objectMapper.writeValueAsBytes(listEntities()).length, objectMapper.writeValueAsBytes(listViews()).length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public void findEntity(Blackhole blackhole) throws Exception {
+        blackhole.consume(objectMapper.writeValueAsBytes(findEntity()));
+    }
+
+    @Benchmark
+    public void findCachedView(Blackhole blackhole) throws Exception {
+        blackhole.consume(objectMapper.writeValueAsBytes(findCachedView()));
+    }
+
+    @Benchmark
+    public void listEntities(Blackhole blackhole) throws Exception {
+        blackhole.consume(objectMapper.writeValueAsBytes(listEntities()));
+    }
+
+    @Benchmark
+    public void listViews(Blackhole blackhole) throws Exception {
+        blackhole.consume(objectMapper.writeValueAsBytes(listViews()));
+    }
+
+    private Object findEntity() {
+        return inReadOnly(() -> userRepository.findUserByUsername("user500"));
+    }
+
+    private Object findCachedView() {
+        return inReadOnly(() -> UserView.from(userRepository.findUserByNaturalId("user500")));
+    }
+
+    private Object listEntities() {
+        return inReadOnly(() -> userRepository.findAll(PageRequest.of(0, PAGE_SIZE, Sort.by("id"))).getContent());
+    }
+
+    private Object listViews() {
+        return inReadOnly(() -> userRepository.findPage(null, PAGE_SIZE, UserFilter.none()));
+    }
+
+    private Object inReadOnly(Supplier<Object> query) {
+        return readOnly.execute(status -> query.get());
+    }
+
+    private static User user(String username) {
+        User user = new User();
+        user.setUserId(username);
+        user.setFirstName(username);
+        user.setLastName(username);
+        user.setUsername(username);
+        user.setEmail(username + "@maputo.com");
+        user.setPassword("$2a$10$7EqJtq98hPqEX7fNZaFWoO5sOGnH6n.Fhyq1jNxGZ6C/QeHF.yGq2");
+        user.setProfileImageUrl("http://localhost:8081/user/image/profile/" + username);
+        user.setJoinDate(new Date());
+        user.setLastLoginDate(new Date());
+        user.setLastLoginDateDisplay(new Date());
+        user.setRole(ROLE_USER.name());
+        user.setAuthorities(ROLE_USER.getAuthorities());
+        user.setActive(true);
+        user.setNotBlocked(true);
+        return user;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(UserProjectionBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,63 @@
+package com.maputo.maputo.resource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.util.FileSystemUtils;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static com.maputo.maputo.constant.FileConstant.USER_FOLDER;
+import static com.maputo.maputo.constant.FileConstant.USER_IMAGE_PATH;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+//MockMvc has no connector, sendfile only happens behind a real Tomcat
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class ProfileImageSendfileTest {
+    @LocalServerPort
+    private int port;
+    private Path folder;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        folder = Files.createDirectories(Paths.get(USER_FOLDER, "sendfile-test-" + System.nanoTime()));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        FileSystemUtils.deleteRecursively(folder);
+    }
+
+    @Test
+    void largeImagesArriveWhole() throws Exception {
+        byte[] bytes = new byte[300_000];
+        new Random(1).nextBytes(bytes);
+        Files.write(folder.resolve("image.jpg"), bytes);
+        HttpClient client = HttpClient.newHttpClient();
+        URI uri = URI.create("http://localhost:" + port + USER_IMAGE_PATH + folder.getFileName() + "/image.jpg");
+
+        HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+        HttpResponse<byte[]> notModified = client.send(HttpRequest.newBuilder(uri)
+                .header("If-None-Match", response.headers().firstValue("ETag").orElseThrow()).build(), HttpResponse.BodyHandlers.ofByteArray());
+        HttpResponse<byte[]> head = client.send(HttpRequest.newBuilder(uri).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+
+        assertEquals(200, response.statusCode());
+        assertEquals("300000", response.headers().firstValue("Content-Length").orElseThrow());
+        assertArrayEquals(bytes, response.body());
+        assertEquals(304, notModified.statusCode());
+        assertEquals(0, notModified.body().length);
+        assertEquals(200, head.statusCode());
+        assertEquals(0, head.body().length);
+    }
+}
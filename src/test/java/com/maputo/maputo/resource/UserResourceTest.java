@@ -0,0 +1,460 @@
+package com.maputo.maputo.resource;
+
+import com.google.common.hash.Hashing;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.repository.UserRepository;
+import com.maputo.maputo.exception.domain.ImageNotFoundException;
+import com.maputo.maputo.service.LoginAttemptService;
+import com.maputo.maputo.service.ProfileImageService;
+import com.maputo.maputo.service.UserSearchService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static com.maputo.maputo.constant.FileConstant.DEFAULT_USER_IMAGE_PATH;
+import static com.maputo.maputo.constant.FileConstant.UNSUPPORTED_IMAGE;
+import static com.maputo.maputo.constant.FileConstant.USER_FOLDER;
+import static com.maputo.maputo.constant.FileConstant.USER_IMAGE_PATH;
+import static com.maputo.maputo.constant.SecurityConstant.JWT_TOKEN_HEADER;
+import static com.maputo.maputo.constant.SecurityConstant.NEXT_CURSOR_HEADER;
+import static com.maputo.maputo.constant.SecurityConstant.NEXT_PAGE_HEADER;
+import static com.maputo.maputo.enumeration.Role.ROLE_ADMIN;
+import static com.maputo.maputo.enumeration.Role.ROLE_SUPER_ADMIN;
+import static com.maputo.maputo.enumeration.Role.ROLE_USER;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.doAnswer;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+class UserResourceTest {
+    @Autowired
+    private MockMvc mockMvc;
+    //real repository, a test can have the conflict check pass just before another node's insert
+    @SpyBean
+    private UserRepository userRepository;
+    @Autowired
+    private PasswordEncoder passwordEncoder;
+    @Autowired
+    private UserSearchService userSearchService;
+    @Autowired
+    private ProfileImageService profileImageService;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private LoginAttemptService loginAttemptService;
+
+    @BeforeEach
+    void setUp() {
+        userRepository.save(user("rick", "rick@maputo.com"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        userRepository.deleteAll();
+    }
+
+    @Test
+    void loginReturnsUserAndToken() throws Exception {
+        mockMvc.perform(post("/user/login").contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"username\":\"rick\",\"password\":\"secret\"}"))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(JWT_TOKEN_HEADER))
+                .andExpect(jsonPath("$.username").value("rick"))
+                .andExpect(jsonPath("$.lastLoginDate").isNotEmpty());
+    }
+
+    @Test
+    void loginWithWrongPasswordIsRejected() throws Exception {
+        mockMvc.perform(post("/user/login").contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"username\":\"rick\",\"password\":\"wrong\"}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void theFailureThatReachesTheLimitBlocksTheUser() throws Exception {
+        userRepository.save(user("morty", "morty@maputo.com"));
+        try {
+            for (int i = 0; i < 5; i++) {
+                mockMvc.perform(post("/user/login").contentType(MediaType.APPLICATION_JSON)
+                                .content("{\"username\":\"morty\",\"password\":\"wrong\"}"))
+                        .andExpect(status().isBadRequest());
+                assertEquals(i < 4, userRepository.findUserByUsername("morty").isNotBlocked());
+            }
+        } finally {
+            loginAttemptService.evictUserFromLoginAttemptCache("morty");
+        }
+    }
+
+    @Test
+    void registerWithTakenUsernameIsRejected() throws Exception {
+        mockMvc.perform(post("/user/register").contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"firstName\":\"Rick\",\"lastName\":\"Sanchez\",\"username\":\"rick\",\"email\":\"other@maputo.com\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Username already exists"));
+    }
+
+    @Test
+    void duplicateEmailIsRejectedByTheDatabase() {
+        assertThrows(DataIntegrityViolationException.class, () -> userRepository.saveAndFlush(user("morty", "rick@maputo.com")));
+    }
+
+    @Test
+    void registrationsRacingPastTheCheckAreRejectedByTheUniqueKeys() throws Exception {
+        //another node inserts the same username, then the same email, right after the check found nothing
+        racedBy("morty", "morty@maputo.com", "morty", "pickle@maputo.com");
+        racedBy("summer", "summer@maputo.com", "beth", "summer@maputo.com");
+
+        mockMvc.perform(post("/user/register").contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"firstName\":\"Morty\",\"lastName\":\"Smith\",\"username\":\"morty\",\"email\":\"morty@maputo.com\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Username already exists"));
+        mockMvc.perform(post("/user/register").contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"firstName\":\"Summer\",\"lastName\":\"Smith\",\"username\":\"summer\",\"email\":\"summer@maputo.com\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Email already exists"));
+        assertEquals(1, userRepository.count());
+    }
+
+    private void racedBy(String username, String email, String otherUsername, String otherEmail) {
+        doAnswer(invocation -> {
+            jdbcTemplate.update("INSERT INTO user (id, version, username, email, authority_mask, is_active, is_not_blocked) "
+                    + "VALUES (-1, 0, ?, ?, 0, true, true)", otherUsername, otherEmail);
+            return List.of();
+        }).when(userRepository).findConflictingUsers(null, username, email);
+    }
+
+    @Test
+    @WithMockUser
+    void listIsPagedByIdAndFiltered() throws Exception {
+        User morty = user("morty", "morty@maputo.com");
+        morty.setRole(ROLE_ADMIN.name());
+        morty.setAuthorities(ROLE_ADMIN.getAuthorities());
+        userRepository.save(morty);
+        userRepository.save(user("summer", "summer@maputo.com"));
+
+        String cursor = mockMvc.perform(get("/user/list").param("size", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].username").value("rick"))
+                .andReturn().getResponse().getHeader(NEXT_CURSOR_HEADER);
+        mockMvc.perform(get("/user/list").param("size", "2").param("after", cursor))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(NEXT_CURSOR_HEADER))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].username").value("summer"));
+        mockMvc.perform(get("/user/list").param("role", "role_admin"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].username").value("morty"));
+        mockMvc.perform(get("/user/list").param("authority", "user:create"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].username").value("morty"))
+                .andExpect(jsonPath("$[0].authorities[2]").value("user:create"));
+
+        //not reached by AuthorityMigration yet, the role's authorities count
+        jdbcTemplate.update("UPDATE user SET role = ?, authority_mask = 0 WHERE username = 'summer'", ROLE_SUPER_ADMIN.name());
+        mockMvc.perform(get("/user/list").param("authority", "user:create"))
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[1].username").value("summer"))
+                .andExpect(jsonPath("$[1].authorities[3]").value("user:delete"));
+        mockMvc.perform(get("/user/list").param("authority", "user:delete"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].username").value("summer"));
+    }
+
+    @Test
+    @WithMockUser(authorities = "user:create")
+    void exportStreamsCsvWithoutPasswords() throws Exception {
+        MvcResult result = mockMvc.perform(get("/user/export").param("format", "csv"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        //the export's own timeout, not the default for async requests
+        assertEquals(MINUTES.toMillis(60), result.getRequest().getAsyncContext().getTimeout());
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("text/csv"))
+                .andExpect(content().string(containsString("rick@maputo.com")))
+                .andExpect(content().string(not(containsString("$2a$"))));
+    }
+
+    @Test
+    @WithMockUser(authorities = "user:create")
+    void importReportsTheFailedRows() throws Exception {
+        String csv = "username,email,firstName,lastName,role\r\n"
+                + "morty,morty@maputo.com,Morty,Smith,role_admin\r\n"
+                + "rick,other@maputo.com,Rick,Sanchez,\r\n"
+                + "summer,summer@maputo.com,Summer,Smith,ROLE_PRESIDENT\r\n"
+                + "beth,morty@maputo.com,Beth,Smith,\r\n"
+                + "jerry,jerry@maputo.com,\"Jerry, the\",Smith,\r\n";
+        mockMvc.perform(post("/user/import").param("format", "csv").contentType("text/csv").content(csv))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.created").value(2))
+                .andExpect(jsonPath("$.failed").value(3))
+                .andExpect(jsonPath("$.failuresTruncated").value(false))
+                .andExpect(jsonPath("$.failures.length()").value(3))
+                .andExpect(jsonPath("$.failures[0].row").value(2))
+                .andExpect(jsonPath("$.failures[0].message").value("Username already exists"))
+                .andExpect(jsonPath("$.failures[1].message").value("Unknown role: ROLE_PRESIDENT"))
+                .andExpect(jsonPath("$.failures[2].message").value("morty@maputo.com appears more than once in this import"))
+                .andExpect(jsonPath("$.failures[2].username").value("beth"));
+
+        User morty = userRepository.findUserByUsername("morty");
+        assertEquals(ROLE_ADMIN.name(), morty.getRole());
+        assertTrue(morty.getPassword().startsWith("$2"));
+        assertEquals("Jerry, the", userRepository.findUserByUsername("jerry").getFirstName());
+    }
+
+    @Test
+    @WithMockUser(authorities = "user:delete")
+    void searchFollowsLoadAddAndDelete() throws Exception {
+        //rick was saved around the service, only the load from the table picks him up
+        userSearchService.load();
+        mockMvc.perform(get("/user/search").param("q", "RIC"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(NEXT_PAGE_HEADER))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].username").value("rick"))
+                .andExpect(jsonPath("$[0].password").doesNotExist());
+
+        mockMvc.perform(post("/user/add").param("firstName", "Summer").param("lastName", "Smith").param("username", "summer")
+                        .param("email", "summer@maputo.com").param("role", "ROLE_USER").param("isActive", "true").param("isNonLocked", "true"))
+                .andExpect(status().isOk());
+        long id = userRepository.findUserByUsername("summer").getId();
+        mockMvc.perform(get("/user/search").param("q", "maputo").param("size", "1"))
+                .andExpect(header().string(NEXT_PAGE_HEADER, "1"));
+        mockMvc.perform(get("/user/search").param("q", "smi"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(id));
+
+        mockMvc.perform(delete("/user/delete/" + id)).andExpect(status().isNoContent());
+        mockMvc.perform(get("/user/search").param("q", "smi"))
+                .andExpect(jsonPath("$.length()").value(0));
+    }
+
+    @Test
+    @WithMockUser(authorities = "user:delete")
+    void searchPicksUpChangesFromOtherNodesOnResync() throws Exception {
+        userSearchService.resync();
+        User morty = userRepository.save(user("morty", "morty@maputo.com"));
+        //what other nodes would write, this one's index only hears of it from the table
+        jdbcTemplate.update("UPDATE user SET username = 'pickle' WHERE username = 'rick'");
+
+        userSearchService.resync();
+        mockMvc.perform(get("/user/search").param("q", "pickle")).andExpect(jsonPath("$[0].username").value("pickle"));
+        //still found by the email
+        mockMvc.perform(get("/user/search").param("q", "rick"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].username").value("pickle"));
+        mockMvc.perform(get("/user/search").param("q", "morty")).andExpect(jsonPath("$[0].id").value(morty.getId()));
+
+        jdbcTemplate.update("DELETE FROM user WHERE id = ?", morty.getId());
+        assertEquals(1, userSearchService.resync());
+        mockMvc.perform(get("/user/search").param("q", "morty")).andExpect(jsonPath("$.length()").value(0));
+        //far past the end, not an overflowed offset
+        mockMvc.perform(get("/user/search").param("q", "pickle").param("page", String.valueOf(Integer.MAX_VALUE)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(0));
+    }
+
+    @Test
+    void profileImagesAreServedWithValidatorsAndRanges() throws Exception {
+        Path folder = Paths.get(USER_FOLDER, "image-test-" + System.nanoTime());
+        Files.createDirectories(folder);
+        byte[] bytes = new byte[1000];
+        new Random(1).nextBytes(bytes);
+        Files.write(folder.resolve("image.jpg"), bytes);
+        String url = USER_IMAGE_PATH + folder.getFileName() + "/image.jpg";
+        try {
+            MvcResult result = mockMvc.perform(get(url))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentType(MediaType.IMAGE_JPEG))
+                    .andExpect(content().bytes(bytes))
+                    .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache, public"))
+                    .andExpect(header().exists(HttpHeaders.LAST_MODIFIED))
+                    .andReturn();
+            String eTag = result.getResponse().getHeader(HttpHeaders.ETAG);
+
+            mockMvc.perform(get(url).header(HttpHeaders.IF_NONE_MATCH, eTag))
+                    .andExpect(status().isNotModified())
+                    .andExpect(content().bytes(new byte[0]));
+            String version = Long.toHexString(Files.getLastModifiedTime(folder.resolve("image.jpg")).toMillis());
+            mockMvc.perform(get(url).param("v", version))
+                    .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=31536000, public, immutable"));
+            //not the file that is there
+            mockMvc.perform(get(url).param("v", "1"))
+                    .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache, public"));
+            mockMvc.perform(get(url).header(HttpHeaders.RANGE, "bytes=10-19"))
+                    .andExpect(status().isPartialContent())
+                    .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 10-19/1000"))
+                    .andExpect(content().bytes(Arrays.copyOfRange(bytes, 10, 20)));
+
+            mockMvc.perform(get(USER_IMAGE_PATH + folder.getFileName() + "/other.jpg")).andExpect(status().isNotFound());
+            //the firewall already rejects ".." in the URL, the service is the second line
+            assertThrows(ImageNotFoundException.class, () -> profileImageService.findProfileImage("..", folder.getFileName().toString(), null));
+            assertThrows(ImageNotFoundException.class, () -> profileImageService.findProfileImage(folder.getFileName().toString(), ".", null));
+        } finally {
+            FileSystemUtils.deleteRecursively(folder);
+        }
+    }
+
+    @Test
+    void defaultAvatarsAreDrawnLocallyAndCachedForGood() throws Exception {
+        MvcResult result = mockMvc.perform(get(DEFAULT_USER_IMAGE_PATH + "rick"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.IMAGE_PNG))
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=31536000, public, immutable"))
+                .andReturn();
+        String eTag = result.getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(get(DEFAULT_USER_IMAGE_PATH + "rick"))
+                .andExpect(header().string(HttpHeaders.ETAG, eTag))
+                .andExpect(content().bytes(result.getResponse().getContentAsByteArray()));
+        mockMvc.perform(get(DEFAULT_USER_IMAGE_PATH + "rick").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified());
+        mockMvc.perform(get(DEFAULT_USER_IMAGE_PATH + "morty"))
+                .andExpect(header().string(HttpHeaders.ETAG, not(eTag)));
+    }
+
+    @Test
+    @WithMockUser
+    void uploadsAreStoredOncePerContentAndCachedForGood() throws Exception {
+        userRepository.save(user("morty", "morty@maputo.com"));
+        byte[] picture = new byte[2000];
+        new Random(2).nextBytes(picture);
+        picture[0] = (byte) 0xFF;
+        picture[1] = (byte) 0xD8;
+        picture[2] = (byte) 0xFF;
+
+        upload("rick", picture);
+        upload("morty", picture);
+        String rickUrl = userRepository.findUserByNaturalId("rick").getProfileImageUrl();
+        String name = rickUrl.substring(rickUrl.lastIndexOf('/') + 1);
+        assertEquals(rickUrl, userRepository.findUserByNaturalId("morty").getProfileImageUrl());
+        assertTrue(name.matches("[0-9a-f]{64}\\.jpg"), name);
+        assertEquals(2, referencesTo(name));
+
+        mockMvc.perform(get(USER_IMAGE_PATH + name))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(picture))
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=31536000, public, immutable"));
+        mockMvc.perform(get(USER_IMAGE_PATH + "0" + name.substring(1))).andExpect(status().isNotFound());
+
+        //a new picture drops the reference to the old one
+        mockMvc.perform(put("/user/updateProfileImage").param("username", "rick").contentType(MediaType.IMAGE_PNG)
+                        .content(new byte[]{(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 0x0D}))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.profileImageUrl").value(containsString(".png")));
+        assertNotEquals(rickUrl, userRepository.findUserByNaturalId("rick").getProfileImageUrl());
+        assertEquals(1, referencesTo(name));
+    }
+
+    @Test
+    @WithMockUser
+    void uploadsThatAreNoImagesOrTooLargeAreRefused() throws Exception {
+        String url = userRepository.findUserByNaturalId("rick").getProfileImageUrl();
+
+        mockMvc.perform(multipart("/user/updateProfileImage").file(new MockMultipartFile("profileImg", "picture.jpg", "image/jpeg", "<svg onload=alert(1)>".getBytes()))
+                        .param("username", "rick"))
+                .andExpect(status().isUnsupportedMediaType())
+                .andExpect(jsonPath("$.message").value(UNSUPPORTED_IMAGE));
+        byte[] large = new byte[5 * 1024 * 1024 + 1];
+        large[0] = (byte) 0xFF;
+        large[1] = (byte) 0xD8;
+        large[2] = (byte) 0xFF;
+        mockMvc.perform(put("/user/updateProfileImage").param("username", "rick").contentType(MediaType.IMAGE_JPEG).content(large))
+                .andExpect(status().isPayloadTooLarge());
+
+        assertEquals(url, userRepository.findUserByNaturalId("rick").getProfileImageUrl());
+    }
+
+    @Test
+    @WithMockUser
+    void anUploadForNoUserDropsItsReference() throws Exception {
+        byte[] picture = new byte[2000];
+        new Random().nextBytes(picture);
+        System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A}, 0, picture, 0, 8);
+
+        mockMvc.perform(put("/user/updateProfileImage").param("username", "nobody").contentType(MediaType.IMAGE_PNG).content(picture))
+                .andExpect(status().isBadRequest());
+
+        assertEquals(0, referencesTo(Hashing.sha256().hashBytes(picture).toString()));
+    }
+
+    private void upload(String username, byte[] picture) throws Exception {
+        mockMvc.perform(multipart("/user/updateProfileImage").file(new MockMultipartFile("profileImg", "picture.jpg", "image/jpeg", picture))
+                        .param("username", username))
+                .andExpect(status().isOk());
+    }
+
+    private int referencesTo(String name) {
+        return jdbcTemplate.queryForObject("SELECT reference_count FROM stored_image WHERE hash = ?", Integer.class, name.substring(0, 64));
+    }
+
+    @Test
+    void hotImagesAreServedFromMemoryUntilANewOneIsSaved() throws Exception {
+        Path folder = Paths.get(USER_FOLDER, "hot-image-test-" + System.nanoTime());
+        Files.createDirectories(folder);
+        Files.write(folder.resolve("image.jpg"), new byte[]{1, 2, 3});
+        String url = USER_IMAGE_PATH + folder.getFileName() + "/image.jpg";
+        try {
+            mockMvc.perform(get(url)).andExpect(content().bytes(new byte[]{1, 2, 3}));
+            Files.write(folder.resolve("image.jpg"), new byte[]{4, 5, 6});
+            mockMvc.perform(get(url)).andExpect(content().bytes(new byte[]{1, 2, 3}));
+
+            profileImageService.evict(folder.getFileName().toString());
+            mockMvc.perform(get(url)).andExpect(content().bytes(new byte[]{4, 5, 6}));
+        } finally {
+            FileSystemUtils.deleteRecursively(folder);
+        }
+    }
+
+    private User user(String username, String email) {
+        User user = new User();
+        user.setUserId(username);
+        user.setFirstName(username);
+        user.setLastName(username);
+        user.setUsername(username);
+        user.setEmail(email);
+        user.setPassword(passwordEncoder.encode("secret"));
+        user.setJoinDate(new Date());
+        user.setRole(ROLE_USER.name());
+        user.setAuthorities(ROLE_USER.getAuthorities());
+        user.setActive(true);
+        user.setNotBlocked(true);
+        return user;
+    }
+}
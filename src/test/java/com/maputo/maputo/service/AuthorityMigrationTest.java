@@ -0,0 +1,79 @@
+package com.maputo.maputo.service;
+
+import com.maputo.maputo.domain.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManagerFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import static com.maputo.maputo.enumeration.Role.ROLE_ADMIN;
+import static com.maputo.maputo.enumeration.Role.ROLE_USER;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.*;
+
+//a user table as it looked before authority_mask, right after ddl-auto added the new column
+class AuthorityMigrationTest {
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:authority-migration;MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", ""));
+    private final Cache secondLevelCache = mock(Cache.class);
+    private final EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
+
+    @BeforeEach
+    void setUp() {
+        when(entityManagerFactory.getCache()).thenReturn(secondLevelCache);
+        jdbcTemplate.execute("CREATE TABLE user (id BIGINT PRIMARY KEY, role VARCHAR(255), authorities BLOB, authority_mask INT NOT NULL DEFAULT 0)");
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP TABLE user");
+    }
+
+    @Test
+    void copiesSerializedAuthoritiesIntoTheMask() throws Exception {
+        jdbcTemplate.update("INSERT INTO user (id, role, authorities) VALUES (?, ?, ?)", 1, ROLE_ADMIN.name(), serialize(ROLE_ADMIN.getAuthorities()));
+        jdbcTemplate.update("INSERT INTO user (id, role, authorities) VALUES (?, ?, ?)", 2, ROLE_USER.name(), serialize(ROLE_USER.getAuthorities()));
+        //already written by the application, must not be touched
+        jdbcTemplate.update("INSERT INTO user (id, role, authorities, authority_mask) VALUES (?, ?, ?, ?)", 3, ROLE_USER.name(),
+                serialize(ROLE_USER.getAuthorities()), ROLE_ADMIN.getAuthorityMask());
+
+        assertEquals(2, new AuthorityMigration(jdbcTemplate, entityManagerFactory, true, 1).migrate());
+
+        assertEquals(ROLE_ADMIN.getAuthorityMask(), mask(1));
+        assertEquals(ROLE_USER.getAuthorityMask(), mask(2));
+        assertEquals(ROLE_ADMIN.getAuthorityMask(), mask(3));
+        assertNull(jdbcTemplate.queryForObject("SELECT authorities FROM user WHERE id = 1", byte[].class));
+        assertEquals(0, new AuthorityMigration(jdbcTemplate, entityManagerFactory, true, 1).migrate());
+        verify(secondLevelCache).evict(User.class, 1L);
+        verify(secondLevelCache).evict(User.class, 2L);
+        verifyNoMoreInteractions(secondLevelCache);
+    }
+
+    @Test
+    void unreadableBlobFallsBackToTheRole() {
+        jdbcTemplate.update("INSERT INTO user (id, role, authorities) VALUES (?, ?, ?)", 1, ROLE_ADMIN.name(), new byte[]{1, 2, 3});
+
+        new AuthorityMigration(jdbcTemplate, entityManagerFactory, true, 500).migrate();
+
+        assertEquals(ROLE_ADMIN.getAuthorityMask(), mask(1));
+    }
+
+    private int mask(long id) {
+        return jdbcTemplate.queryForObject("SELECT authority_mask FROM user WHERE id = ?", Integer.class, id);
+    }
+
+    private static byte[] serialize(String[] authorities) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(authorities);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,81 @@
+package com.maputo.maputo.service;
+
+import com.maputo.maputo.domain.Avatar;
+import com.maputo.maputo.utility.IdenticonRenderer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AvatarServiceTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void theSameUsernameAlwaysGetsTheSamePicture() throws Exception {
+        AvatarService avatarService = new AvatarService(meterRegistry, 100);
+
+        Avatar rick = avatarService.getAvatar("rick");
+        Avatar morty = avatarService.getAvatar("morty");
+        //another node or a restart draws the very same picture
+        AvatarService restarted = new AvatarService(new SimpleMeterRegistry(), 100);
+        Avatar rickAgain = restarted.getAvatar("rick");
+
+        assertArrayEquals(rick.getContent(), rickAgain.getContent());
+        assertEquals(rick.getETag(), rickAgain.getETag());
+        assertNotEquals(rick.getETag(), morty.getETag());
+        assertSame(rickAgain, restarted.getAvatar("rick"));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(rick.getContent()));
+        assertEquals(IdenticonRenderer.SIZE, image.getWidth());
+        assertEquals(IdenticonRenderer.SIZE, image.getHeight());
+        //mirrored left to right
+        assertEquals(image.getRGB(40, 120), image.getRGB(IdenticonRenderer.SIZE - 41, 120));
+    }
+
+    @Test
+    void onlyTheMostUsedAvatarsAreKept() throws Exception {
+        AvatarService avatarService = new AvatarService(meterRegistry, 10);
+
+        for (int i = 0; i < 1000; i++) {
+            avatarService.getAvatar("user" + i);
+        }
+
+        assertTrue(meterRegistry.get("cache.size").tag("cache", "avatars").gauge().value() <= 10);
+        assertEquals(1000, meterRegistry.get("avatar.render").timer().count());
+    }
+
+    @Test
+    void concurrentFirstRequestsDrawOnlyOnce() throws Exception {
+        AvatarService avatarService = new AvatarService(meterRegistry, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Avatar>> avatars = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                avatars.add(executor.submit((Callable<Avatar>) () -> {
+                    start.await();
+                    return avatarService.getAvatar("summer");
+                }));
+            }
+            start.countDown();
+            Avatar first = avatars.get(0).get();
+            for (Future<Avatar> avatar : avatars) {
+                assertSame(first, avatar.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, meterRegistry.get("avatar.render").timer().count());
+    }
+}
@@ -0,0 +1,177 @@
+package com.maputo.maputo.service;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.MimeMessage;
+import java.net.ServerSocket;
+import java.util.Map;
+
+import static com.maputo.maputo.constant.EmailConstant.EMAIL_SUBJECT;
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmailOutboxTest {
+    private final DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:email-outbox;MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    private final DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final GreenMail greenMail = new GreenMail(ServerSetupTest.SMTP.dynamicPort());
+    private EmailService emailService;
+    private EmailOutbox outbox;
+
+    @BeforeEach
+    void setUp() {
+        greenMail.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        outbox.shutdown();
+        emailService.shutdown();
+        greenMail.stop();
+        jdbcTemplate.execute("DROP TABLE email_outbox");
+        jdbcTemplate.execute("DROP TABLE email_dead_letter");
+    }
+
+    @Test
+    void emailsAreSentOnceTheirTransactionCommits() throws Exception {
+        outbox = outbox(greenMail.getSmtp().getPort(), 10);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        transactionTemplate.executeWithoutResult(status -> {
+            queue("morty@maputo.com");
+            status.setRollbackOnly();
+        });
+        transactionTemplate.executeWithoutResult(status -> queue("rick@maputo.com"));
+
+        assertTrue(greenMail.waitForIncomingEmail(5000, 1));
+        outbox.dispatch();
+        MimeMessage[] messages = greenMail.getReceivedMessages();
+        assertEquals(1, messages.length);
+        assertEquals("rick@maputo.com", messages[0].getAllRecipients()[0].toString());
+        assertEquals(EMAIL_SUBJECT, messages[0].getSubject());
+        assertTrue(GreenMailUtil.getBody(messages[0]).contains("Your new account password is: pickle"));
+        assertEquals(0, count("email_outbox"));
+        assertEquals(1, meterRegistry.get("email.outbox.sent").counter().count());
+        assertEquals(0, meterRegistry.get("email.outbox.pending").gauge().value());
+    }
+
+    @Test
+    void bodiesAreStoredEncrypted() throws Exception {
+        outbox = outbox(greenMail.getSmtp().getPort(), 10);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            queue("rick@maputo.com");
+            String body = jdbcTemplate.queryForObject("SELECT body FROM email_outbox", String.class);
+            assertFalse(body.contains("pickle"), body);
+        });
+
+        assertTrue(greenMail.waitForIncomingEmail(5000, 1));
+        assertTrue(GreenMailUtil.getBody(greenMail.getReceivedMessages()[0]).contains("Your new account password is: pickle"));
+        //written under another key
+        jdbcTemplate.update("INSERT INTO email_outbox (recipient, subject, body, attempts, created, next_attempt, claimed_until) "
+                + "VALUES ('morty@maputo.com', 'subject', 'AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA', 0, 0, 0, 0)");
+        outbox.dispatch();
+        assertEquals(0, count("email_outbox"));
+        assertEquals(1, meterRegistry.get("email.outbox.dead.lettered").counter().count());
+        assertEquals(0, meterRegistry.get("email.outbox.pending").gauge().value());
+    }
+
+    @Test
+    void failedSendsAreRetriedWithBackoffThenDeadLettered() throws Exception {
+        outbox = outbox(unusedPort(), 2);
+        long start = System.currentTimeMillis();
+        queue("rick@maputo.com");
+
+        outbox.dispatch();
+        Map<String, Object> row = jdbcTemplate.queryForMap("SELECT attempts, next_attempt, claimed_by FROM email_outbox");
+        assertEquals(1, row.get("ATTEMPTS"));
+        long nextAttempt = (Long) row.get("NEXT_ATTEMPT");
+        assertTrue(nextAttempt >= start + 60_000 && nextAttempt <= System.currentTimeMillis() + 75_000, "next attempt " + nextAttempt);
+        assertNull(row.get("CLAIMED_BY"));
+        assertEquals(1, meterRegistry.get("email.outbox.retried").counter().count());
+        assertEquals(1, meterRegistry.get("email.outbox.pending").gauge().value());
+        assertTrue(meterRegistry.get("email.outbox.lag").gauge().value() >= 0);
+        //not due yet
+        assertEquals(0, outbox.dispatch());
+        assertEquals(1, (int) jdbcTemplate.queryForObject("SELECT attempts FROM email_outbox", Integer.class));
+
+        jdbcTemplate.update("UPDATE email_outbox SET next_attempt = 0");
+        outbox.dispatch();
+
+        assertEquals(0, count("email_outbox"));
+        Map<String, Object> deadLetter = jdbcTemplate.queryForMap("SELECT recipient, attempts, last_error FROM email_dead_letter");
+        assertEquals("rick@maputo.com", deadLetter.get("RECIPIENT"));
+        assertEquals(2, deadLetter.get("ATTEMPTS"));
+        assertNotNull(deadLetter.get("LAST_ERROR"));
+        assertEquals(1, meterRegistry.get("email.outbox.dead.lettered").counter().count());
+        assertEquals(0, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    void emailsWithAnExpiredLeaseAreClaimedAgain() throws Exception {
+        outbox = outbox(greenMail.getSmtp().getPort(), 10);
+        queue("rick@maputo.com");
+        outbox.dispatch();
+        greenMail.purgeEmailFromAllMailboxes();
+        //as if a node claimed it and died, in the same transaction so the wake-up after the commit finds nothing to claim
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            queue("morty@maputo.com");
+            jdbcTemplate.update("UPDATE email_outbox SET claimed_by = 'gone', claimed_until = ?", System.currentTimeMillis() + 60_000);
+        });
+
+        assertEquals(0, outbox.dispatch());
+        jdbcTemplate.update("UPDATE email_outbox SET claimed_until = 0");
+        assertEquals(1, outbox.dispatch());
+        assertEquals("morty@maputo.com", greenMail.getReceivedMessages()[0].getAllRecipients()[0].toString());
+    }
+
+    @Test
+    void onlyRefusalsAreFinal() {
+        outbox = outbox(greenMail.getSmtp().getPort(), 10);
+        assertThrows(AddressException.class, () -> outbox.queueNewPasswordEmail("Rick", "pickle", "rick@@"));
+        assertEquals(0, count("email_outbox"));
+        assertTrue(EmailOutbox.isPermanent(new MessagingException("no", new SMTPSendFailedException("DATA", 554, "spam", null, null, null, null))));
+        assertFalse(EmailOutbox.isPermanent(new SMTPSendFailedException("DATA", 451, "try later", null, null, null, null)));
+        assertFalse(EmailOutbox.isPermanent(new MessagingException("Could not connect")));
+    }
+
+    private EmailOutbox outbox(int port, int maximumAttempts) {
+        emailService = new EmailService(meterRegistry, "localhost", port, "smtp", "", "", false, 5000, 2, 60_000, 1000, 100);
+        emailService.start();
+        //a poll interval that never comes, the tests dispatch themselves
+        EmailOutbox outbox = new EmailOutbox(jdbcTemplate, transactionManager, meterRegistry, emailService, 10, maximumAttempts,
+                60, 3600, 300, 3_600_000, "outbox-test-key");
+        outbox.start();
+        return outbox;
+    }
+
+    private void queue(String email) {
+        try {
+            outbox.queueNewPasswordEmail("Rick", "pickle", email);
+        } catch (AddressException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private int count(String table) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table, Integer.class);
+    }
+
+    private static int unusedPort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
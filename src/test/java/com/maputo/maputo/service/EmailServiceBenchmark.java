@@ -0,0 +1,77 @@
+package com.maputo.maputo.service;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.mail.MessagingException;
+import java.util.concurrent.TimeUnit;
+
+//Cost of sending one email to a local GreenMail server, with a connection per email as before and with the pool.
+//GreenMail speaks plain SMTP and answers most commands tens of milliseconds late on loopback, so the scores mostly count
+//round trips: the pool saves the connect, EHLO and QUIT of every email, against smtps also a TLS handshake and a login.
+//Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.maputo.maputo.service.EmailServiceBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailServiceBenchmark {
+    private static final int BATCH_SIZE = 10;
+    private GreenMail greenMail;
+    private EmailService unpooled;
+    private EmailService pooled;
+
+    @Setup
+    public void setUp() {
+        greenMail = new GreenMail(ServerSetupTest.SMTP.dynamicPort());
+        greenMail.start();
+        int port = greenMail.getSmtp().getPort();
+        //nothing is kept idle, every send connects and says goodbye
+        unpooled = new EmailService(new SimpleMeterRegistry(), "localhost", port, "smtp", "", "", false, 5000, 0, 60_000, 1000, 100);
+        pooled = new EmailService(new SimpleMeterRegistry(), "localhost", port, "smtp", "", "", false, 5000, 2, 60_000, 1000, 100);
+    }
+
+    //GreenMail keeps every message, the mailboxes are emptied so the server side does not grow during the run
+    @Setup(Level.Iteration)
+    public void purge() throws Exception {
+        greenMail.purgeEmailFromAllMailboxes();
+    }
+
+    @TearDown
+    public void tearDown() {
+        unpooled.shutdown();
+        pooled.shutdown();
+        greenMail.stop();
+    }
+
+    @Benchmark
+    public void before() throws MessagingException {
+        unpooled.send("rick@maputo.com", "benchmark", "Hello Rick");
+    }
+
+    @Benchmark
+    public void pooled() throws MessagingException {
+        pooled.send("rick@maputo.com", "benchmark", "Hello Rick");
+    }
+
+    //per email, as the outbox dispatcher sends a claimed batch
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void batch() throws MessagingException {
+        try (EmailService.Batch batch = pooled.openBatch()) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.send("rick@maputo.com", "benchmark", "Hello Rick");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EmailServiceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,107 @@
+package com.maputo.maputo.service;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmailServiceTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ServerSetup setup = new ServerSetup(unusedPort(), null, ServerSetup.PROTOCOL_SMTP);
+    private GreenMail greenMail = new GreenMail(setup);
+    private EmailService emailService;
+
+    @AfterEach
+    void tearDown() {
+        emailService.shutdown();
+        greenMail.stop();
+    }
+
+    @Test
+    void connectionsAreReusedAcrossSends() throws Exception {
+        greenMail.start();
+        emailService = emailService(60_000, 1000, 100);
+
+        emailService.send("rick@maputo.com", "one", "1");
+        emailService.send("morty@maputo.com", "two", "2");
+        emailService.send("summer@maputo.com", "three", "3");
+
+        assertEquals(3, greenMail.getReceivedMessages().length);
+        assertEquals(1, meterRegistry.get("email.smtp.connections.opened").counter().count());
+        assertEquals(2, meterRegistry.get("email.smtp.connections.reused").counter().count());
+        assertEquals(1, meterRegistry.get("email.smtp.connections.idle").gauge().value());
+    }
+
+    @Test
+    void aBatchSendsOverOneConnectionUpToTheLimit() throws Exception {
+        greenMail.start();
+        emailService = emailService(60_000, 1000, 2);
+
+        try (EmailService.Batch batch = emailService.openBatch()) {
+            batch.send("rick@maputo.com", "one", "1");
+            batch.send("morty@maputo.com", "two", "2");
+            batch.send("summer@maputo.com", "three", "3");
+        }
+
+        assertEquals(3, greenMail.getReceivedMessages().length);
+        assertEquals(2, meterRegistry.get("email.smtp.connections.opened").counter().count());
+        assertEquals(0, meterRegistry.get("email.smtp.connections.reused").counter().count());
+    }
+
+    @Test
+    void deadAndIdleConnectionsAreReplaced() throws Exception {
+        greenMail.start();
+        //checked every time
+        emailService = emailService(60_000, 0, 100);
+        emailService.send("rick@maputo.com", "one", "1");
+
+        greenMail.stop();
+        greenMail = new GreenMail(setup);
+        greenMail.start();
+        emailService.send("morty@maputo.com", "two", "2");
+
+        assertEquals(1, greenMail.getReceivedMessages().length);
+        assertEquals(2, meterRegistry.get("email.smtp.connections.opened").counter().count());
+
+        emailService.shutdown();
+        emailService = emailService(1, 0, 100);
+        emailService.send("rick@maputo.com", "one", "1");
+        Thread.sleep(20);
+        emailService.send("morty@maputo.com", "two", "2");
+        assertEquals(4, meterRegistry.get("email.smtp.connections.opened").counter().count());
+        assertEquals(0, meterRegistry.get("email.smtp.connections.reused").counter().count());
+    }
+
+    @Test
+    void aBatchStopsTryingAnUnreachableServer() {
+        emailService = emailService(60_000, 1000, 100);
+
+        try (EmailService.Batch batch = emailService.openBatch()) {
+            MessagingException first = assertThrows(MessagingException.class, () -> batch.send("rick@maputo.com", "one", "1"));
+            assertSame(first, assertThrows(MessagingException.class, () -> batch.send("morty@maputo.com", "two", "2")));
+        }
+        assertEquals(0, meterRegistry.get("email.smtp.connections.opened").counter().count());
+    }
+
+    private EmailService emailService(long idleTimeoutMillis, long validateAfterIdleMillis, int maximumMessagesPerConnection) {
+        EmailService emailService = new EmailService(meterRegistry, "localhost", setup.getPort(), "smtp", "", "", false, 5000, 2,
+                idleTimeoutMillis, validateAfterIdleMillis, maximumMessagesPerConnection);
+        emailService.start();
+        return emailService;
+    }
+
+    private static int unusedPort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.maputo.maputo.service;
+
+import com.google.common.hash.Hashing;
+import com.maputo.maputo.exception.domain.ImageTooLargeException;
+import com.maputo.maputo.exception.domain.InvalidImageException;
+import com.maputo.maputo.service.implementation.FileSystemImageStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageStoreTest {
+    private final DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:image-store;MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    private final DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private Path folder;
+    private FileSystemImageStore imageStore;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        folder = Files.createTempDirectory("image-store-test");
+        //no grace, released content can be swept right away
+        imageStore = new FileSystemImageStore(jdbcTemplate, transactionManager, meterRegistry, folder.toString(), 60, 0, 100);
+        imageStore.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        imageStore.shutdown();
+        jdbcTemplate.execute("DROP TABLE stored_image");
+        FileSystemUtils.deleteRecursively(folder);
+    }
+
+    @Test
+    void theSameContentIsStoredOnce() throws Exception {
+        String first = imageStore.add(new ByteArrayInputStream(jpeg(1, 2, 3)));
+        String second = imageStore.add(new ByteArrayInputStream(jpeg(1, 2, 3)));
+        String other = imageStore.add(new ByteArrayInputStream(jpeg(4, 5, 6)));
+
+        assertEquals(first, second);
+        assertNotEquals(first, other);
+        String hash = Hashing.sha256().hashBytes(jpeg(1, 2, 3)).toString();
+        assertEquals(hash + ".jpg", first);
+        Path file = imageStore.locate(first);
+        assertEquals(folder.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(first), file);
+        assertArrayEquals(jpeg(1, 2, 3), Files.readAllBytes(file));
+        assertEquals(1, meterRegistry.get("image.store.deduplicated").counter().count());
+        //the temporary file was renamed into place
+        try (Stream<Path> uploads = Files.list(folder.resolve("upload"))) {
+            assertEquals(0, uploads.count());
+        }
+        assertNull(imageStore.locate("../" + first));
+        assertNull(imageStore.locate("rick.jpg"));
+    }
+
+    @Test
+    void contentIsSweptOnceNobodyRefersToIt() throws Exception {
+        String name = imageStore.add(new ByteArrayInputStream(jpeg(1, 2, 3)));
+        imageStore.add(new ByteArrayInputStream(jpeg(1, 2, 3)));
+        Path file = imageStore.locate(name);
+        Path thumbnail = imageStore.locate(name.replace(".jpg", "-40px.jpg"));
+        Files.write(thumbnail, new byte[]{9});
+
+        imageStore.release(name);
+        Thread.sleep(5);
+        assertEquals(0, imageStore.sweep());
+        assertTrue(Files.exists(file));
+
+        imageStore.release(name);
+        //a name that is not the store's is ignored
+        imageStore.release("rick.jpg");
+        Thread.sleep(5);
+        assertEquals(1, imageStore.sweep());
+        assertFalse(Files.exists(file));
+        assertFalse(Files.exists(thumbnail));
+
+        //uploaded again, it is written again
+        assertEquals(name, imageStore.add(new ByteArrayInputStream(jpeg(1, 2, 3))));
+        assertTrue(Files.exists(file));
+    }
+
+    @Test
+    void contentOfARolledBackUploadIsSwept() throws Exception {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        String name = transactionTemplate.execute(status -> {
+            status.setRollbackOnly();
+            try {
+                return imageStore.add(new ByteArrayInputStream(jpeg(7, 8, 9)));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(Files.exists(imageStore.locate(name)));
+
+        Thread.sleep(5);
+        assertEquals(1, imageStore.sweep());
+        assertFalse(Files.exists(imageStore.locate(name)));
+    }
+
+    @Test
+    void onlyImagesUpToTheLimitAreStored() throws Exception {
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 0x0D};
+        byte[] webp = {'R', 'I', 'F', 'F', 4, 0, 0, 0, 'W', 'E', 'B', 'P', 'V', 'P', '8'};
+        assertTrue(imageStore.add(new ByteArrayInputStream(png)).endsWith(".png"));
+        assertTrue(imageStore.add(new ByteArrayInputStream(webp)).endsWith(".webp"));
+
+        //a script called picture.jpg, and something too short to tell
+        assertThrows(InvalidImageException.class, () -> imageStore.add(new ByteArrayInputStream("<?php system($_GET['c']);".getBytes())));
+        assertThrows(InvalidImageException.class, () -> imageStore.add(new ByteArrayInputStream(new byte[]{(byte) 0xFF, (byte) 0xD8})));
+        //reading stops at the limit, however much more there would be
+        InputStream endless = new InputStream() {
+            private final byte[] header = jpeg();
+            private long read;
+
+            @Override
+            public int read() {
+                return read < header.length ? header[(int) read++] & 0xFF : (int) (read++ & 0x7F);
+            }
+        };
+        assertThrows(ImageTooLargeException.class, () -> imageStore.add(endless));
+
+        try (Stream<Path> uploads = Files.list(folder.resolve("upload"))) {
+            assertEquals(0, uploads.count());
+        }
+        assertEquals(2, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM stored_image", Integer.class));
+    }
+
+    private static byte[] jpeg(int... content) {
+        byte[] bytes = new byte[3 + content.length];
+        bytes[0] = (byte) 0xFF;
+        bytes[1] = (byte) 0xD8;
+        bytes[2] = (byte) 0xFF;
+        for (int i = 0; i < content.length; i++) {
+            bytes[3 + i] = (byte) content[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,89 @@
+package com.maputo.maputo.service;
+
+import com.maputo.maputo.service.implementation.JdbcLoginAttemptStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//two nodes sharing one embedded database
+class JdbcLoginAttemptStoreTest {
+    private AnnotationConfigApplicationContext firstNode;
+    private AnnotationConfigApplicationContext secondNode;
+
+    @BeforeEach
+    void setUp() {
+        firstNode = startNode();
+        secondNode = startNode();
+    }
+
+    @AfterEach
+    void tearDown() {
+        firstNode.close();
+        secondNode.close();
+        new JdbcTemplate(dataSource()).execute("DROP TABLE login_attempt");
+    }
+
+    @Test
+    void attemptsAreCountedAcrossNodes() {
+        LoginAttemptService first = firstNode.getBean(LoginAttemptService.class);
+        LoginAttemptService second = secondNode.getBean(LoginAttemptService.class);
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(first.addAttemptAndCheckLimitReached("rick"));
+        }
+        assertFalse(second.hasExceededMaxAttempts("rick"));
+        firstNode.getBean(JdbcLoginAttemptStore.class).flush();
+
+        assertFalse(second.addAttemptAndCheckLimitReached("rick"));
+        assertTrue(second.addAttemptAndCheckLimitReached("rick"));
+        //already reached, nothing left to block
+        assertFalse(second.addAttemptAndCheckLimitReached("rick"));
+        secondNode.getBean(JdbcLoginAttemptStore.class).flush();
+        assertTrue(first.hasExceededMaxAttempts("rick"));
+
+        first.evictUserFromLoginAttemptCache("rick");
+        firstNode.getBean(JdbcLoginAttemptStore.class).flush();
+        assertFalse(second.hasExceededMaxAttempts("rick"));
+    }
+
+    private AnnotationConfigApplicationContext startNode() {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", Map.of(
+                "login-attempt.store", "jdbc",
+                "login-attempt.jdbc.flush-interval-ms", "60000",
+                //no local cache, a node reads what the other one flushed right away instead of after a sleep
+                "login-attempt.jdbc.cache-ttl-ms", "0")));
+        context.register(NodeConfiguration.class, JdbcLoginAttemptStore.class, LoginAttemptService.class);
+        context.refresh();
+        return context;
+    }
+
+    private static DriverManagerDataSource dataSource() {
+        return new DriverManagerDataSource("jdbc:h2:mem:login-attempts;MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+    }
+
+    @Configuration
+    static class NodeConfiguration {
+        @Bean
+        JdbcTemplate jdbcTemplate() {
+            return new JdbcTemplate(dataSource());
+        }
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.maputo.maputo.service;
+
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserView;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManagerFactory;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class LoginTimestampRecorderTest {
+    private JdbcTemplate jdbcTemplate;
+    private Cache secondLevelCache;
+    private LoginTimestampRecorder recorder;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:login-timestamp;MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE user (id BIGINT PRIMARY KEY, last_login_date TIMESTAMP, last_login_date_display TIMESTAMP)");
+        jdbcTemplate.update("INSERT INTO user (id, last_login_date) VALUES (1, ?)", new Date(1_000));
+        secondLevelCache = mock(Cache.class);
+        EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
+        when(entityManagerFactory.getCache()).thenReturn(secondLevelCache);
+        recorder = new LoginTimestampRecorder(jdbcTemplate, entityManagerFactory, new SimpleMeterRegistry(), 500, 60_000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        recorder.shutdown();
+        jdbcTemplate.execute("DROP TABLE user");
+    }
+
+    @Test
+    void loginsAreMergedAndWrittenInOneFlush() {
+        User stored = user(new Date(1_000));
+        UserView first = recorder.recordLogin(UserView.from(stored));
+        assertEquals(1_000, first.getLastLoginDateDisplay().getTime());
+        UserView second = recorder.recordLogin(UserView.from(stored));
+
+        //second login sees the first one even though nothing is written yet, and the user itself is left alone
+        assertEquals(first.getLastLoginDate(), second.getLastLoginDateDisplay());
+        assertEquals(1_000, stored.getLastLoginDate().getTime());
+        assertEquals(1, recorder.getQueueDepth());
+        assertEquals(second.getLastLoginDate(), recorder.applyPending(user(new Date(1_000))).getLastLoginDate());
+
+        recorder.flush();
+
+        assertEquals(0, recorder.getQueueDepth());
+        Date written = jdbcTemplate.queryForObject("SELECT last_login_date FROM user WHERE id = 1", Date.class);
+        Date writtenDisplay = jdbcTemplate.queryForObject("SELECT last_login_date_display FROM user WHERE id = 1", Date.class);
+        assertEquals(second.getLastLoginDate().getTime(), written.getTime());
+        assertEquals(first.getLastLoginDate().getTime(), writtenDisplay.getTime());
+        //the cached row still has the old dates
+        verify(secondLevelCache).evict(User.class, 1L);
+    }
+
+    private User user(Date lastLoginDate) {
+        User user = new User();
+        user.setId(1L);
+        user.setLastLoginDate(lastLoginDate);
+        return user;
+    }
+}
@@ -0,0 +1,99 @@
+package com.maputo.maputo.service;
+
+import com.google.common.hash.Hashing;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.service.implementation.FileSystemImageStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.util.FileSystemUtils;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManagerFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static com.maputo.maputo.constant.FileConstant.USER_FOLDER;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+//users as they were before the image store, with their images in a folder per user
+class ProfileImageMigrationTest {
+    private static final String HOST = "http://localhost:8081";
+    private final DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:profile-image-migration;MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    private final DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Cache secondLevelCache = mock(Cache.class);
+    private final EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
+    private FileSystemImageStore imageStore;
+    private ProfileImageMigration migration;
+    private Path store;
+    private Path rickFolder;
+    private String rick;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(entityManagerFactory.getCache()).thenReturn(secondLevelCache);
+        jdbcTemplate.execute("CREATE TABLE user (id BIGINT PRIMARY KEY, profile_image_url VARCHAR(255))");
+        store = Files.createTempDirectory("image-store-test");
+        imageStore = new FileSystemImageStore(jdbcTemplate, transactionManager, meterRegistry, store.toString(), 60, 60, 1000);
+        imageStore.start();
+        migration = new ProfileImageMigration(jdbcTemplate, transactionManager, entityManagerFactory, imageStore,
+                new ProfileImageService(meterRegistry, 1000, 1000, false, 600), false, 2);
+        rick = "migration-test-" + System.nanoTime();
+        rickFolder = Files.createDirectories(Paths.get(USER_FOLDER, rick));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        imageStore.shutdown();
+        jdbcTemplate.execute("DROP TABLE user");
+        jdbcTemplate.execute("DROP TABLE stored_image");
+        FileSystemUtils.deleteRecursively(store);
+        FileSystemUtils.deleteRecursively(rickFolder);
+    }
+
+    @Test
+    void movesImagesIntoTheStoreAndPointsTheUrlAtThem() throws Exception {
+        byte[] picture = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 1, 2, 3};
+        Files.write(rickFolder.resolve(rick + ".jpg"), picture);
+        //not an image, it is not moved
+        Files.write(rickFolder.resolve("script.jpg"), "#!/bin/sh".getBytes());
+        String rickUrl = HOST + "/user/image/" + rick + "/" + rick + ".jpg?v=17d";
+        //renamed since the upload, the URL still names the old folder
+        jdbcTemplate.update("INSERT INTO user VALUES (1, ?)", rickUrl);
+        jdbcTemplate.update("INSERT INTO user VALUES (2, ?)", HOST + "/user/image/profile/morty");
+        jdbcTemplate.update("INSERT INTO user VALUES (3, ?)", HOST + "/user/image/" + rick + "/missing.jpg?v=1");
+        jdbcTemplate.update("INSERT INTO user VALUES (4, ?)", HOST + "/user/image/../../etc/passwd");
+        jdbcTemplate.update("INSERT INTO user VALUES (5, ?)", rickUrl);
+        jdbcTemplate.update("INSERT INTO user VALUES (6, ?)", HOST + "/user/image/" + rick + "/script.jpg?v=1");
+
+        assertEquals(2, migration.migrate());
+
+        String stored = Hashing.sha256().hashBytes(picture) + ".jpg";
+        assertEquals(HOST + "/user/image/" + stored, url(1));
+        assertEquals(HOST + "/user/image/" + stored, url(5));
+        assertEquals(HOST + "/user/image/profile/morty", url(2));
+        assertEquals(HOST + "/user/image/" + rick + "/missing.jpg?v=1", url(3));
+        assertEquals(HOST + "/user/image/../../etc/passwd", url(4));
+        assertEquals(HOST + "/user/image/" + rick + "/script.jpg?v=1", url(6));
+        assertArrayEquals(picture, Files.readAllBytes(imageStore.locate(stored)));
+        assertEquals(2, jdbcTemplate.queryForObject("SELECT reference_count FROM stored_image", Integer.class));
+        verify(secondLevelCache).evict(User.class, 1L);
+        verify(secondLevelCache).evict(User.class, 5L);
+        //the old file is left for whoever cleans up USER_FOLDER
+        assertTrue(Files.exists(rickFolder.resolve(rick + ".jpg")));
+
+        assertEquals(0, migration.migrate());
+    }
+
+    private String url(long id) {
+        return jdbcTemplate.queryForObject("SELECT profile_image_url FROM user WHERE id = ?", String.class, id);
+    }
+}
@@ -0,0 +1,84 @@
+package com.maputo.maputo.service;
+
+import com.maputo.maputo.domain.ProfileImage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import static com.maputo.maputo.constant.FileConstant.USER_FOLDER;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProfileImageServiceTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private Path folder;
+    private String username;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        folder = Files.createDirectories(Paths.get(USER_FOLDER, "image-cache-test-" + System.nanoTime()));
+        username = folder.getFileName().toString();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        FileSystemUtils.deleteRecursively(folder);
+    }
+
+    @Test
+    void keepsImagesOffHeapWithinTheByteBudget() throws Exception {
+        ProfileImageService service = new ProfileImageService(meterRegistry, 1000, 600, true, 600);
+        write("a.jpg", 400, 1);
+        write("b.jpg", 400, 2);
+        write("c.jpg", 400, 3);
+        write("large.jpg", 700, 4);
+
+        ProfileImage a = service.findProfileImage(username, "a.jpg", null);
+        service.findProfileImage(username, "b.jpg", null);
+        service.findProfileImage(username, "c.jpg", null);
+
+        assertTrue(a.isInMemory());
+        assertTrue(a.getContent().isDirect());
+        assertEquals(1, a.getContent().get(0));
+        assertFalse(service.findProfileImage(username, "large.jpg", null).isInMemory());
+        //three images of 400 bytes don't fit in 1000
+        assertTrue(meterRegistry.get("profile.images.cache.bytes").gauge().value() <= 1000);
+        assertTrue(meterRegistry.get("cache.evictions").tag("cache", "profile.images").functionCounter().count() > 0);
+    }
+
+    @Test
+    void newerFilesReplaceTheCachedOne() throws Exception {
+        ProfileImageService service = new ProfileImageService(meterRegistry, 1000, 600, false, 600);
+        write("a.jpg", 100, 1);
+        ProfileImage first = service.findProfileImage(username, "a.jpg", null);
+        assertSame(first, service.findProfileImage(username, "a.jpg", first.getVersion()));
+
+        write("a.jpg", 100, 2);
+        Files.setLastModifiedTime(folder.resolve("a.jpg"), FileTime.fromMillis(first.getLastModified() + 1000));
+        //unversioned requests keep getting the cached one until it is evicted
+        assertEquals(1, service.findProfileImage(username, "a.jpg", null).getContent().get(0));
+        //a version the cache doesn't have goes to the disk
+        ProfileImage second = service.findProfileImage(username, "a.jpg", Long.toHexString(first.getLastModified() + 1000));
+        assertEquals(2, second.getContent().get(0));
+        assertEquals(100, meterRegistry.get("profile.images.cache.bytes").gauge().value());
+
+        write("a.jpg", 100, 3);
+        service.evict(username);
+        assertEquals(3, service.findProfileImage(username, "a.jpg", null).getContent().get(0));
+        //finding an older file than the one asked for still counts as a hit
+        assertEquals(3.0 / 5, meterRegistry.get("profile.images.cache.hit.ratio").gauge().value(), 0.01);
+    }
+
+    private void write(String filename, int length, int value) throws Exception {
+        byte[] bytes = new byte[length];
+        ByteBuffer.wrap(bytes).put(0, (byte) value);
+        Files.write(folder.resolve(filename), bytes);
+    }
+}
@@ -0,0 +1,115 @@
+package com.maputo.maputo.service;
+
+import com.maputo.maputo.domain.ProfileImage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static com.maputo.maputo.constant.FileConstant.USER_FOLDER;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThumbnailServiceTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ProfileImageService profileImageService = new ProfileImageService(meterRegistry, 1 << 20, 1 << 20, false, 600);
+    private final ThumbnailService thumbnailService = new ThumbnailService(profileImageService, meterRegistry, new int[]{256, 40, 128}, 0.85f, 1, 10);
+    private Path folder;
+    private String username;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        folder = Files.createDirectories(Paths.get(USER_FOLDER, "thumbnail-test-" + System.nanoTime()));
+        username = folder.getFileName().toString();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        thumbnailService.shutdown();
+        FileSystemUtils.deleteRecursively(folder);
+    }
+
+    @Test
+    void makesSquareThumbnailsOfEverySizeInTheBackground() throws Exception {
+        Path original = folder.resolve(username + ".jpg");
+        writeImage(original, 1600, 1000);
+
+        thumbnailService.makeThumbnails(original);
+        Path small = waitFor(folder.resolve(username + "-40px.jpg"));
+        waitFor(folder.resolve(username + "-128px.jpg"));
+        Path large = waitFor(folder.resolve(username + "-256px.jpg"));
+
+        BufferedImage thumbnail = ImageIO.read(small.toFile());
+        assertEquals(40, thumbnail.getWidth());
+        assertEquals(40, thumbnail.getHeight());
+        assertEquals(256, ImageIO.read(large.toFile()).getWidth());
+        //the centre of the landscape original is red, its left and right edges that were cropped away are blue
+        Color corner = new Color(ImageIO.read(large.toFile()).getRGB(2, 2));
+        assertTrue(corner.getRed() > 200 && corner.getBlue() < 60, corner.toString());
+        assertTrue(Files.size(small) * 20 < Files.size(original));
+    }
+
+    @Test
+    void theOriginalStandsInUntilTheThumbnailExists() throws Exception {
+        Path original = folder.resolve(username + ".jpg");
+        writeImage(original, 300, 300);
+        ProfileImage image = profileImageService.findProfileImage(username, username + ".jpg", null);
+
+        //nothing made yet, asking queues it
+        assertNull(thumbnailService.findThumbnail(image, 100));
+        waitFor(folder.resolve(username + "-128px.jpg"));
+
+        ProfileImage thumbnail = thumbnailService.findThumbnail(image, 100);
+        assertEquals(username + "-128px.jpg", thumbnail.getPath().getFileName().toString());
+        assertSame(image, thumbnailService.findThumbnail(image, 1000));
+    }
+
+    @Test
+    void originalsThatAreNotImagesAreNotRetried() throws Exception {
+        Path original = folder.resolve(username + ".jpg");
+        Files.write(original, new byte[]{1, 2, 3});
+        ProfileImage image = profileImageService.findProfileImage(username, username + ".jpg", null);
+
+        assertNull(thumbnailService.findThumbnail(image, 40));
+        for (int i = 0; i < 100 && meterRegistry.get("thumbnail.failed").counter().count() == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertNull(thumbnailService.findThumbnail(image, 40));
+        Thread.sleep(200);
+
+        assertEquals(1, meterRegistry.get("thumbnail.failed").counter().count());
+    }
+
+    private static void writeImage(Path path, int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int side = Math.min(width, height);
+        int left = (width - side) / 2;
+        int top = (height - side) / 2;
+        Random random = new Random(1);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                boolean centre = x >= left && x < left + side && y >= top && y < top + side;
+                //a little noise so the original compresses like a photo
+                int noise = random.nextInt(40);
+                image.setRGB(x, y, centre ? new Color(215 + noise, noise, noise).getRGB() : new Color(noise, noise, 215 + noise).getRGB());
+            }
+        }
+        ImageIO.write(image, "jpeg", path.toFile());
+    }
+
+    private static Path waitFor(Path path) throws InterruptedException {
+        for (int i = 0; i < 200 && !Files.exists(path); i++) {
+            Thread.sleep(25);
+        }
+        assertTrue(Files.exists(path), path + " was not made");
+        return path;
+    }
+}
@@ -0,0 +1,70 @@
+package com.maputo.maputo.service;
+
+import com.maputo.maputo.enumeration.ExportFormat;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+//Runs in its own surefire execution with a small heap (see pom.xml), a million users would never fit in it as a List<User>
+@Tag("large-export")
+class UserExportServiceLargeTest {
+    private static final int ROWS = 1_000_000;
+    private static final int INSERT_CHUNK = 100_000;
+
+    @Test
+    void exportsAMillionUsersWithFlatHeap(@TempDir Path directory) throws Exception {
+        assertTrue(Runtime.getRuntime().maxMemory() <= 128L * 1024 * 1024, "expected to run with a small -Xmx");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:file:" + directory.resolve("export") + ";MODE=MySQL", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE user (id BIGINT PRIMARY KEY, user_id VARCHAR(255), first_name VARCHAR(255), last_name VARCHAR(255), "
+                + "username VARCHAR(255), email VARCHAR(255), profile_image_url VARCHAR(255), last_login_date TIMESTAMP, "
+                + "last_login_date_display TIMESTAMP, join_date TIMESTAMP, role VARCHAR(255), authorities BLOB, password VARCHAR(255), "
+                + "is_active BOOLEAN, is_not_blocked BOOLEAN)");
+        for (int from = 1; from <= ROWS; from += INSERT_CHUNK) {
+            jdbcTemplate.update("INSERT INTO user SELECT X, X, 'First' || X, 'Last' || X, 'user' || X, 'user' || X || '@maputo.com', "
+                    + "'http://localhost/user/image/profile/user' || X, CURRENT_TIMESTAMP, NULL, CURRENT_TIMESTAMP, 'ROLE_USER', NULL, "
+                    + "'$2a$10$hash', TRUE, TRUE FROM SYSTEM_RANGE(?, ?)", from, from + INSERT_CHUNK - 1);
+        }
+        UserExportService exportService = new UserExportService(jdbcTemplate,
+                new LoginTimestampRecorder(jdbcTemplate, mock(EntityManagerFactory.class), new SimpleMeterRegistry(), 500, 5000), 1000);
+
+        LineCounter ndjson = new LineCounter();
+        assertEquals(ROWS, exportService.export(ExportFormat.NDJSON, ndjson));
+        assertEquals(ROWS, ndjson.lines);
+
+        LineCounter csv = new LineCounter();
+        assertEquals(ROWS, exportService.export(ExportFormat.CSV, csv));
+        assertEquals(ROWS + 1, csv.lines);
+    }
+
+    private static final class LineCounter extends OutputStream {
+        private long lines;
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                if (bytes[i] == '\n') {
+                    lines++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.maputo.maputo.service;
+
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserView;
+import com.maputo.maputo.repository.UserRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.security.core.userdetails.UserDetailsService;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Date;
+
+import static com.maputo.maputo.enumeration.Role.ROLE_ADMIN;
+import static com.maputo.maputo.enumeration.Role.ROLE_USER;
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+class UserSecondLevelCacheTest {
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private UserRepository userRepository;
+    @Autowired
+    private LoginTimestampRecorder loginTimestampRecorder;
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+    @Autowired
+    private UserDetailsService userDetailsService;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    //the outbox would try to send the email of resetPassword for real
+    @MockBean
+    private EmailService emailService;
+    private Statistics statistics;
+    private User rick;
+
+    @BeforeEach
+    void setUp() {
+        rick = userRepository.save(user("rick", "rick@maputo.com"));
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        userRepository.deleteAll();
+    }
+
+    @Test
+    void repeatedLookupsDoNotReachTheDatabase() {
+        userService.findUserByUsername("rick");
+        userService.findUserByEmail("rick@maputo.com");
+        long statements = statistics.getPrepareStatementCount();
+
+        assertEquals("rick@maputo.com", userService.findUserByUsername("rick").getEmail());
+        assertEquals("rick", userService.findUserByEmail("rick@maputo.com").getUsername());
+
+        assertEquals(statements, statistics.getPrepareStatementCount());
+        assertTrue(statistics.getNaturalIdCacheHitCount() > 0);
+        assertTrue(statistics.getQueryCacheHitCount() > 0);
+        assertTrue(statistics.getSecondLevelCacheHitCount() > 0);
+    }
+
+    @Test
+    void updateUserReplacesTheCachedUsername() throws Exception {
+        userService.findUserByUsername("rick");
+
+        userService.updateUser("rick", "Rick", "Sanchez", "pickle", "pickle@maputo.com", ROLE_ADMIN.name(), true, true, null);
+
+        assertNull(userService.findUserByUsername("rick"));
+        assertNull(userService.findUserByEmail("rick@maputo.com"));
+        assertEquals(ROLE_ADMIN.name(), userService.findUserByUsername("pickle").getRole());
+        assertEquals("pickle", userService.findUserByEmail("pickle@maputo.com").getUsername());
+    }
+
+    @Test
+    void deleteUserRemovesItFromTheCache() {
+        userService.findUserByUsername("rick");
+        userService.findUserByEmail("rick@maputo.com");
+
+        userService.deleteUser(rick.getId());
+
+        assertNull(userService.findUserByUsername("rick"));
+        assertNull(userService.findUserByEmail("rick@maputo.com"));
+    }
+
+    @Test
+    void resetPasswordUpdatesTheCachedUser() throws Exception {
+        String password = userRepository.findUserByNaturalId("rick").getPassword();
+
+        userService.resetPassword("rick@maputo.com");
+
+        assertNotEquals(password, userRepository.findUserByNaturalId("rick").getPassword());
+    }
+
+    @Test
+    void writtenLoginDatesEvictTheCachedUser() {
+        userService.findUserByUsername("rick");
+        assertTrue(entityManagerFactory.getCache().contains(User.class, rick.getId()));
+
+        Date login = loginTimestampRecorder.recordLogin(UserView.from(rick)).getLastLoginDate();
+        assertEquals(login, userService.findUserByUsername("rick").getLastLoginDate());
+        loginTimestampRecorder.flush();
+
+        assertFalse(entityManagerFactory.getCache().contains(User.class, rick.getId()));
+        assertEquals(login, userService.findUserByUsername("rick").getLastLoginDate());
+    }
+
+    @Test
+    void loginReadsAPasswordChangedOnAnotherNode() {
+        userService.findUserByUsername("rick");
+
+        changedOnAnotherNode("password = 'changed'");
+
+        assertEquals("changed", userDetailsService.loadUserByUsername("rick").getPassword());
+    }
+
+    @Test
+    void updateUserDoesNotWriteBackACachedPassword() throws Exception {
+        userService.findUserByUsername("rick");
+        changedOnAnotherNode("password = 'changed'");
+
+        userService.updateUser("rick", "Rick", "Sanchez", "rick", "rick@maputo.com", ROLE_USER.name(), true, true, null);
+
+        assertEquals("changed", jdbcTemplate.queryForObject("SELECT password FROM user WHERE id = ?", String.class, rick.getId()));
+    }
+
+    @Test
+    void aStaleCopyIsRefusedInsteadOfWritten() {
+        User stale = userRepository.findById(rick.getId()).orElseThrow();
+        changedOnAnotherNode("first_name = 'Other'");
+
+        stale.setFirstName("Stale");
+        assertThrows(ObjectOptimisticLockingFailureException.class, () -> userRepository.saveAndFlush(stale));
+        assertEquals("Other", jdbcTemplate.queryForObject("SELECT first_name FROM user WHERE id = ?", String.class, rick.getId()));
+    }
+
+    //what another node's Hibernate would write, without touching this node's second-level cache
+    private void changedOnAnotherNode(String assignment) {
+        jdbcTemplate.update("UPDATE user SET " + assignment + ", version = version + 1 WHERE id = ?", rick.getId());
+    }
+
+    private User user(String username, String email) {
+        User user = new User();
+        user.setUserId(username);
+        user.setFirstName(username);
+        user.setLastName(username);
+        user.setUsername(username);
+        user.setEmail(email);
+        user.setPassword("$2a$10$7EqJtq98hPqEX7fNZaFWoO5sOGnH6n.Fhyq1jNxGZ6C/QeHF.yGq2");
+        user.setJoinDate(new Date());
+        user.setRole(ROLE_USER.name());
+        user.setAuthorities(ROLE_USER.getAuthorities());
+        user.setActive(true);
+        user.setNotBlocked(true);
+        return user;
+    }
+}
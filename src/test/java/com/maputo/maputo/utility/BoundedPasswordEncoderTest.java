@@ -0,0 +1,62 @@
+package com.maputo.maputo.utility;
+
+import com.maputo.maputo.exception.domain.PasswordEncoderBusyException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedPasswordEncoderTest {
+
+    @Test
+    void failsFastWhenPoolAndQueueAreFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BoundedPasswordEncoder encoder = new BoundedPasswordEncoder(blockingEncoder(release), 1, 1, false, new SimpleMeterRegistry());
+
+        CompletableFuture<String> running = encoder.encodeAsync("a");
+        CompletableFuture<String> queued = encoder.encodeAsync("b");
+        assertThrows(PasswordEncoderBusyException.class, () -> encoder.encode("c"));
+
+        release.countDown();
+        assertEquals("a", running.get());
+        assertEquals("b", queued.get());
+        encoder.shutdown();
+    }
+
+    @Test
+    void upgradesWeakerHashesOnlyWhenRehashIsOn() {
+        String weakHash = new BCryptPasswordEncoder(4).encode("secret");
+        BoundedPasswordEncoder rehashing = new BoundedPasswordEncoder(new BCryptPasswordEncoder(5), 1, 10, true, new SimpleMeterRegistry());
+        BoundedPasswordEncoder plain = new BoundedPasswordEncoder(new BCryptPasswordEncoder(5), 1, 10, false, new SimpleMeterRegistry());
+
+        assertTrue(rehashing.matches("secret", weakHash));
+        assertTrue(rehashing.upgradeEncoding(weakHash));
+        assertFalse(plain.upgradeEncoding(weakHash));
+        rehashing.shutdown();
+        plain.shutdown();
+    }
+
+    private PasswordEncoder blockingEncoder(CountDownLatch release) {
+        return new PasswordEncoder() {
+            @Override
+            public String encode(CharSequence rawPassword) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return rawPassword.toString();
+            }
+
+            @Override
+            public boolean matches(CharSequence rawPassword, String encodedPassword) {
+                return rawPassword.toString().equals(encodedPassword);
+            }
+        };
+    }
+}
@@ -0,0 +1,27 @@
+package com.maputo.maputo.utility;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CsvWriterTest {
+
+    @Test
+    void quotesOnlyWhenNeeded() throws Exception {
+        StringWriter out = new StringWriter();
+        CsvWriter csv = new CsvWriter(out);
+        csv.writeRow("rick", null, "Sanchez, Rick", "say \"wubba\"", "line\nbreak");
+
+        assertEquals("rick,,\"Sanchez, Rick\",\"say \"\"wubba\"\"\",\"line\nbreak\"\r\n", out.toString());
+    }
+
+    @Test
+    void neutralizesSpreadsheetFormulas() throws Exception {
+        StringWriter out = new StringWriter();
+        new CsvWriter(out).writeRow("=HYPERLINK(\"x\")", "-1");
+
+        assertEquals("\"'=HYPERLINK(\"\"x\"\")\",\"'-1\"\r\n", out.toString());
+    }
+}
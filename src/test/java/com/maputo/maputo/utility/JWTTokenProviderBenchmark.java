@@ -0,0 +1,85 @@
+package com.maputo.maputo.utility;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserPrincipal;
+import com.maputo.maputo.domain.VerifiedToken;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.maputo.maputo.constant.SecurityConstant.AUTHORITIES;
+import static com.maputo.maputo.constant.SecurityConstant.MAPUTO_LLC;
+import static com.maputo.maputo.enumeration.Role.ROLE_SUPER_ADMIN;
+import static java.util.Arrays.stream;
+
+//Cost of authorizing one request in JWTAuthorizationFilter.
+//Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.maputo.maputo.utility.JWTTokenProviderBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JWTTokenProviderBenchmark {
+    private static final String SECRET = "benchmark_secret_key";
+    private JWTTokenProvider cachedProvider;
+    private JWTTokenProvider uncachedProvider;
+    private String token;
+
+    @Setup
+    public void setUp() {
+        cachedProvider = new JWTTokenProvider(SECRET, 10_000, true);
+        uncachedProvider = new JWTTokenProvider(SECRET, 0, true);
+        User user = new User();
+        user.setUsername("benchmark");
+        user.setAuthorities(ROLE_SUPER_ADMIN.getAuthorities());
+        token = cachedProvider.generateJwtToken(new UserPrincipal(user));
+    }
+
+    //what the filter did before: a new verifier and a full HMAC check for subject, validity and authorities
+    @Benchmark
+    public void before(Blackhole blackhole) {
+        String subject = legacyVerifier().verify(token).getSubject();
+        boolean expired = legacyVerifier().verify(token).getExpiresAt().before(new java.util.Date());
+        List<GrantedAuthority> authorities = stream(legacyVerifier().verify(token).getClaim(AUTHORITIES).asArray(String.class))
+                .map(SimpleGrantedAuthority::new).collect(Collectors.toList());
+        blackhole.consume(subject);
+        blackhole.consume(expired);
+        blackhole.consume(authorities);
+    }
+
+    //single verify-and-decode, cache disabled: every request still checks the HMAC once
+    @Benchmark
+    public void afterVerifyOnce(Blackhole blackhole) {
+        VerifiedToken verifiedToken = uncachedProvider.verify(token);
+        blackhole.consume(uncachedProvider.isTokenValid(verifiedToken));
+        blackhole.consume(verifiedToken.getAuthorities());
+    }
+
+    //hot token served from the verified-token cache
+    @Benchmark
+    public void afterCached(Blackhole blackhole) {
+        VerifiedToken verifiedToken = cachedProvider.verify(token);
+        blackhole.consume(cachedProvider.isTokenValid(verifiedToken));
+        blackhole.consume(verifiedToken.getAuthorities());
+    }
+
+    private JWTVerifier legacyVerifier() {
+        return JWT.require(Algorithm.HMAC512(SECRET)).withIssuer(MAPUTO_LLC).build();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(JWTTokenProviderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
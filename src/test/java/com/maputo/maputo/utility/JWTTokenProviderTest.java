@@ -0,0 +1,64 @@
+package com.maputo.maputo.utility;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.maputo.maputo.domain.User;
+import com.maputo.maputo.domain.UserPrincipal;
+import com.maputo.maputo.domain.VerifiedToken;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Collection;
+import java.util.Date;
+
+import static com.maputo.maputo.constant.SecurityConstant.*;
+import static com.maputo.maputo.enumeration.Role.ROLE_ADMIN;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JWTTokenProviderTest {
+    private static final String SECRET = "test_secret";
+
+    @Test
+    void maskOnlyTokenDecodesToPooledAuthorities() {
+        JWTTokenProvider provider = new JWTTokenProvider(SECRET, 100, false);
+        String token = provider.generateJwtToken(principal(ROLE_ADMIN.getAuthorities()));
+
+        assertTrue(JWT.decode(token).getClaim(AUTHORITIES).isNull());
+        VerifiedToken verifiedToken = provider.verify(token);
+        assertEquals("rick", verifiedToken.getSubject());
+        assertSame(AuthorityMask.toAuthorities(ROLE_ADMIN.getAuthorityMask()), verifiedToken.getAuthorities());
+        assertSame(verifiedToken, provider.verify(token));
+    }
+
+    @Test
+    void legacyArrayClaimTokenIsStillAccepted() {
+        JWTTokenProvider provider = new JWTTokenProvider(SECRET, 100, false);
+        String legacyToken = JWT.create().withIssuer(MAPUTO_LLC).withSubject("rick")
+                .withArrayClaim(AUTHORITIES, ROLE_ADMIN.getAuthorities())
+                .withExpiresAt(new Date(System.currentTimeMillis() + EXPIRATION_TIME))
+                .sign(Algorithm.HMAC512(SECRET));
+
+        assertSame(AuthorityMask.toAuthorities(ROLE_ADMIN.getAuthorityMask()), provider.verify(legacyToken).getAuthorities());
+    }
+
+    @Test
+    void unknownAuthorityFallsBackToArrayClaim() {
+        JWTTokenProvider provider = new JWTTokenProvider(SECRET, 100, false);
+        String token = provider.generateJwtToken(principal(new String[]{"user:read", "forum:moderate"}));
+
+        assertTrue(JWT.decode(token).getClaim(AUTHORITY_MASK).isNull());
+        assertEquals(2, provider.verify(token).getAuthorities().size());
+    }
+
+    //users can only hold mapped authorities now, the token still has to cope with principals that carry others
+    private UserPrincipal principal(String[] authorities) {
+        User user = new User();
+        user.setUsername("rick");
+        return new UserPrincipal(user) {
+            @Override
+            public Collection<? extends GrantedAuthority> getAuthorities() {
+                return AuthorityMask.toAuthorities(authorities);
+            }
+        };
+    }
+}
@@ -0,0 +1,71 @@
+package com.maputo.maputo.utility;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlidingWindowAttemptTrackerTest {
+
+    @Test
+    void concurrentIncrementsAreNotLost() throws Exception {
+        SlidingWindowAttemptTracker tracker = new SlidingWindowAttemptTracker(1000, 60_000, 5);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8_000; i++) {
+            pool.execute(() -> tracker.incrementAndGet("rick"));
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(8_000, tracker.get("rick"));
+    }
+
+    @Test
+    void sizeStaysWithinCapacity() {
+        SlidingWindowAttemptTracker tracker = new SlidingWindowAttemptTracker(10_000, 60_000, 5);
+        for (int i = 0; i < 100_000; i++) {
+            tracker.incrementAndGet("attacker" + i);
+        }
+
+        assertTrue(tracker.size() <= tracker.getCapacity());
+        assertEquals(1, tracker.incrementAndGet("fresh"));
+    }
+
+    @Test
+    void theStalestEntriesAreFoundWhereverTheyAreInTheTable() throws Exception {
+        SlidingWindowAttemptTracker tracker = new SlidingWindowAttemptTracker(4096, 1000, 5);
+        for (int i = 0; i < 20; i++) {
+            tracker.incrementAndGet("stale" + i);
+        }
+        //one 200 ms bucket later, still inside the window
+        Thread.sleep(250);
+        for (int i = 0; tracker.size() < tracker.getCapacity(); i++) {
+            tracker.incrementAndGet("rick" + i);
+        }
+
+        //a quarter of the capacity walks every segment several times, sampling only the start of the table would not
+        for (int i = 0; i < tracker.getCapacity() / 4; i++) {
+            tracker.incrementAndGet("attacker" + i);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(0, tracker.get("stale" + i), "stale" + i);
+        }
+    }
+
+    @Test
+    void attemptsExpireWithTheWindow() throws Exception {
+        SlidingWindowAttemptTracker tracker = new SlidingWindowAttemptTracker(1000, 200, 2);
+        tracker.incrementAndGet("rick");
+        assertEquals(2, tracker.incrementAndGet("rick"));
+
+        Thread.sleep(450);
+
+        assertEquals(0, tracker.get("rick"));
+        tracker.reset("rick");
+        assertEquals(0, tracker.get("rick"));
+    }
+}
@@ -0,0 +1,50 @@
+package com.maputo.maputo.utility;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Latency of /user/search type-ahead queries against an index of 200k made up users. Memory per user is printed during setup.
+//JMH forks a JVM, so run it on a plain classpath:
+//mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+//java -cp target/test-classes:target/classes:$(cat cp.txt) com.maputo.maputo.utility.UserSearchIndexBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+public class UserSearchIndexBenchmark {
+    private static final int USERS = 200_000;
+    private static final String[] FIRST_NAMES = {"Rick", "Morty", "Summer", "Beth", "Jerry", "Birdperson", "Squanchy", "Tammy", "Gene", "Jessica"};
+    private static final String[] LAST_NAMES = {"Sanchez", "Smith", "Person", "Gueterman", "Vagina", "Poopybutthole", "Goldenfold", "Nimbus"};
+    private UserSearchIndex index;
+
+    @Param({"r", "sm", "ric", "sanch", "user12345", "maputo.com"})
+    public String query;
+
+    @Setup
+    public void setUp() {
+        index = new UserSearchIndex(10_000);
+        Random random = new Random(42);
+        for (int i = 0; i < USERS; i++) {
+            String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            index.put(i, "user" + i, firstName, lastName, firstName.toLowerCase() + "." + lastName.toLowerCase() + i + "@maputo.com");
+        }
+        System.out.printf("%d users, about %d bytes per user%n", index.size(), index.estimatedBytesPerUser());
+    }
+
+    @Benchmark
+    public Object search() {
+        return index.search(query, 0, 10);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(UserSearchIndexBenchmark.class.getSimpleName()).build()).run();
+    }
+}
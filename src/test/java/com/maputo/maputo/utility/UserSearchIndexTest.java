@@ -0,0 +1,107 @@
+package com.maputo.maputo.utility;
+
+import com.maputo.maputo.domain.UserSearchPage;
+import com.maputo.maputo.domain.UserSearchResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserSearchIndexTest {
+
+    @Test
+    void matchesAnyFieldAndRanksPrefixesFirst() {
+        UserSearchIndex index = new UserSearchIndex(10_000);
+        index.put(1, "summer", "Summer", "Smith", "summer@maputo.com");
+        index.put(2, "rick", "Rick", "Sanchez", "rick@maputo.com");
+        index.put(3, "morty", "Morty", "Smith", "morty@maputo.com");
+        index.put(4, "birdperson", "Bird", "Person", "phoenix@maputo.com");
+        index.put(5, "ricky", "Richard", "Ricks", "r.sanchez@maputo.com");
+
+        assertEquals(List.of("rick", "ricky"), usernames(index.search("RIC", 0, 10)));
+        //same match, the shorter username goes first
+        assertEquals(List.of("morty", "summer"), usernames(index.search("smith", 0, 10)));
+        //substring in the middle of a word, behind the prefix matches
+        assertEquals(List.of("rick", "ricky"), usernames(index.search("anch", 0, 10)));
+        assertEquals(List.of("birdperson"), usernames(index.search("dperso", 0, 10)));
+        assertEquals(5, index.search("maputo.com", 0, 10).getUsers().size());
+        assertTrue(index.search("xyz", 0, 10).getUsers().isEmpty());
+    }
+
+    @Test
+    void shortQueriesOnlyMatchTheStartOfAWord() {
+        UserSearchIndex index = new UserSearchIndex(10_000);
+        index.put(1, "rick", "Rick", "Sanchez", "rick@maputo.com");
+        index.put(2, "morty", "Morty", "Smith", "morty@maputo.com");
+
+        //username prefix before the "maputo" word of an email
+        assertEquals(List.of("morty", "rick"), usernames(index.search("m", 0, 10)));
+        assertEquals(List.of("rick"), usernames(index.search("sa", 0, 10)));
+        assertTrue(index.search("ck", 0, 10).getUsers().isEmpty());
+    }
+
+    @Test
+    void updatesAndRemovesAreVisibleAndSurviveCompaction() {
+        UserSearchIndex index = new UserSearchIndex(10_000);
+        for (int i = 0; i < 3000; i++) {
+            index.put(i, "user" + i, "First", "Last", "user" + i + "@maputo.com");
+        }
+        index.put(7, "pickle", "Rick", "Sanchez", "pickle@maputo.com");
+        for (int i = 100; i < 3000; i++) {
+            index.remove(i);
+        }
+
+        assertEquals(100, index.size());
+        assertEquals(List.of("pickle"), usernames(index.search("pickle", 0, 10)));
+        assertTrue(index.search("user7@", 0, 10).getUsers().isEmpty());
+        assertEquals(99, index.search("user", 0, 100).getUsers().size());
+        assertFalse(index.putIfAbsent(7, "user7", "First", "Last", "user7@maputo.com"));
+        assertTrue(index.estimatedBytesPerUser() > 0);
+    }
+
+    @Test
+    void reindexingTheSameUsersDoesNotGrowTheIndex() {
+        UserSearchIndex index = new UserSearchIndex(10_000);
+        for (int i = 0; i < 2000; i++) {
+            index.put(i, "user" + i, "First", "Last", "user" + i + "@maputo.com");
+        }
+        long bytes = index.estimatedMemoryBytes();
+
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 2000; i++) {
+                index.put(i, "user" + i, "First" + round, "Last", "user" + i + "@maputo.com");
+            }
+        }
+
+        assertEquals(2000, index.size());
+        assertTrue(index.estimatedMemoryBytes() < 3 * bytes, index.estimatedMemoryBytes() + " bytes");
+        assertFalse(index.putIfChanged(7, "user7", "First9", "Last", "user7@maputo.com"));
+        assertTrue(index.putIfChanged(7, "user7", "Seventh", "Last", "user7@maputo.com"));
+        assertEquals(List.of("user7"), usernames(index.search("seventh", 0, 10)));
+    }
+
+    @Test
+    void pagesThroughTheRankedResults() {
+        UserSearchIndex index = new UserSearchIndex(10_000);
+        for (int i = 0; i < 25; i++) {
+            index.put(i, "user" + i, "First", "Last", "user" + i + "@maputo.com");
+        }
+
+        UserSearchPage first = index.search("user", 0, 10);
+        UserSearchPage last = index.search("user", 20, 10);
+
+        assertTrue(first.hasMore());
+        assertFalse(last.hasMore());
+        assertFalse(index.search("user", 15, 10).hasMore());
+        assertEquals(10, first.getUsers().size());
+        //shorter usernames rank first, then by id
+        assertEquals("user0", first.getUsers().get(0).getUsername());
+        assertEquals(List.of("user20", "user21", "user22", "user23", "user24"), usernames(last));
+    }
+
+    private static List<String> usernames(UserSearchPage page) {
+        return page.getUsers().stream().map(UserSearchResult::getUsername).collect(Collectors.toList());
+    }
+}